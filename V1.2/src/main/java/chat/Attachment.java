@@ -0,0 +1,50 @@
+package chat;
+
+/**
+ * A file another client shared, kept by the server until someone fetches it with ChatClient.download
+ */
+public class Attachment {
+
+    // class variables
+    private final int transferId;
+    private final String username;
+    private final String filename;
+    private final long size;
+    private final byte[] hash;
+
+    /**
+     * Creates an attachment from an ATTACHMENT frame
+     * @param transferId - The transfer id the server gave the file
+     * @param username - The sender's username, or null if it isn't known
+     * @param filename - The name the sender gave the file
+     * @param size - The size of the file in bytes
+     * @param hash - The SHA-256 hash the server keeps the file under
+     */
+    public Attachment(int transferId, String username, String filename, long size, byte[] hash) {
+        this.transferId = transferId;
+        this.username = username;
+        this.filename = filename;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    public int getTransferId() {
+        return this.transferId;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public byte[] getHash() {
+        return this.hash;
+    }
+}
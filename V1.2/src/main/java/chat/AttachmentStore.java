@@ -0,0 +1,357 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content addressed store of the files clients send, so a file shared again doesn't have to be uploaded again
+ * Every file is kept once on disk under the SHA-256 hash of its bytes, however many times and by whoever it is
+ * sent. A client that sets the ATTACHMENTS bit when logging in offers a file by its hash first, and only uploads
+ * it when the store doesn't have it yet
+ * Recently read files up to a size limit are also kept in memory, in an LRU cache bounded by its total bytes, so
+ * the files that keep getting shared are served without touching the disk. The disk is bounded too, the least
+ * recently used files are deleted once the store grows past its limit
+ * Safe to use from any thread
+ */
+public class AttachmentStore {
+
+    // capability bit in the login handshake and the CAPABILITIES frame
+    public static final int ATTACHMENTS = 8;
+    // length of a SHA-256 hash
+    public static final int HASH_LENGTH = 32;
+
+    // defaults, tunable with system properties
+    public static final String DEFAULT_DIRECTORY = System.getProperty("chat.attachments.dir",
+            new File(System.getProperty("java.io.tmpdir"), "chat-attachments").getPath());
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("chat.attachments.maxBytes", 4L * 1024 * 1024 * 1024);
+    public static final long DEFAULT_CACHE_BYTES = Long.getLong("chat.attachments.cacheBytes", 64 * 1024 * 1024);
+    public static final int DEFAULT_MAX_CACHED_BYTES = Integer.getInteger("chat.attachments.maxCachedBytes", 8 * 1024 * 1024);
+
+    // the store the server keeps files in, opened on first use
+    private static AttachmentStore defaultStore;
+    private static boolean defaultOpened = false;
+
+    private static final Metrics metrics = Metrics.get();
+
+    // class variables
+    private final Path directory;
+    private final Path uploads;
+    private final long maxBytes;
+    private final long cacheBytes;
+    private final int maxCachedBytes;
+    // sizes of the files on disk by hash in least recently used order, guarded by the store
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long storedBytes = 0;
+    // bytes of the hot files in least recently used order, guarded by the store
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    /**
+     * Gets the store configured with chat.attachments.dir, opening it the first time
+     * @return the store, or null if it can't be opened
+     */
+    public static synchronized AttachmentStore getDefault() {
+        if(!defaultOpened) {
+            defaultOpened = true;
+            try {
+                defaultStore = new AttachmentStore(Paths.get(DEFAULT_DIRECTORY), DEFAULT_MAX_BYTES, DEFAULT_CACHE_BYTES, DEFAULT_MAX_CACHED_BYTES);
+            } catch (IOException e) {
+                // files are still relayed without the store, just never deduplicated
+                e.printStackTrace();
+            }
+        }
+        return defaultStore;
+    }
+
+    /**
+     * Works out whether the server agrees to offering files by hash
+     * @param requested - The capability bits sent with the username
+     * @return ATTACHMENTS if the client asked and the server has a store, otherwise 0
+     */
+    public static int accept(int requested) {
+        return getDefault() != null ? requested & ATTACHMENTS : 0;
+    }
+
+    /**
+     * Opens a store, picking up the files already in the directory
+     * @param directory - The directory holding the files, created if needed
+     * @param maxBytes - The most bytes of files kept on disk
+     * @param cacheBytes - The most bytes of files kept in memory
+     * @param maxCachedBytes - The largest file kept in memory
+     * @throws IOException - IO error while opening or scanning the directory
+     */
+    public AttachmentStore(Path directory, long maxBytes, long cacheBytes, int maxCachedBytes) throws IOException {
+        this.directory = directory;
+        this.uploads = directory.resolve("uploads");
+        this.maxBytes = maxBytes;
+        this.cacheBytes = cacheBytes;
+        this.maxCachedBytes = maxCachedBytes;
+        Files.createDirectories(this.uploads);
+
+        // uploads that were cut short by a restart are never finished
+        try (DirectoryStream<Path> partial = Files.newDirectoryStream(this.uploads)) {
+            for(Path upload : partial) {
+                Files.deleteIfExists(upload);
+            }
+        }
+        // files are stored as <first two hex digits>/<rest of the hash>, and start out in no particular order of use
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(directory, path -> path.getFileName().toString().length() == 2)) {
+            for(Path bucket : buckets) {
+                try (DirectoryStream<Path> stored = Files.newDirectoryStream(bucket)) {
+                    for(Path file : stored) {
+                        String hash = bucket.getFileName().toString() + file.getFileName();
+                        long size = Files.size(file);
+                        this.files.put(hash, size);
+                        this.storedBytes += size;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the bytes of files on disk
+     * @return the total size of the stored files
+     */
+    public synchronized long storedBytes() {
+        return this.storedBytes;
+    }
+
+    /**
+     * Gets the bytes of files kept in memory
+     * @return the total size of the cached files
+     */
+    public synchronized long cachedBytes() {
+        return this.cachedBytes;
+    }
+
+    /**
+     * Checks whether the store has a file, and marks it as recently used if so
+     * @param hash - The SHA-256 hash of the file
+     * @param size - The size the file should have
+     * @return true if the store has a file with that hash and size
+     */
+    public synchronized boolean contains(byte[] hash, long size) {
+        Long stored = this.files.get(hex(hash));
+        return stored != null && stored == size;
+    }
+
+    /**
+     * Reads part of a stored file, from memory if it is hot
+     * @param hash - The SHA-256 hash of the file
+     * @param offset - Where in the file to start
+     * @param length - The most bytes to read
+     * @return the bytes read, shorter than length only at the end of the file, or null if the store doesn't have it
+     * @throws IOException - IO error while reading the file
+     */
+    public ByteBuffer read(byte[] hash, long offset, int length) throws IOException {
+        String key = hex(hash);
+        long size;
+        synchronized(this) {
+            // looking the file up marks it as recently used on disk as well as in memory
+            Long stored = this.files.get(key);
+            if(stored == null) {
+                return null;
+            }
+            size = stored;
+            byte[] cached = this.cache.get(key);
+            if(cached != null) {
+                metrics.attachmentCacheHits.increment();
+                int start = (int) Math.min(offset, cached.length);
+                return ByteBuffer.wrap(cached, start, Math.min(length, cached.length - start)).slice().asReadOnlyBuffer();
+            }
+        }
+        metrics.attachmentCacheMisses.increment();
+
+        Path file = path(key);
+        if(size <= this.maxCachedBytes) {
+            // small enough to keep, so read it whole once and serve it from memory from now on
+            byte[] bytes = Files.readAllBytes(file);
+            cache(key, bytes);
+            int start = (int) Math.min(offset, bytes.length);
+            return ByteBuffer.wrap(bytes, start, Math.min(length, bytes.length - start)).slice().asReadOnlyBuffer();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, size - offset)));
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while(buffer.hasRemaining() && fileChannel.read(buffer, offset + buffer.position()) >= 0) {
+                // keep reading until the range is filled or the file ends
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Starts storing a file as it arrives
+     * @return the upload, which must be committed or aborted
+     * @throws IOException - IO error while creating the upload file
+     */
+    public Upload upload() throws IOException {
+        return new Upload(Files.createTempFile(this.uploads, "upload", ".part"));
+    }
+
+    /**
+     * Keeps a file's bytes in memory, evicting the least recently used files to make room
+     * @param key - The hex hash of the file
+     * @param bytes - The whole file
+     */
+    private synchronized void cache(String key, byte[] bytes) {
+        if(!this.files.containsKey(key)) {
+            // deleted from disk while it was being read
+            return;
+        }
+        if(this.cache.put(key, bytes) == null) {
+            this.cachedBytes += bytes.length;
+        }
+        Iterator<byte[]> eldest = this.cache.values().iterator();
+        while(this.cachedBytes > this.cacheBytes && eldest.hasNext()) {
+            this.cachedBytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Adds a finished upload to the store, deleting the least recently used files if the disk limit is passed
+     * @param key - The hex hash of the file
+     * @param upload - The finished upload file
+     * @param size - The size of the file
+     * @throws IOException - IO error while moving or deleting files
+     */
+    private synchronized void store(String key, Path upload, long size) throws IOException {
+        if(this.files.containsKey(key)) {
+            // someone else uploaded the same bytes meanwhile
+            Files.deleteIfExists(upload);
+            return;
+        }
+        Path file = path(key);
+        Files.createDirectories(file.getParent());
+        Files.move(upload, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.files.put(key, size);
+        this.storedBytes += size;
+
+        Iterator<Map.Entry<String, Long>> eldest = this.files.entrySet().iterator();
+        while(this.storedBytes > this.maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> evicted = eldest.next();
+            if(evicted.getKey().equals(key)) {
+                // never the file just stored, even if it alone is over the limit
+                continue;
+            }
+            eldest.remove();
+            this.storedBytes -= evicted.getValue();
+            byte[] cached = this.cache.remove(evicted.getKey());
+            if(cached != null) {
+                this.cachedBytes -= cached.length;
+            }
+            Files.deleteIfExists(path(evicted.getKey()));
+        }
+    }
+
+    /**
+     * Gets where a file is kept on disk
+     * @param key - The hex hash of the file
+     * @return the path of the file
+     */
+    private Path path(String key) {
+        return this.directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    /**
+     * Formats a hash as the hex string files are kept under
+     * @param hash - The hash
+     * @return lower case hex digits
+     */
+    public static String hex(byte[] hash) {
+        return HexFormat.of().formatHex(hash);
+    }
+
+    /**
+     * Creates a SHA-256 digest
+     * @return a new digest
+     */
+    public static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One file being stored as its chunks arrive, hashed on the way so the store knows where to keep it
+     * Only used by the thread that reads the sending client's frames
+     */
+    public class Upload {
+
+        private final Path file;
+        private final FileChannel fileChannel;
+        private final MessageDigest digest = digest();
+        private long size = 0;
+
+        /**
+         * Creates an upload
+         * @param file - The file the upload is written to until it is committed
+         * @throws IOException - IO error while opening the file
+         */
+        private Upload(Path file) throws IOException {
+            this.file = file;
+            this.fileChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Appends a chunk of the file
+         * @param data - The chunk, from its position to its limit, left as it was
+         * @throws IOException - IO error while writing the chunk
+         */
+        public void write(ByteBuffer data) throws IOException {
+            this.digest.update(data.duplicate());
+            ByteBuffer remaining = data.duplicate();
+            while(remaining.hasRemaining()) {
+                this.size += this.fileChannel.write(remaining);
+            }
+        }
+
+        /**
+         * Finishes the upload and adds it to the store
+         * @param expected - The hash the sender offered the file under, or null if it didn't
+         * @return the hash of the file, or null if it didn't match the offered hash and was thrown away
+         * @throws IOException - IO error while storing the file
+         */
+        public byte[] commit(byte[] expected) throws IOException {
+            this.fileChannel.close();
+            byte[] hash = this.digest.digest();
+            if(expected != null && !Arrays.equals(hash, expected)) {
+                Files.deleteIfExists(this.file);
+                return null;
+            }
+            store(hex(hash), this.file, this.size);
+            return hash;
+        }
+
+        /**
+         * Throws the upload away
+         */
+        public void abort() {
+            try {
+                this.fileChannel.close();
+                Files.deleteIfExists(this.file);
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package chat;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The outbound queues of a group that have fallen behind, kept up to date by the queues themselves
+ * A queue joins the set as it reaches the threshold and leaves it as it drains below, so asking whether anyone in
+ * the group is behind only visits the queues that are, never every connection
+ */
+public class Backlog {
+
+    // class variables
+    private final int threshold;
+    private final Set<OutboundQueue> behind = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an empty backlog
+     * @param threshold - The number of queued frames from which a queue counts as behind
+     */
+    public Backlog(int threshold) {
+        this.threshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Gets the number of queued frames from which a queue counts as behind
+     * @return the threshold
+     */
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * Records whether a queue is behind, called by the queue whenever its depth crosses the threshold
+     * @param queue - The queue
+     * @param behind - Whether it holds at least the threshold
+     */
+    void update(OutboundQueue queue, boolean behind) {
+        if(behind) {
+            this.behind.add(queue);
+        } else {
+            this.behind.remove(queue);
+        }
+    }
+
+    /**
+     * Checks whether every queue that is still being written to has fewer frames than the threshold
+     * A queue whose writer stopped making progress doesn't count, its client is disconnected after the stall timeout
+     * @param except - A queue to leave out, or null
+     * @return true if no queue that is still being read is behind
+     */
+    public boolean isClear(OutboundQueue except) {
+        for(OutboundQueue queue : this.behind) {
+            if(queue != except && !queue.isStalled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of queues at or over the threshold, stalled ones included
+     * @return the number of queues behind
+     */
+    public int size() {
+        return this.behind.size();
+    }
+}
@@ -0,0 +1,1014 @@
+package chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Headless connection to the chat server: logs in, sends text and files and hands everything received to a ChatListener
+ * Nothing here touches AWT, so bots and load tests can run thousands of these in one JVM
+ */
+public class ChatClient {
+
+    public static final int LOGIN = 1;
+    public static final int LOGOUT = 0;
+    public static final int TEXT = 2;
+    public static final int FILE = 3;
+    public static final int FILE_CHUNK = 4;
+    public static final int FILE_END = 5;
+    public static final int FILE_ACK = 6;
+    public static final int JOIN = 7;
+    public static final int LEAVE = 8;
+    public static final int ROOM_TEXT = 9;
+    public static final int CAPABILITIES = 10;
+    public static final int HEARTBEAT = 11;
+    public static final int SESSIONS = 12;
+    public static final int DIRECT = 13;
+    public static final int OFFLINE = 14;
+    public static final int FILE_OFFER = 15;
+    public static final int ATTACHMENT = 16;
+    public static final int FILE_REQUEST = 17;
+    public static final int FILE_DATA = 18;
+    public static final int RESUME = 19;
+
+    // class variables
+    private String IP;
+    private int port;
+    private ChatListener listener;
+    private Thread.Builder threadBuilder;
+    // replaced when the client reconnects, the output stream last so nothing is written ahead of the login
+    private volatile Socket socket;
+    private volatile SocketChannel socketChannel;
+    private volatile DataOutputStream dataOutputStream;
+    private volatile DataInputStream dataInputStream;
+    private String username;
+    private AtomicBoolean closed = new AtomicBoolean();
+    // whether the server agreed to compressed frames, set by the listener thread when it answers the login
+    private volatile boolean compression = false;
+    // whether the server keeps files by hash, so files are offered by their hash before being uploaded
+    private volatile boolean attachments = false;
+    // drops the connection once nothing has arrived from the server for the idle timeout, a new one per connection
+    private volatile Heartbeat heartbeat;
+    // whether heartbeats are being sent, they carry on across reconnects
+    private final AtomicBoolean heartbeating = new AtomicBoolean();
+    // when the last frame was written, a heartbeat is only sent after a quiet interval
+    private volatile long lastWrite = System.nanoTime();
+    // usernames of the sessions this client knows about by session id, kept up to date by presence frames
+    private final Map<Integer, String> usernames = new ConcurrentHashMap<>();
+    private volatile int sessionId = 0;
+    // the token the server gave this session to resume it with, and the TEXT frames received since it came
+    private volatile byte[] resumeToken = null;
+    private long received = 0;
+    // whether the listener is waiting for the server's answer to a reconnect
+    private boolean reconnected = false;
+    // where files sent by other clients are saved, null skips them
+    private File downloadFolder = new File(System.getProperty("user.home"), "ChatDownloads");
+
+    // file transfer state
+    private AtomicInteger nextTransferId = new AtomicInteger();
+    // chunks the server still lets each outgoing transfer send
+    private Map<Integer, Semaphore> fileCredits = new ConcurrentHashMap<>();
+    // outgoing transfers the server already had the file for
+    private Set<Integer> storedFiles = ConcurrentHashMap.newKeySet();
+    // outgoing transfers cut off by a lost connection
+    private Set<Integer> abortedFiles = ConcurrentHashMap.newKeySet();
+    // files being received, only used by the listener thread, names are kept even when the file isn't saved
+    private Map<Integer, FileChannel> incomingFiles = new HashMap<>();
+    private Map<Integer, File> incomingFileNames = new HashMap<>();
+    // bytes still to come of each file being received, a file only counts as complete once this reaches 0
+    private Map<Integer, Long> incomingFileBytes = new HashMap<>();
+    // files being fetched by request id, started by download and carried on by the listener thread
+    private Map<Integer, Download> downloads = new ConcurrentHashMap<>();
+    private AtomicInteger nextRequestId = new AtomicInteger();
+
+    /**
+     * Creates a client that listens on a platform thread
+     * @param IP - The server's address
+     * @param port - The server's port
+     * @param listener - Receives everything the server sends
+     */
+    public ChatClient(String IP, int port, ChatListener listener) {
+        this(IP, port, listener, false);
+    }
+
+    /**
+     * Creates a client
+     * @param IP - The server's address
+     * @param port - The server's port
+     * @param listener - Receives everything the server sends
+     * @param virtualThreads - Whether the listener runs on a virtual thread, use this when simulating many users
+     */
+    public ChatClient(String IP, int port, ChatListener listener, boolean virtualThreads) {
+        this.IP = IP;
+        this.port = port;
+        this.listener = listener;
+        this.threadBuilder = virtualThreads ? Thread.ofVirtual().name("chat-listener-", 0) : Thread.ofPlatform().name("chat-listener-", 0);
+    }
+
+    /**
+     * Sets where files sent by other clients are saved
+     * @param downloadFolder - The folder, or null to skip incoming files without saving them
+     */
+    public void setDownloadFolder(File downloadFolder) {
+        this.downloadFolder = downloadFolder;
+    }
+
+    /**
+     * Connects to the server, logs in and starts listening for frames
+     * If the connection is lost later on the client connects again by itself and resumes the session, so the other
+     * clients never see it leave and it gets the chat messages it missed
+     * @param username - The name to log in with
+     * @throws IOException - The server could not be reached
+     */
+    public void connect(String username) throws IOException {
+        this.username = username;
+        open(null, 0);
+
+        // start listening for messages
+        this.threadBuilder.start(this::listen);
+    }
+
+    /**
+     * Opens a connection to the server and logs in, resuming a session if given its token
+     * @param token - The token the server gave the session, or null to log in afresh
+     * @param received - The TEXT frames received since the token came
+     * @throws IOException - The server could not be reached
+     */
+    private void open(byte[] token, long received) throws IOException {
+        byte[] usernameBytes = this.username.getBytes();
+        SocketChannel socketChannel = null;
+        Socket socket = null;
+
+        try {
+            // open the socket through a channel so files can be streamed straight from disk to the socket
+            socketChannel = SocketChannel.open(new InetSocketAddress(this.IP, this.port));
+            socket = socketChannel.socket();
+            // every frame is flushed whole, so don't let Nagle hold back its last segment
+            socket.setTcpNoDelay(true);
+            if(Tls.ENABLED) {
+                // the handshake happens with the login, resuming the last session with this server if there is one
+                socket = Tls.wrap(socket, true);
+            }
+            // buffer the streams so a frame is written in one go instead of one system call per field
+            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), Frame.STREAM_BUFFER_SIZE));
+            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), Frame.STREAM_BUFFER_SIZE));
+            // send username length with the capabilities this client would like on top, then the username bytes
+            int capabilities = (Compression.ENABLED ? Compression.COMPRESSION : 0) | Heartbeat.HEARTBEATS | Presence.SESSION_IDS | AttachmentStore.ATTACHMENTS | Resume.RESUME;
+            if(token != null) {
+                capabilities |= Resume.RESUMING;
+            }
+            dataOutputStream.writeInt(capabilities << 16 | usernameBytes.length);
+            dataOutputStream.write(usernameBytes);
+            if(token != null) {
+                // which session this is, and how many of the messages sent to it arrived
+                dataOutputStream.write(token);
+                dataOutputStream.writeLong(received);
+            }
+            dataOutputStream.flush();
+            // closes only this connection's channel, so the wheel's thread never waits, the listener thread then
+            // reconnects or reports the disconnect
+            SocketChannel channel = socketChannel;
+            Heartbeat heartbeat = new Heartbeat(() -> closeQuietly(channel));
+
+            // a file sender holding the old stream finishes its frame first, and then finds the stream replaced
+            DataOutputStream oldOutputStream = this.dataOutputStream;
+            synchronized(oldOutputStream != null ? oldOutputStream : dataOutputStream) {
+                this.socketChannel = socketChannel;
+                this.socket = socket;
+                this.dataInputStream = dataInputStream;
+                this.heartbeat = heartbeat;
+                this.dataOutputStream = dataOutputStream;
+            }
+        } catch (IOException e) {
+            // closing the socket closes its streams
+            if(socket != null) {
+                closeQuietly(socket);
+            } else if(socketChannel != null) {
+                closeQuietly(socketChannel);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the username the client logged in with
+     * @return the username, or null before connect
+     */
+    public String getUsername() {
+        return this.username;
+    }
+
+    /**
+     * Gets the session id the server gave this client
+     * @return the session id, or 0 before the server has answered the login
+     */
+    public int getSessionId() {
+        return this.sessionId;
+    }
+
+    /**
+     * Gets the username of a session this client knows about
+     * @param sessionId - The session id, as sent with a frame
+     * @return the username, or null for 0 and sessions that have gone
+     */
+    public String getUsername(int sessionId) {
+        return this.usernames.get(sessionId);
+    }
+
+    /**
+     * Checks whether the client is connected and hasn't been closed
+     * @return true while connected
+     */
+    public boolean isConnected() {
+        return this.socket != null && this.socket.isConnected() && !this.closed.get();
+    }
+
+    /**
+     * Sends a text message to everyone else in the chat
+     * Safe to call from any thread
+     * @param text - The message
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    public void sendText(String text) throws IOException {
+        writeFrame(ChatClient.TEXT, text.getBytes());
+    }
+
+    /**
+     * Joins a room, the listener's roomJoined method is called once the server has added this client
+     * @param room - The room name
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    public void joinRoom(String room) throws IOException {
+        writeFrame(ChatClient.JOIN, roomPayload(room, new byte[0]));
+    }
+
+    /**
+     * Leaves a room, the listener's roomLeft method is called once the server has removed this client
+     * @param room - The room name
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    public void leaveRoom(String room) throws IOException {
+        writeFrame(ChatClient.LEAVE, roomPayload(room, new byte[0]));
+    }
+
+    /**
+     * Sends a text message to the other members of a room this client has joined
+     * @param room - The room name
+     * @param text - The message
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    public void sendText(String room, String text) throws IOException {
+        writeFrame(ChatClient.ROOM_TEXT, roomPayload(room, text.getBytes()));
+    }
+
+    /**
+     * Fetches a file another client shared into the download folder, picking up where an earlier download of the
+     * same file stopped
+     * The file is fetched a range at a time while the rest of the chat carries on, fileFinished is called when it ends
+     * Safe to call from any thread
+     * @param attachment - The file, as given to attachmentReceived
+     * @return false if the client isn't saving files, the file can't be created or the connection is gone
+     */
+    public boolean download(Attachment attachment) {
+        if(this.downloadFolder == null) {
+            return false;
+        }
+        // the partial file is named after the hash, so any later download of the same bytes resumes it
+        File part = new File(this.downloadFolder, "." + AttachmentStore.hex(attachment.getHash()) + ".part");
+        int requestId = this.nextRequestId.incrementAndGet();
+        try {
+            this.downloadFolder.mkdirs();
+            FileChannel fileChannel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long position = fileChannel.size();
+            if(position > attachment.getSize()) {
+                // not from this file after all
+                fileChannel.truncate(0);
+                position = 0;
+            }
+            Download download = new Download(attachment, part, fileChannel, position);
+            this.downloads.put(requestId, download);
+            requestRange(requestId, download);
+            return true;
+        } catch (IOException e) {
+            Download download = this.downloads.remove(requestId);
+            if(download != null) {
+                closeQuietly(download.fileChannel);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sends a text message to one other client, who may be on another server node
+     * If nobody by that username is connected the listener's userOffline is called
+     * @param username - The username of the recipient
+     * @param text - The message
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    public void sendDirect(String username, String text) throws IOException {
+        byte[] usernameBytes = username.getBytes();
+        byte[] textBytes = text.getBytes();
+        writeFrame(ChatClient.DIRECT, ByteBuffer.allocate(4 + usernameBytes.length + textBytes.length)
+                .putInt(usernameBytes.length).put(usernameBytes).put(textBytes).array());
+    }
+
+    /**
+     * Streams a file to the server in chunks, waiting for credit from the server before each chunk
+     * Blocks until the file is sent, run it on its own thread to keep sending text meanwhile
+     * @param file - The file being sent
+     * @return true if the whole file was sent
+     */
+    public boolean sendFile(File file) {
+        int transferId = this.nextTransferId.incrementAndGet();
+        Semaphore credits = new Semaphore(0);
+        this.fileCredits.put(transferId, credits);
+        byte status = FileRelay.ABORTED;
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            byte[] filenameBytes = file.getName().getBytes();
+            // a server that keeps files is offered the file by its hash, so it can say it has it already
+            byte[] hash = this.attachments ? hash(fileChannel, size) : null;
+
+            // announce the transfer: [transfer id][file size][filename], with the hash before the filename in an offer
+            DataOutputStream out = this.dataOutputStream;
+            synchronized(out) {
+                out.writeInt(hash != null ? ChatClient.FILE_OFFER : ChatClient.FILE);
+                out.writeInt(12 + (hash != null ? hash.length : 0) + filenameBytes.length);
+                out.writeInt(transferId);
+                out.writeLong(size);
+                if(hash != null) {
+                    out.write(hash);
+                }
+                out.write(filenameBytes);
+                out.flush();
+            }
+
+            // files that are compressed already go straight from disk to the socket, the rest are read in to compress
+            boolean deflate = this.compression && Compression.isCompressible(file.getName());
+            // except over TLS, where every byte has to be encrypted here first
+            boolean tls = this.socket instanceof SSLSocket;
+            ByteBuffer chunk = deflate || tls ? ByteBuffer.allocate(4 + FileRelay.CHUNK_SIZE) : null;
+
+            long position = 0;
+            while(position < size) {
+                // wait until the server has room for another chunk of this transfer
+                credits.acquire();
+                if(this.abortedFiles.contains(transferId)) {
+                    throw new IOException("connection lost while sending " + file);
+                }
+                if(this.storedFiles.contains(transferId)) {
+                    // the server is sending the file from its store, nothing left to upload
+                    break;
+                }
+                int chunkLength = (int) Math.min(FileRelay.CHUNK_SIZE, size - position);
+
+                if(chunk != null) {
+                    // read the chunk behind its transfer id and send it as one frame
+                    chunk.clear().putInt(transferId);
+                    while(chunk.position() < 4 + chunkLength) {
+                        if(fileChannel.read(chunk, position + chunk.position() - 4) < 0) {
+                            throw new EOFException(file + " got shorter while it was being sent");
+                        }
+                    }
+                    writeFrame(ChatClient.FILE_CHUNK, chunk.array(), chunk.position(), deflate);
+                } else {
+                    synchronized(out) {
+                        if(out != this.dataOutputStream) {
+                            // the chunk would go to the new connection behind a header sent to the old one
+                            throw new IOException("connection lost while sending " + file);
+                        }
+                        out.writeInt(ChatClient.FILE_CHUNK);
+                        out.writeInt(4 + chunkLength);
+                        out.writeInt(transferId);
+                        // send the header, then let the platform copy the chunk from the file to the socket
+                        out.flush();
+                        long sent = 0;
+                        while(sent < chunkLength) {
+                            sent += fileChannel.transferTo(position + sent, chunkLength - sent, this.socketChannel);
+                        }
+                    }
+                }
+                position += chunkLength;
+            }
+            status = FileRelay.COMPLETE;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.fileCredits.remove(transferId);
+            this.storedFiles.remove(transferId);
+            this.abortedFiles.remove(transferId);
+            // tell the server the transfer is over, the receivers drop the file if it was aborted
+            DataOutputStream out = this.dataOutputStream;
+            try {
+                synchronized(out) {
+                    out.writeInt(ChatClient.FILE_END);
+                    out.writeInt(5);
+                    out.writeInt(transferId);
+                    out.writeByte(status);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                connectionLost(out);
+            }
+        }
+        return status == FileRelay.COMPLETE;
+    }
+
+    /**
+     * Writes one whole frame and flushes it
+     * Safe to call from any thread
+     * @param type - The frame type
+     * @param payload - The payload bytes
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    private void writeFrame(int type, byte[] payload) throws IOException {
+        writeFrame(type, payload, payload.length, this.compression);
+    }
+
+    /**
+     * Writes one whole frame and flushes it, compressed if asked to and it's worth it
+     * Safe to call from any thread
+     * @param type - The frame type
+     * @param payload - The array holding the payload from its start
+     * @param length - The payload length
+     * @param compress - Whether to try compressing the frame, only if the server agreed to it
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    private void writeFrame(int type, byte[] payload, int length, boolean compress) throws IOException {
+        byte[] compressed = compress ? Compression.deflate(type, payload, 0, length) : null;
+        if(compressed != null) {
+            type |= Compression.FLAG;
+            payload = compressed;
+            length = compressed.length;
+        }
+        DataOutputStream out = this.dataOutputStream;
+        try {
+            // a file sender thread may be writing too, so write the whole frame while holding the stream
+            synchronized(out) {
+                out.writeInt(type);
+                out.writeInt(length);
+                out.write(payload, 0, length);
+                // frame boundary, send the buffered frame
+                out.flush();
+            }
+            this.lastWrite = System.nanoTime();
+        } catch (IOException e) {
+            connectionLost(out);
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the payload of a room frame: [room name length][room name][body]
+     * @param room - The room name
+     * @param body - The bytes that follow the room name
+     * @return the payload
+     */
+    private static byte[] roomPayload(String room, byte[] body) {
+        byte[] roomBytes = room.getBytes();
+        return ByteBuffer.allocate(4 + roomBytes.length + body.length).putInt(roomBytes.length).put(roomBytes).put(body).array();
+    }
+
+    /**
+     * Disconnects from the server, the listener's disconnected method is called once the listener thread stops
+     */
+    public void close() {
+        if(this.closed.compareAndSet(false, true)) {
+            if(this.heartbeat != null) {
+                this.heartbeat.stop();
+            }
+            logout();
+            closeAll();
+        }
+    }
+
+    /**
+     * Tells the server this client is leaving, if the connection is still there to tell it
+     */
+    private void logout() {
+        DataOutputStream out = this.dataOutputStream;
+        try {
+            synchronized(out) {
+                out.writeInt(ChatClient.LOGOUT);
+                out.writeInt(0);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // lost already
+        }
+    }
+
+    /**
+     * Sends a heartbeat if nothing has been written for a heartbeat interval, then checks again an interval after
+     * the last write
+     * Runs on the listener thread the first time and on the wheel's thread after that
+     */
+    private void sendHeartbeat() {
+        if(this.closed.get()) {
+            return;
+        }
+        long interval = TimeUnit.MILLISECONDS.toNanos(Heartbeat.INTERVAL_MILLIS);
+        long quiet = System.nanoTime() - this.lastWrite;
+        if(quiet >= interval) {
+            // written from a thread of its own, the wheel's thread must never wait for a socket or a file sender
+            Thread.startVirtualThread(() -> {
+                try {
+                    writeFrame(ChatClient.HEARTBEAT, new byte[0]);
+                } catch (IOException e) {
+                    // writeFrame has dropped the connection
+                }
+            });
+            quiet = 0;
+        }
+        Heartbeat.WHEEL.schedule(this::sendHeartbeat, interval - quiet, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Drops the connection a write failed on, unless the client has connected again since
+     * Only closes the socket, the listener thread then reconnects or reports the disconnect
+     * @param out - The stream the write went to
+     */
+    private void connectionLost(DataOutputStream out) {
+        // the stream is only replaced while its lock is held
+        synchronized(out) {
+            if(out == this.dataOutputStream) {
+                // the channel's own socket, closing a TLS socket would wait to send its goodbye
+                closeQuietly(this.socketChannel);
+            }
+        }
+    }
+
+    /**
+     * Reads frames until the connection closes and hands each one to the listener
+     * This method runs on the listener thread
+     */
+    private void listen() {
+        // every frame is decoded into the codec's reused buffer, file chunks go from there straight to disk
+        FrameCodec frameCodec = new FrameCodec();
+        // frames from the server carry the session id of the client behind them
+        frameCodec.setSenders(true);
+
+        try {
+            while(true) {
+                // read in the type and payload, the codec rejects lengths over the type's limit
+                int messageType = frameCodec.readFrame(this.dataInputStream);
+                ByteBuffer payload = frameCodec.payload();
+                // null for frames from the server itself and senders that have left since
+                String sender = this.usernames.get(frameCodec.sender());
+                this.heartbeat.touch();
+
+                switch(messageType) {
+                    case ChatClient.LOGIN:
+                    case ChatClient.LOGOUT:
+                        // someone entered or left the chat, only the username is sent when the server knows their id
+                        String alert = decodeString(payload);
+                        if(frameCodec.sender() != 0) {
+                            if(messageType == ChatClient.LOGIN) {
+                                this.usernames.put(frameCodec.sender(), alert);
+                                alert += " has entered the chat!";
+                            } else {
+                                this.usernames.remove(frameCodec.sender());
+                                alert += " has left the chat!";
+                            }
+                        }
+                        this.listener.alertReceived(alert);
+
+                        break;
+                    case ChatClient.SESSIONS:
+                        // sessions that were already there, or whose node has gone, without an alert
+                        Map<Integer, String> sessions = new HashMap<>();
+                        Presence.readSessions(payload, sessions);
+                        for(Map.Entry<Integer, String> session : sessions.entrySet()) {
+                            if(session.getValue().isEmpty()) {
+                                this.usernames.remove(session.getKey());
+                            } else {
+                                this.usernames.put(session.getKey(), session.getValue());
+                            }
+                        }
+
+                        break;
+                    case ChatClient.TEXT:
+                        // a message another client sent to the group, counted so a resumed session gets only the rest
+                        this.received++;
+                        this.listener.textReceived(sender, decodeString(payload));
+
+                        break;
+                    case ChatClient.FILE:
+                        // another client has started sending a file
+                        int transferId = payload.getInt();
+                        long fileSize = payload.getLong();
+                        startReceivingFile(transferId, sender, decodeString(payload), fileSize);
+
+                        break;
+                    case ChatClient.FILE_CHUNK:
+                        // write the chunk straight to disk, the file is never held in memory
+                        int chunkTransferId = payload.getInt();
+                        this.incomingFileBytes.computeIfPresent(chunkTransferId, (id, missing) -> missing - payload.remaining());
+                        FileChannel incomingFile = this.incomingFiles.get(chunkTransferId);
+                        if(incomingFile != null) {
+                            while(payload.hasRemaining()) {
+                                incomingFile.write(payload);
+                            }
+                        }
+
+                        break;
+                    case ChatClient.FILE_END:
+                        int endedTransferId = payload.getInt();
+                        finishReceivingFile(endedTransferId, payload.get() == FileRelay.COMPLETE);
+
+                        break;
+                    case ChatClient.FILE_ACK:
+                        // the server has room for more chunks of one of our files, or has the file already
+                        int creditedId = payload.getInt();
+                        int chunks = payload.getInt();
+                        Semaphore credits = this.fileCredits.get(creditedId);
+                        if(credits != null) {
+                            if(chunks == FileRelay.STORED) {
+                                this.storedFiles.add(creditedId);
+                                chunks = 1;
+                            }
+                            credits.release(chunks);
+                        }
+
+                        break;
+                    case ChatClient.JOIN:
+                        // someone, maybe this client, joined a room this client is in
+                        String joinedRoom = RoomIndex.readRoom(payload);
+                        this.listener.roomJoined(joinedRoom, decodeString(payload));
+
+                        break;
+                    case ChatClient.LEAVE:
+                        String leftRoom = RoomIndex.readRoom(payload);
+                        this.listener.roomLeft(leftRoom, decodeString(payload));
+
+                        break;
+                    case ChatClient.ROOM_TEXT:
+                        // a message another member sent to a room
+                        String room = RoomIndex.readRoom(payload);
+                        this.listener.roomTextReceived(room, sender, decodeString(payload));
+
+                        break;
+                    case ChatClient.DIRECT:
+                        // a message another client sent to this client alone, naming who it is from
+                        String from = Direct.readUsername(payload);
+                        this.listener.directReceived(from, decodeString(payload));
+
+                        break;
+                    case ChatClient.OFFLINE:
+                        // a direct message this client sent had nobody to go to
+                        this.listener.userOffline(decodeString(payload));
+
+                        break;
+                    case ChatClient.ATTACHMENT:
+                        // a file another client shared, fetched only if someone asks for it
+                        int attachmentId = payload.getInt();
+                        long attachmentSize = payload.getLong();
+                        byte[] hash = new byte[AttachmentStore.HASH_LENGTH];
+                        payload.get(hash);
+                        this.listener.attachmentReceived(new Attachment(attachmentId, sender, decodeString(payload), attachmentSize, hash));
+
+                        break;
+                    case ChatClient.FILE_DATA:
+                        // part of a file this client is downloading
+                        receiveRange(payload.getInt(), payload.getLong(), payload);
+
+                        break;
+                    case ChatClient.RESUME:
+                        // what to resume this session with, the messages counted start after it
+                        byte[] token = new byte[Resume.TOKEN_LENGTH];
+                        payload.get(token);
+                        this.resumeToken = token;
+                        this.received = 0;
+
+                        break;
+                    case ChatClient.CAPABILITIES:
+                        // the server's answer to the login, compressed frames are decompressed by the codec either way
+                        int accepted = payload.getInt();
+                        // after a reconnect the sessions list that follows is the whole table again
+                        this.usernames.clear();
+                        if(this.reconnected) {
+                            this.reconnected = false;
+                            this.listener.reconnected((accepted & Resume.RESUMING) != 0);
+                        }
+                        if((accepted & Presence.SESSION_IDS) != 0) {
+                            // the answer carries this client's own id, so its own messages are known by name too
+                            this.sessionId = frameCodec.sender();
+                            this.usernames.put(this.sessionId, this.username);
+                        }
+                        this.compression = (accepted & Compression.COMPRESSION) != 0;
+                        this.attachments = (accepted & AttachmentStore.ATTACHMENTS) != 0;
+                        if((accepted & Heartbeat.HEARTBEATS) != 0) {
+                            // the server answers heartbeats, so hearing nothing from it means the connection is gone
+                            this.heartbeat.start();
+                            if(this.heartbeating.compareAndSet(false, true)) {
+                                sendHeartbeat();
+                            }
+                        }
+
+                        break;
+                    default:
+                        // known to the codec but nothing this client acts on
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // connection lost or closed, drop whatever was still arriving
+            for(int transferId : new ArrayList<>(this.incomingFileNames.keySet())) {
+                finishReceivingFile(transferId, false);
+            }
+            for(int requestId : new ArrayList<>(this.downloads.keySet())) {
+                finishDownload(requestId, false);
+            }
+            // and whatever was still being sent, the server has dropped it
+            this.abortedFiles.addAll(this.fileCredits.keySet());
+            for(Semaphore credits : this.fileCredits.values()) {
+                credits.release();
+            }
+            if(!this.closed.get() && this.resumeToken != null && reconnect()) {
+                // carry on with the new connection on a new listener thread
+                this.threadBuilder.start(this::listen);
+                return;
+            }
+            close();
+            this.listener.disconnected();
+        }
+    }
+
+    /**
+     * Connects again after the connection was lost and resumes the session, so nobody sees this client leave
+     * Tries every Resume.RETRY_MILLIS, up to Resume.ATTEMPTS times or until the client is closed, the server's
+     * answer tells the listener whether the session was resumed or had ended meanwhile
+     * This method runs on the listener thread
+     * @return true once connected again
+     */
+    private boolean reconnect() {
+        this.heartbeat.stop();
+        closeAll();
+        for(int attempt = 0; attempt < Resume.ATTEMPTS && !this.closed.get(); attempt++) {
+            try {
+                if(attempt > 0) {
+                    Thread.sleep(Resume.RETRY_MILLIS);
+                }
+                open(this.resumeToken, this.received);
+                if(this.closed.get()) {
+                    // closed while connecting, so nothing told the new connection
+                    logout();
+                    closeAll();
+                    return false;
+                }
+                this.reconnected = true;
+                return true;
+            } catch (IOException e) {
+                // the server is out of reach for now
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asks the server for the rest of a file being downloaded, it answers with as much of it as it serves at once
+     * @param requestId - The request id of the download
+     * @param download - The download
+     * @throws IOException - The connection was lost, the client is closed
+     */
+    private void requestRange(int requestId, Download download) throws IOException {
+        download.requestStart = download.position;
+        long remaining = download.attachment.getSize() - download.position;
+        ByteBuffer request = ByteBuffer.allocate(16 + AttachmentStore.HASH_LENGTH);
+        // ask for at least a byte, so a download that is already whole still gets its closing answer
+        request.putInt(requestId).put(download.attachment.getHash()).putLong(download.position).putInt((int) Math.max(1, Math.min(remaining, Integer.MAX_VALUE)));
+        writeFrame(ChatClient.FILE_REQUEST, request.array());
+    }
+
+    /**
+     * Writes one FILE_DATA frame to the file it belongs to, finishing or carrying on the download once its range ends
+     * This method runs on the listener thread
+     * @param requestId - The request id of the download
+     * @param offset - Where in the file the bytes go
+     * @param data - The bytes, none when the server's answer has ended
+     */
+    private void receiveRange(int requestId, long offset, ByteBuffer data) {
+        Download download = this.downloads.get(requestId);
+        if(download == null) {
+            return;
+        }
+        try {
+            if(data.hasRemaining()) {
+                while(data.hasRemaining()) {
+                    offset += download.fileChannel.write(data, offset);
+                }
+                download.position = offset;
+                return;
+            }
+            if(download.position >= download.attachment.getSize()) {
+                finishDownload(requestId, true);
+            } else if(download.position > download.requestStart) {
+                // the server stopped at its limit, ask for the next range
+                requestRange(requestId, download);
+            } else {
+                // nothing came, the server doesn't have the file
+                finishDownload(requestId, false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            finishDownload(requestId, false);
+        }
+    }
+
+    /**
+     * Ends a download, moving a whole file to its name and keeping a partial one to resume later
+     * @param requestId - The request id of the download
+     * @param complete - Whether every byte arrived
+     */
+    private void finishDownload(int requestId, boolean complete) {
+        Download download = this.downloads.remove(requestId);
+        if(download == null) {
+            return;
+        }
+        closeQuietly(download.fileChannel);
+        // only keep the name itself so a sender can't pick where the file is saved
+        File file = new File(this.downloadFolder, new File(download.attachment.getFilename()).getName());
+        if(complete) {
+            try (FileChannel fileChannel = FileChannel.open(download.part.toPath(), StandardOpenOption.READ)) {
+                if(Arrays.equals(hash(fileChannel, download.attachment.getSize()), download.attachment.getHash())) {
+                    Files.move(download.part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    // a partial file that wasn't what it seemed, start again from nothing next time
+                    download.part.delete();
+                    complete = false;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                complete = false;
+            }
+        }
+        this.listener.fileFinished(download.attachment.getTransferId(), complete ? file : download.part, complete);
+    }
+
+    /**
+     * Closes a file or a socket, ignoring errors
+     * @param closeable - The file or socket
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+    /**
+     * Hashes a file the way the server's attachment store keys it
+     * @param fileChannel - The file
+     * @param size - The size of the file
+     * @return the SHA-256 hash of the file's bytes
+     * @throws IOException - IO error while reading the file
+     */
+    private static byte[] hash(FileChannel fileChannel, long size) throws IOException {
+        MessageDigest digest = AttachmentStore.digest();
+        ByteBuffer buffer = ByteBuffer.allocate(FileRelay.CHUNK_SIZE);
+        long position = 0;
+        while(position < size) {
+            int read = fileChannel.read(buffer.clear(), position);
+            if(read < 0) {
+                throw new EOFException("the file got shorter while it was being hashed");
+            }
+            digest.update(buffer.flip());
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Decodes the rest of a payload as text
+     * @param payload - The payload, positioned at the start of the text
+     * @return the text
+     */
+    private static String decodeString(ByteBuffer payload) {
+        return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+    }
+
+    /**
+     * Creates the file an incoming transfer is saved to
+     * @param transferId - The transfer id the server gave the file
+     * @param username - The username of the sender, or null if it isn't known
+     * @param filename - The name of the file being sent
+     * @param size - The size of the file in bytes
+     */
+    private void startReceivingFile(int transferId, String username, String filename, long size) {
+        // only keep the name itself so a sender can't pick where the file is saved
+        File file = new File(this.downloadFolder, new File(filename).getName());
+        this.incomingFileNames.put(transferId, file);
+        this.incomingFileBytes.put(transferId, size);
+        this.listener.fileStarted(transferId, username, filename, size);
+        if(this.downloadFolder == null) {
+            return;
+        }
+        try {
+            this.downloadFolder.mkdirs();
+            this.incomingFiles.put(transferId, FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the file an incoming transfer was saved to
+     * @param transferId - The transfer id the server gave the file
+     * @param complete - Whether the sender finished the file, it is only complete if every byte arrived too,
+     * an incomplete file is deleted
+     */
+    private void finishReceivingFile(int transferId, boolean complete) {
+        Long missing = this.incomingFileBytes.remove(transferId);
+        complete = complete && missing != null && missing == 0;
+        FileChannel fileChannel = this.incomingFiles.remove(transferId);
+        File file = this.incomingFileNames.remove(transferId);
+        if(file == null) {
+            // never announced, nothing to finish
+            return;
+        }
+        if(fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if(!complete) {
+                file.delete();
+            }
+        }
+        this.listener.fileFinished(transferId, fileChannel != null ? file : null, complete);
+    }
+
+    /**
+     * Closes socket connection and streams
+     */
+    private void closeAll() {
+        try {
+            // close streams if they're not null
+            if(this.dataOutputStream != null) {
+                this.dataOutputStream.close();
+            }
+            if(this.dataInputStream != null) {
+                this.dataInputStream.close();
+            }
+            // close socket if it isn't null
+            if(this.socket != null) {
+                this.socket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * A file being fetched, only touched by the listener thread once its first range has been asked for
+     */
+    private static class Download {
+
+        private final Attachment attachment;
+        private final File part;
+        private final FileChannel fileChannel;
+        // bytes of the file written so far, and how many had been when the current range was asked for
+        private long position;
+        private long requestStart;
+
+        /**
+         * Creates a download
+         * @param attachment - The file being fetched
+         * @param part - Where the file is written until it is whole
+         * @param fileChannel - The open partial file
+         * @param position - The bytes the partial file already holds
+         */
+        private Download(Attachment attachment, File part, FileChannel fileChannel, long position) {
+            this.attachment = attachment;
+            this.part = part;
+            this.fileChannel = fileChannel;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package chat;
+
+import java.io.File;
+
+/**
+ * Receives what the server sends to a ChatClient
+ * Every method is called on the client's listener thread, one at a time and in the order the frames arrived
+ * Implement only the ones you need, the rest do nothing
+ */
+public interface ChatListener {
+
+    /**
+     * Called when the server announces something, like a client entering the chat
+     * @param alert - The alert text
+     */
+    default void alertReceived(String alert) {
+    }
+
+    /**
+     * Called when another client sends a text message
+     * @param text - The message
+     */
+    default void textReceived(String text) {
+    }
+
+    /**
+     * Called when another client sends a text message, with who sent it
+     * @param username - The sender's username, or null if the server didn't say or the sender has left
+     * @param text - The message
+     */
+    default void textReceived(String username, String text) {
+        textReceived(text);
+    }
+
+    /**
+     * Called when a client joins a room this client is in, including this client joining it
+     * @param room - The room name
+     * @param username - The username of the client that joined
+     */
+    default void roomJoined(String room, String username) {
+    }
+
+    /**
+     * Called when a client leaves a room this client is in, including this client leaving it
+     * @param room - The room name
+     * @param username - The username of the client that left
+     */
+    default void roomLeft(String room, String username) {
+    }
+
+    /**
+     * Called when another member of a room sends a text message to it
+     * @param room - The room name
+     * @param text - The message
+     */
+    default void roomTextReceived(String room, String text) {
+    }
+
+    /**
+     * Called when another member of a room sends a text message to it, with who sent it
+     * @param room - The room name
+     * @param username - The sender's username, or null if the server didn't say or the sender has left
+     * @param text - The message
+     */
+    default void roomTextReceived(String room, String username, String text) {
+        roomTextReceived(room, text);
+    }
+
+    /**
+     * Called when another client sends a text message to this client alone
+     * @param username - The sender's username
+     * @param text - The message
+     */
+    default void directReceived(String username, String text) {
+    }
+
+    /**
+     * Called when a direct message this client sent couldn't be delivered because nobody by that username is connected
+     * @param username - The username the message was for
+     */
+    default void userOffline(String username) {
+    }
+
+    /**
+     * Called when another client starts sending a file
+     * @param transferId - The transfer id the server gave the file
+     * @param filename - The name the sender gave the file
+     * @param size - The size of the file in bytes
+     */
+    default void fileStarted(int transferId, String filename, long size) {
+    }
+
+    /**
+     * Called when another client starts sending a file, with who sent it
+     * @param transferId - The transfer id the server gave the file
+     * @param username - The sender's username, or null if the server didn't say or the sender has left
+     * @param filename - The name the sender gave the file
+     * @param size - The size of the file in bytes
+     */
+    default void fileStarted(int transferId, String username, String filename, long size) {
+        fileStarted(transferId, filename, size);
+    }
+
+    /**
+     * Called when another client has shared a file, nothing is fetched until ChatClient.download is called
+     * Servers that keep files send these instead of pushing the file with fileStarted and fileFinished
+     * @param attachment - The file
+     */
+    default void attachmentReceived(Attachment attachment) {
+    }
+
+    /**
+     * Called when an incoming file or a download has ended
+     * @param transferId - The transfer id the server gave the file
+     * @param file - Where the file was saved, or null if the client isn't saving files
+     * @param complete - Whether every byte arrived, an incomplete pushed file has already been deleted and an
+     * incomplete download is kept where file says, so downloading it again resumes it
+     */
+    default void fileFinished(int transferId, File file, boolean complete) {
+    }
+
+    /**
+     * Called when the client has connected again by itself after losing its connection to the server
+     * @param resumed - Whether the session carried on, with the messages it missed delivered since, or the server
+     * had ended it and the client logged in afresh
+     */
+    default void reconnected(boolean resumed) {
+    }
+
+    /**
+     * Called once when the connection to the server is lost for good or closed
+     */
+    default void disconnected() {
+    }
+}
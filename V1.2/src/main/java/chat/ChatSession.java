@@ -0,0 +1,37 @@
+package chat;
+
+/**
+ * A logged in client connection, whichever server mode is serving it
+ */
+public interface ChatSession {
+
+    /**
+     * Gets the id the registry assigned to this session when it logged in
+     * @return the session id, or 0 before the session is registered
+     */
+    int getSessionId();
+
+    /**
+     * Gets the username the client logged in with
+     * @return the username
+     */
+    String getUsername();
+
+    /**
+     * Delivers an encoded frame to the client, the frame is shared with other recipients and must not be changed
+     * @param frame - The frame being delivered
+     */
+    void send(Frame frame);
+
+    /**
+     * Gets the queue of frames waiting to be written to the client
+     * @return the outbound queue
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Drops the client's connection from any thread without waiting, whoever serves the connection then ends the
+     * session unless it has been parked or resumed meanwhile
+     */
+    void disconnect();
+}
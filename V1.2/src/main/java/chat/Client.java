@@ -1,38 +1,57 @@
+package chat;
+
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
-import java.util.Base64;
-
-public class Client implements Runnable, ActionListener, FocusListener {
-
-    public static final int LOGIN = 1;
-    public static final int LOGOUT = 0;
-    public static final int TEXT = 2;
-    public static final int FILE = 3;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Swing window for the chat, everything to do with the server is handled by a ChatClient
+ */
+public class Client implements Runnable, ActionListener, FocusListener, ChatListener {
+
+    // frame types, kept here as well since the server refers to them through this class
+    public static final int LOGIN = ChatClient.LOGIN;
+    public static final int LOGOUT = ChatClient.LOGOUT;
+    public static final int TEXT = ChatClient.TEXT;
+    public static final int FILE = ChatClient.FILE;
+    public static final int FILE_CHUNK = ChatClient.FILE_CHUNK;
+    public static final int FILE_END = ChatClient.FILE_END;
+    public static final int FILE_ACK = ChatClient.FILE_ACK;
+    public static final int JOIN = ChatClient.JOIN;
+    public static final int LEAVE = ChatClient.LEAVE;
+    public static final int ROOM_TEXT = ChatClient.ROOM_TEXT;
+    public static final int CAPABILITIES = ChatClient.CAPABILITIES;
+    public static final int HEARTBEAT = ChatClient.HEARTBEAT;
+    public static final int SESSIONS = ChatClient.SESSIONS;
+    public static final int DIRECT = ChatClient.DIRECT;
+    public static final int OFFLINE = ChatClient.OFFLINE;
+    public static final int FILE_OFFER = ChatClient.FILE_OFFER;
+    public static final int ATTACHMENT = ChatClient.ATTACHMENT;
+    public static final int FILE_REQUEST = ChatClient.FILE_REQUEST;
+    public static final int FILE_DATA = ChatClient.FILE_DATA;
+    public static final int RESUME = ChatClient.RESUME;
+
+    // most times a second the chat view takes in new messages, tunable with a system property
+    public static final int DEFAULT_FRAME_RATE = Integer.getInteger("chat.client.fps", 30);
 
     // class variables
-    private Socket socket;
-    private DataOutputStream dataOutputStream;
-    private DataInputStream dataInputStream;
-    private String IP;
-    private int port;
-    private String username;
+    private final String IP;
+    private final int port;
+    // created once the window is built, so it never holds a half constructed listener
+    private ChatClient chatClient;
+    // messages waiting to be shown, added from any thread and taken by the event dispatch thread
+    private final ConcurrentLinkedQueue<MessageListModel.Message> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private Timer drainTimer;
     private String textToSend = null;
     private File fileAttached = null;
-    private File fileToSend = null;
-
-    // message components
-    private int usernameLength = 0;
-    private byte[] usernameBytes;
-    private int messageLength = 0;
-    private byte[] messageBytes;
-    private int filenameLength  = 0;
-    private byte[] filenameBytes;
-    private int fileLength  = 0;
-    private byte[] fileBytes;
 
     // swing components
     private JFrame frame;
@@ -41,7 +60,8 @@ public class Client implements Runnable, ActionListener, FocusListener {
 
     // chat screen components
     private JPanel chatScreen;
-    private JPanel chatView;
+    private MessageListModel messages;
+    private JList<MessageListModel.Message> chatView;
     private JScrollPane scrollPane;
     private JButton attachButton;
     private JButton sendButton;
@@ -59,6 +79,9 @@ public class Client implements Runnable, ActionListener, FocusListener {
     private JButton connectButton;
 
     public void run() {
+        // the client calls back into this window, so it is only made once the window's constructor is done
+        this.chatClient = new ChatClient(this.IP, this.port, this);
+
         // GUI assembly
 
         // create frame
@@ -71,12 +94,33 @@ public class Client implements Runnable, ActionListener, FocusListener {
         // chat screen - where the user will be able to send and receive messages
         this.chatScreen = new JPanel();
         this.chatScreen.setLayout(null);
-        // create panel to hold sent messages
-        this.chatView = new JPanel();
-        this.chatView.setLayout(new BoxLayout(this.chatView, BoxLayout.Y_AXIS));
+        // create list to hold sent messages, it only paints the rows that are scrolled into view
+        this.messages = new MessageListModel();
+        this.chatView = new JList<>(this.messages);
+        this.chatView.setCellRenderer(new MessageRenderer());
+        // every row is as tall as the prototype, so the list never has to measure the whole history
+        this.chatView.setPrototypeCellValue(new MessageListModel.Message("server", "Prototype", false));
+        this.chatView.setFocusable(false);
+        // clicking a shared file fetches it, off the event dispatch thread
+        this.chatView.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = chatView.locationToIndex(e.getPoint());
+                Attachment attachment = index >= 0 ? messages.getElementAt(index).getAttachment() : null;
+                if(attachment != null && chatClient != null) {
+                    createTextMessageSentBy("server alert", "Downloading " + attachment.getFilename());
+                    Thread.ofVirtual().start(() -> {
+                        if(!chatClient.download(attachment)) {
+                            createTextMessageSentBy("server alert", attachment.getFilename() + " could not be downloaded");
+                        }
+                    });
+                }
+            }
+        });
         // create scroll pane so user can see all past messages and always keep scrollbar visible
         this.scrollPane = new JScrollPane(this.chatView);
         this.scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        this.scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         this.scrollPane.setBounds(10, 10, 376, 475);
         this.chatScreen.add(this.scrollPane);
         // create attach file button
@@ -183,34 +227,17 @@ public class Client implements Runnable, ActionListener, FocusListener {
         if(command.equals("connect")) {
             // user wants to connect to the group chat
 
-            // get username bytes
-
             if(!this.usernameField.getText().equals("")) {
-                this.username = this.usernameField.getText();
-                this.usernameBytes = this.username.getBytes();
-                this.usernameLength = this.usernameBytes.length;
-
                 try {
-                    this.socket = new Socket(this.IP, this.port);
-                    this.dataOutputStream = new DataOutputStream(socket.getOutputStream());
-                    this.dataInputStream = new DataInputStream(socket.getInputStream());
+                    this.chatClient.connect(this.usernameField.getText());
                     // show the chat screen
                     this.screens.show(this.mainPanel, "chatScreen");
-                    // send username length
-                    this.dataOutputStream.writeInt(this.usernameLength);
-                    // send username bytes
-                    this.dataOutputStream.write(this.usernameBytes);
-
                 } catch (IOException ex) {
+                    // stay on the connection screen so the user can try again
                     System.out.println("failed to connect");
-                    closeAll(socket, dataOutputStream, dataInputStream);
                 }
-                // start listening for messages
-                this.messageListener();
-
             }
 
-            
         } else if(command.equals("attach file")) {
             // user wants to attach file
 
@@ -248,26 +275,25 @@ public class Client implements Runnable, ActionListener, FocusListener {
             getMessageToSend();
 
             try {
-                // check if client is still connected to the server
-                if(this.socket.isConnected()) {
-                    this.dataOutputStream.writeInt(Client.TEXT);
-                    // send message length
-                    this.dataOutputStream.writeInt(this.messageLength);
-                    // send message bytes
-                    this.dataOutputStream.write(this.messageBytes);
-                    /** *
-                    // send filename length
-                    this.dataOutputStream.writeInt(this.filenameLength);
-                    // send filename bytes
-                    this.dataOutputStream.write(this.filenameBytes);
-                    // send file length
-                    this.dataOutputStream.writeInt(this.fileLength);
-                    // send file bytes
-                    this.dataOutputStream.write(Base64.getEncoder().encode(this.fileBytes));
-                    */
+                // check if client is still connected to the server and has typed a message
+                if(this.chatClient.isConnected() && this.textToSend != null) {
+                    // "@username message" goes to that user alone
+                    int space = this.textToSend.indexOf(' ');
+                    if(this.textToSend.startsWith("@") && space > 1) {
+                        this.chatClient.sendDirect(this.textToSend.substring(1, space), this.textToSend.substring(space + 1));
+                    } else {
+                        this.chatClient.sendText(this.textToSend);
+                    }
                 }
             } catch (IOException ioe) {
-                closeAll(this.socket, this.dataOutputStream, this.dataInputStream);
+                // the connection was lost, the client reconnects by itself or disconnected() reports it
+            }
+
+            // stream the attached file in the background so a big file doesn't freeze the window
+            if(this.fileAttached != null && this.chatClient.isConnected()) {
+                File file = this.fileAttached;
+                createFileMessageSentBy("me", file.getName());
+                new Thread(() -> this.chatClient.sendFile(file), "file-sender").start();
             }
 
             // prepare the GUI to receieve the user's next message
@@ -278,89 +304,16 @@ public class Client implements Runnable, ActionListener, FocusListener {
 
     /**
      * Creates a new client
-     * @param socket - The socket used for communicating with the server
-     * @param username - The client's username
+     * @param IP - The server's address
+     * @param port - The server's port
      */
     public Client(String IP, int port) {
         this.IP = IP;
         this.port = port;
-        
-    }
-
-    /**
-     * Method to listen to incoming messages and process them
-     */
-    private void messageListener() {
-        // create new thread for the listener to run on
-        // otherwise we would be stuck only sending messages
-        new Thread(new Runnable() {
-            /**
-             * Run method that runs in a separate thread to listen for incoming messages
-             */
-            public void run() {
-                while(socket.isConnected()) {
-                    try {
-                        // read in first sent integer
-                        int messageType = dataInputStream.readInt();
-
-                        switch(messageType){
-                            case Client.LOGIN:
-                                int alertLength = dataInputStream.readInt();
-                                byte[] alertBytes = new byte[alertLength];
-                                dataInputStream.readFully(alertBytes, 0, alertLength);
-
-                                String alert = new String(alertBytes);
-                                createTextMessageSentBy("server alert", alert);
-
-                                break;
-                            case Client.LOGOUT:
-
-                                break;
-                            case Client.TEXT:
-
-                                break;
-                            case Client.FILE:
-
-                                break;
-                            default:
-
-                        }
-
-                       
-                    } catch (IOException e) {
-                        // close connection and break out of loop if something goes wrong
-                        closeAll(socket, dataOutputStream, dataInputStream);
-                        break;
-                    }
-                }
-                
-            }
-
-        }).start(); // actually start the thread
-    }
-
-    /**
-     * Closes socket connection and streams
-     * @param socket
-     * @param dataOutputStream
-     * @param dataInputStream
-     */
-    private void closeAll(Socket socket, DataOutputStream dataOutputStream, DataInputStream dataInputStream) {
-        try {
-            // close streams if they're not null
-            if(dataOutputStream != null) {
-                dataOutputStream.close();
-            }
-            if(dataInputStream != null) {
-                dataInputStream.close();
-            }
-            // close socket if it isn't null
-            if(socket != null) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // one-shot timer that fires on the event dispatch thread, so a burst of messages waits for one frame
+        // and is shown with a single update instead of one per message
+        this.drainTimer = new Timer(1000 / Math.max(1, DEFAULT_FRAME_RATE), e -> drainMessages());
+        this.drainTimer.setRepeats(false);
     }
 
     /**
@@ -371,69 +324,64 @@ public class Client implements Runnable, ActionListener, FocusListener {
         if(this.messageField.getText().equals("") || this.messageField.getText().equals(messageHint)) {
             // user has not typed a message
             this.textToSend = null;
-
-            // set message variables to null or 0
-            // receiver will handle this
-            this.messageBytes = new byte[0];
-            this.messageLength = 0;
         } else {
             // user has typed in an actual message
             this.textToSend = this.messageField.getText();
 
-            // get the length and bytes of the message String
-            this.messageBytes = this.textToSend.getBytes();
-            this.messageLength = this.messageBytes.length;
-
             // create a new message in the scroll pane with the message
             createTextMessageSentBy("me", this.textToSend);
         }
     }
 
-    /**
-     * Gets the file the user wants to send
-     */
-    private void getFileToSend() {
-        // get the user's file attachment
-        if(fileAttached != null) {
-            // there is a file attached
-            this.fileToSend = this.fileAttached;
+    public void alertReceived(String alert) {
+        createTextMessageSentBy("server alert", alert);
+    }
 
-            // get the length and bytes of the filename
-            this.filenameBytes = this.fileToSend.getName().getBytes();
-            this.filenameLength = this.filenameBytes.length;
+    public void textReceived(String username, String text) {
+        // older servers don't say who sent what
+        createTextMessageSentBy(username != null ? username : "server", text);
+    }
 
-            try {
-                // create a file input stream to read in our file
-                FileInputStream fileInputStream = new FileInputStream(this.fileToSend);
-
-                // set up a byte array to hold the bytes of the file
-                this.fileBytes = new byte[(int) this.fileToSend.length()];
-                // read the bytes of the file into the array using our file input stream
-                fileInputStream.read(this.fileBytes);
-                // get the length of our file (in terms of bytes)
-                this.fileLength = this.fileBytes.length;
-
-                // close the file input stream for efficiency
-                fileInputStream.close();
-
-                // create a message in the scroll panel with the file information
-                createFileMessageSentBy("me", this.fileToSend.getName());
-            } catch (FileNotFoundException e) {
-                // exception with the file input stream - didn't find the file
-                closeAll(socket, dataOutputStream, dataInputStream);
-            } catch (IOException e) {
-                closeAll(socket, dataOutputStream, dataInputStream);
-            }
+    public void directReceived(String username, String text) {
+        createTextMessageSentBy(username + " (direct)", text);
+    }
+
+    public void userOffline(String username) {
+        createTextMessageSentBy("server alert", username + " is not online");
+    }
+
+    public void fileStarted(int transferId, String username, String filename, long size) {
+        createFileMessageSentBy(username != null ? username : "server", filename);
+    }
+
+    public void attachmentReceived(Attachment attachment) {
+        String username = attachment.getUsername() != null ? attachment.getUsername() : "server";
+        // the file stays on the server until the row is clicked
+        addMessage(new MessageListModel.Message(username, attachment.getFilename(), true, attachment));
+    }
+
+    public void fileFinished(int transferId, File file, boolean complete) {
+        if(file == null) {
+            // the file wasn't saved
+            return;
+        }
+        if(complete) {
+            createTextMessageSentBy("server alert", "Saved " + file.getName() + " to " + file.getParentFile());
         } else {
-            // set all variables relating to sending a file to be null or 0
-            // receiver will work this out on their end
-            this.filenameBytes = new byte[0];
-            this.filenameLength = 0;
-            this.fileBytes = new byte[0];
-            this.fileLength = 0;
+            createTextMessageSentBy("server alert", file.getName() + " was not fully received");
         }
     }
 
+    public void reconnected(boolean resumed) {
+        if(!resumed) {
+            createTextMessageSentBy("server alert", "Reconnected to the server, messages sent meanwhile may be missing");
+        }
+    }
+
+    public void disconnected() {
+        createTextMessageSentBy("server alert", "Disconnected from the server");
+    }
+
     /**
      * Readies program to accept the user's next message by clearing variables associated with message info and resetting the GUI
      */
@@ -445,14 +393,6 @@ public class Client implements Runnable, ActionListener, FocusListener {
         // clear all stored information about the message
         this.textToSend = null;
         this.fileAttached = null;
-        this.fileToSend = null;
-
-        this.messageLength = 0;
-        this.messageBytes = null;
-        this.filenameLength  = 0;
-        this.filenameBytes = null;
-        this.fileLength  = 0;
-        this.fileBytes = null;
 
         // clear the message field appropriately based on what the user's cursor is focused on
         if(this.messageField.hasFocus()) {
@@ -467,72 +407,113 @@ public class Client implements Runnable, ActionListener, FocusListener {
     }
 
     /**
-     * Creates a label to hold a text message
+     * Adds a text message to the chat view
      * @param sender - The sender of the message
      * @param text - The text message being sent
      */
     private void createTextMessageSentBy(String sender, String text) {
-        // create a new panel which will hold another panel with the message
-        JPanel fileRow = new JPanel();
-        fileRow.setLayout(new BoxLayout(fileRow, BoxLayout.Y_AXIS));
-
-        // create label to hold the message
-        JLabel messageLabel = new JLabel(text);
-        messageLabel.setFont(new Font("Arial", Font.PLAIN, 15));
-        messageLabel.setBorder(new EmptyBorder(10, 10, 10, 10));
-        
-        // check who the sender of the message is
-        if(sender.equals("me")) {
-            // format client's messages on the right of the window
-            messageLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
-            fileRow.setBackground(Color.GREEN);
-        } else if(sender.equals("server")) {
-            // format other client's messages on the left of the window
-            messageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-            fileRow.setBackground(Color.LIGHT_GRAY);
-        } else if(sender.equals("server alert")) {
-            // center incoming connection/disconnection messages
-            messageLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-        }
-        
-        // add the label to the scroll panel
-        fileRow.add(messageLabel);
-        chatView.add(fileRow);
-        // refresh the scroll panel to show the new message
-        frame.validate();
+        addMessage(new MessageListModel.Message(sender, text, false));
     }
 
     /**
-     * Creates a label to hold a file message
+     * Adds a file message to the chat view
      * @param sender - The sender of the message
      * @param filename - The name of the file being sent
      */
     private void createFileMessageSentBy(String sender, String filename) {
-        // create a new panel which will hold another panel with the filename
-        JPanel fileRow = new JPanel();
-        fileRow.setLayout(new BoxLayout(fileRow, BoxLayout.Y_AXIS));
-
-        // create label to hold filename
-        JLabel messageLabel = new JLabel(filename);
-        messageLabel.setFont(new Font("Arial", Font.BOLD, 15));
-        messageLabel.setBorder(new EmptyBorder(10, 10, 10, 10));
-        
-        // check who the sender of the message is
-        if(sender.equals("me")) {
-            // format client's messages on the right of the window
-            messageLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
-            fileRow.setBackground(Color.GREEN);
-        } else if(sender.equals("server")) {
-            // format other client's messages on the left of the window 
-            messageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-            fileRow.setBackground(Color.LIGHT_GRAY);
+        addMessage(new MessageListModel.Message(sender, filename, true));
+    }
+
+    /**
+     * Queues a message for the chat view, may be called from any thread
+     * @param message - The message
+     */
+    private void addMessage(MessageListModel.Message message) {
+        this.pendingMessages.add(message);
+        // only one drain needs to be pending at a time, it takes everything queued until it runs
+        if(this.drainScheduled.compareAndSet(false, true)) {
+            this.drainTimer.start();
         }
+    }
 
-        // add the label to the scroll panel
-        fileRow.add(messageLabel);
-        chatView.add(fileRow);
-        // refresh the scroll panel to show the new message
-        frame.validate();
+    /**
+     * Moves every queued message into the chat view at once, following them if the user was reading the
+     * newest messages
+     * This method runs on the event dispatch thread
+     */
+    private void drainMessages() {
+        // clear the flag first so a message queued while draining schedules the next frame
+        this.drainScheduled.set(false);
+        List<MessageListModel.Message> batch = new ArrayList<>();
+        MessageListModel.Message message;
+        while((message = this.pendingMessages.poll()) != null) {
+            batch.add(message);
+        }
+        if(batch.isEmpty()) {
+            return;
+        }
+
+        // check whether the view is scrolled to the bottom before the list grows
+        JScrollBar scrollBar = this.scrollPane.getVerticalScrollBar();
+        boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+
+        this.messages.addAll(batch);
+        if(atBottom) {
+            // keep showing the newest message, otherwise leave the user where they scrolled to
+            this.chatView.ensureIndexIsVisible(this.messages.getSize() - 1);
+        }
+    }
+
+    /**
+     * Draws every row of the chat view with the same panel and label, formatted for the message's sender
+     */
+    private static class MessageRenderer extends JPanel implements ListCellRenderer<MessageListModel.Message> {
+
+        // a JPanel is Serializable, the renderer is never written out
+        private static final long serialVersionUID = 1L;
+
+        private final JLabel messageLabel = new JLabel();
+        private final Font textFont = new Font("Arial", Font.PLAIN, 15);
+        private final Font fileFont = new Font("Arial", Font.BOLD, 15);
+        private final Color alertBackground;
+
+        /**
+         * Creates the renderer
+         */
+        private MessageRenderer() {
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+            this.messageLabel.setBorder(new EmptyBorder(10, 10, 10, 10));
+            add(this.messageLabel);
+            this.alertBackground = getBackground();
+        }
+
+        public Component getListCellRendererComponent(JList<? extends MessageListModel.Message> list, MessageListModel.Message message, int index, boolean isSelected, boolean cellHasFocus) {
+            String sender = message.getSender();
+            String text = message.getText();
+            // check who the sender of the message is
+            if(sender.equals("me")) {
+                // format client's messages on the right of the window
+                this.messageLabel.setAlignmentX(Component.RIGHT_ALIGNMENT);
+                setBackground(Color.GREEN);
+            } else if(sender.equals("server alert")) {
+                // center incoming connection/disconnection messages
+                this.messageLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+                setBackground(this.alertBackground);
+            } else {
+                // format other client's messages on the left of the window, with their name when the server sent it
+                if(!sender.equals("server")) {
+                    text = sender + ": " + text;
+                }
+                this.messageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+                setBackground(Color.LIGHT_GRAY);
+            }
+
+            this.messageLabel.setText(text);
+            this.messageLabel.setFont(message.isFile() ? this.fileFont : this.textFont);
+            // rows are one line, the whole text shows when hovering over a cut off message
+            setToolTipText(text);
+            return this;
+        }
     }
 
     /**
@@ -543,7 +524,7 @@ public class Client implements Runnable, ActionListener, FocusListener {
      */
     public static void main(String[] args) throws UnknownHostException, IOException {
         // create socket to connect to group chat
-        Client gui = new Client("localhost", 9999);
+        Client gui = new Client("localhost", Server.PORT);
 
         // create an instance of our program and start it in event thread
         SwingUtilities.invokeLater(gui);
@@ -0,0 +1,494 @@
+package chat;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Group chat client handler that manages communication with clients
+ * @author Alexander Domilescu
+ */
+public class ClientHandler implements Runnable, ChatSession {
+
+    // class variables
+    public static final ClientRegistry<ClientHandler> clientHandlers = new ClientRegistry<>();
+    public static final RoomIndex<ClientHandler> rooms = new RoomIndex<>();
+    // recent text messages, replayed to every client as it logs in
+    public static final HistoryRing history = new HistoryRing();
+    // other server nodes, everything this node's clients send to the group is relayed to them
+    public static final Federation<ClientHandler> federation = new Federation<>(clientHandlers, rooms, history);
+    // sessions whose connection was lost, kept for a while so their client can resume them
+    public static final Resume<ClientHandler> resumes = new Resume<>(clientHandlers, rooms, history, federation);
+    static {
+        rooms.setFederation(federation);
+    }
+    private static final Metrics metrics = Metrics.get();
+    // durable record of the messages relayed, or null
+    private static final MessageLog messageLog = MessageLog.getDefault();
+    private Socket socket;
+    private DataOutputStream dataOutputStream;
+    private DataInputStream dataInputStream;
+    private String clientUsername;
+    private int sessionId;
+    // frames waiting for this client, only the writer thread ever writes to the socket
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    // files this client is sending, kept in the attachment store on the way, only used by the reader thread
+    private final FileRelay fileRelay = new FileRelay(AttachmentStore.getDefault());
+    // hands back the credit for this client's chunks as fast as the recipients take them, made at login
+    private FilePacer<ClientHandler> filePacer;
+    // decodes this client's frames into one reused buffer, only used by the reader thread
+    private final FrameCodec frameCodec = new FrameCodec();
+    // whether this client negotiated compressed frames, set before the handler is registered
+    private boolean compression = false;
+    // whether this client negotiated session ids in frame types, set before the handler is registered
+    private boolean sessionIds = false;
+    // whether this client fetches files from the attachment store instead of having them pushed, set before the handler is registered
+    private boolean attachments = false;
+    // drops the client once nothing has arrived from it for the idle timeout
+    private final Heartbeat heartbeat = new Heartbeat(this::timedOut);
+    // set when the client stopped reading, so its session ends for good instead of being parked
+    private volatile boolean stalled = false;
+
+    /**
+     * Creates a new client handler object to manage communication with one client
+     * @param socket - The socket created by the server after connecting to a client
+     */
+    public ClientHandler(Socket socket) {
+        try {
+            this.socket = socket;
+            if(Tls.ENABLED) {
+                // the handshake happens on the handler's thread once it runs, not on the accept loop
+                this.socket = Tls.wrap(socket, false);
+            }
+
+            // frames are coalesced in the stream buffers and flushed in batches, so don't let Nagle delay them again
+            socket.setTcpNoDelay(true);
+            // clients that don't send heartbeats are only found dead by the operating system's keepalive probes
+            socket.setKeepAlive(true);
+
+            // initialize buffered input and output streams so each readInt and writeInt isn't its own system call
+            this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), Frame.STREAM_BUFFER_SIZE));
+            this.dataInputStream = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), Frame.STREAM_BUFFER_SIZE));
+        } catch (IOException e) {
+            // not registered anywhere yet, so there is only the socket to close, run then returns straight away
+            closeQuietly(this.socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Reads the username the client sends after connecting and announces the client to the group
+     * Runs on the handler's own thread so a slow client never holds up the server's accept loop
+     * @throws IOException - IO error while reading the username
+     */
+    private void login() throws IOException {
+        // read in the client username, the codec rejects a length over the limit before reading it
+        this.clientUsername = this.frameCodec.readLogin(dataInputStream);
+        // a client resuming a parked session takes over its session id and username, otherwise it logs in afresh
+        ByteBuffer resumeLogin = this.frameCodec.resumeLogin();
+        Resume.Parked<ClientHandler> parked = resumeLogin != null ? resumes.claim(resumeLogin) : null;
+        if(parked != null) {
+            this.clientUsername = parked.getUsername();
+        }
+        // every frame this client causes carries its session id
+        this.sessionId = parked != null ? parked.getSessionId() : clientHandlers.nextSessionId();
+        if(this.sessionId == 0) {
+            throw new IOException("every session id is taken");
+        }
+        this.fileRelay.setSender(this.sessionId);
+        this.filePacer = new FilePacer<>(this, clientHandlers, federation);
+
+        int accepted = 0;
+        int requested = this.frameCodec.capabilities();
+        if(requested != 0) {
+            // answer before anything else is queued, so the client knows how the frames after it may come
+            accepted = Compression.accept(requested) | Heartbeat.accept(requested) | Presence.accept(requested) | AttachmentStore.accept(requested) | Resume.accept(requested);
+            if(parked != null) {
+                accepted |= Resume.RESUMING;
+            }
+            this.compression = (accepted & Compression.COMPRESSION) != 0;
+            this.sessionIds = (accepted & Presence.SESSION_IDS) != 0;
+            this.attachments = (accepted & AttachmentStore.ATTACHMENTS) != 0;
+            send(Compression.capabilities(accepted, this.sessionId));
+        }
+        if((accepted & Heartbeat.HEARTBEATS) == 0) {
+            // an older client may stay quiet for as long as it likes, only the login had to arrive in time
+            this.heartbeat.stop();
+        }
+
+        Map<Integer, String> others = this.sessionIds ? federation.remoteSessions() : null;
+        if(parked != null) {
+            // back in its old place and caught up on what it missed, nobody saw it leave so nobody is told
+            resumes.rejoin(this, parked, others);
+            return;
+        }
+
+        // add current client handler to the registry of connected clients, tell it who is already here if it
+        // keeps a table of session ids, and catch it up on recent messages
+        if((accepted & Resume.RESUME) != 0) {
+            resumes.join(this, others);
+        } else {
+            clientHandlers.join(this, history, others);
+        }
+
+        // send out a connection message to all clients about who has connected
+        broadcastLogin();
+    }
+
+    public int getSessionId() {
+        return this.sessionId;
+    }
+
+    public String getUsername() {
+        return this.clientUsername;
+    }
+
+    /**
+     * Gets the queue of frames waiting to be written to this client
+     * @return the outbound queue, for its depth and drop counters
+     */
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+
+    /**
+     * Method to listen for incoming messages from connected client
+     * This method runs on a separate thread
+     */
+    public void run() {
+        if(this.dataInputStream == null) {
+            // the constructor couldn't set up the connection and closed it already
+            return;
+        }
+
+        // start the writer on the same kind of thread as this reader
+        Thread.Builder writerBuilder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform();
+        writerBuilder.name(Thread.currentThread().getName() + "-writer").start(this::writeFrames);
+
+        // client will send information regarding their username after connecting, within the idle timeout
+        this.heartbeat.start();
+        try {
+            if(this.socket instanceof SSLSocket sslSocket) {
+                // the handshake has to finish within the same timeout
+                Tls.handshake(sslSocket);
+            }
+            login();
+        } catch (IOException e) {
+            closeAll(socket, dataOutputStream, dataInputStream);
+            return;
+        }
+
+        // listen for messages while client is connected
+        while(socket.isConnected()) {
+            try {
+                // every frame is [type][payload length][payload], the codec checks the length against the
+                // type's limits and reads the payload into its reused buffer
+                int type = this.frameCodec.readFrame(dataInputStream);
+                ByteBuffer payload = this.frameCodec.payload();
+                this.heartbeat.touch();
+                // time from a whole frame having been decoded to it being handed to its recipients
+                long decoded = System.nanoTime();
+                metrics.frameIn(type, this.frameCodec.frameLength());
+                switch(type){
+                    case Client.TEXT:
+                        // encode the relayed frame straight from the payload buffer
+                        this.broadcastText(payload);
+                        break;
+                    case Client.FILE:
+                        // relay the announcement of a new file transfer
+                        int announcedId = payload.getInt(0);
+                        Frame announcement = this.fileRelay.start(payload);
+                        if(announcement != null) {
+                            relay(announcement);
+                            // let the sender start streaming
+                            send(FileRelay.credit(announcedId, FileRelay.WINDOW));
+                        }
+                        break;
+                    case Client.FILE_OFFER:
+                        // a file offered by its hash, only uploaded if the store doesn't have it yet
+                        int offeredId = payload.getInt(0);
+                        Frame offered = this.fileRelay.offer(payload);
+                        if(offered != null) {
+                            relay(offered);
+                            if(this.fileRelay.isStored(offeredId)) {
+                                // tell the client not to send the chunks, then relay them from the store
+                                send(FileRelay.credit(offeredId, FileRelay.STORED));
+                                // the chunks come from the store as the recipients take them, not all at once on this thread
+                                this.filePacer.replay(this.fileRelay.replay(offeredId), this::relay);
+                            } else {
+                                send(FileRelay.credit(offeredId, FileRelay.WINDOW));
+                            }
+                        }
+                        break;
+                    case Client.FILE_CHUNK:
+                        // file chunks are relayed one at a time, never a whole file
+                        int transferId = payload.getInt();
+                        Frame chunk = this.fileRelay.chunk(transferId, payload);
+                        if(chunk != null) {
+                            if(this.compression && !this.frameCodec.wasCompressed()) {
+                                // the sender chose not to compress this file, it won't shrink here either
+                                chunk.keepUncompressed();
+                            }
+                            relay(chunk);
+                            // the sender may send another chunk once the recipients have room for it
+                            this.filePacer.relayed(transferId);
+                        }
+                        break;
+                    case Client.FILE_END:
+                        for(Frame endFrame : this.fileRelay.end(payload.getInt(), payload.get())) {
+                            relay(endFrame);
+                        }
+                        break;
+                    case Client.FILE_REQUEST:
+                        // a range of a stored file, for this client alone
+                        FileRelay.serve(AttachmentStore.getDefault(), payload, this);
+                        break;
+                    case Client.JOIN:
+                        rooms.join(this, payload);
+                        break;
+                    case Client.LEAVE:
+                        rooms.leave(this, payload);
+                        break;
+                    case Client.ROOM_TEXT:
+                        // only the members of the room are visited, not every connected client
+                        rooms.send(this, payload);
+                        break;
+                    case Client.DIRECT:
+                        // one index lookup finds the recipient, nobody else is visited
+                        Direct.send(this, payload, clientHandlers, federation);
+                        break;
+                    case Client.HEARTBEAT:
+                        // answer, so the client knows the server is still there too
+                        send(Heartbeat.FRAME);
+                        break;
+                    case Client.LOGOUT:
+                        // the client is leaving, end the session for good
+                        endSession(false);
+                        return;
+                    default:
+                        // the codec only lets through types it knows, anything else clients may send is ignored
+                        break;
+                }
+                metrics.handleNanos.recordSince(decoded);
+                if(messageLog != null) {
+                    // the log never drops a message, so this client isn't read from while its writer is a whole queue behind
+                    messageLog.awaitRoom();
+                }
+
+                // a burst of buffered frames never makes a virtual thread block on the socket, so give the
+                // writers this frame was queued for a turn on the carrier before decoding the next one
+                if(Thread.currentThread().isVirtual() && dataInputStream.available() > 0) {
+                    Thread.yield();
+                }
+            } catch (IOException e) {
+                if(e instanceof ProtocolException) {
+                    metrics.protocolErrors.increment();
+                }
+                endSession(true);
+                break;
+            }
+        }
+        
+    }
+
+    /**
+     * Ends the session after the client logged out or its connection was lost
+     * This method runs on the reader thread
+     * @param lost - Whether the connection was lost, so a client that can resume the session gets the chance
+     */
+    private void endSession(boolean lost) {
+        // tell the receivers that any file this client was sending won't be finished
+        this.filePacer.close();
+        for(Frame endFrame : this.fileRelay.abortAll()) {
+            relay(endFrame);
+        }
+        if(lost && !this.stalled && resumes.park(this)) {
+            // out of the group but still in its rooms, without anyone being told
+            closeAll(socket, dataOutputStream, dataInputStream);
+            return;
+        }
+        resumes.forget(this);
+        // a session another connection resumed is out of the group already, and its rooms are the new one's
+        if(clientHandlers.remove(this)) {
+            // leave from the reader thread, so it can't race a join that is still being handled
+            rooms.leaveAll(this);
+            broadcastLogout();
+        }
+        closeAll(socket, dataOutputStream, dataInputStream);
+    }
+
+    /**
+     * Drops the client's connection for a new connection that resumed its session
+     * Only closes the socket, the reader thread then finds the session gone from the group and leaves it be
+     */
+    public void disconnect() {
+        closeSocket();
+    }
+
+    /**
+     * Drops a client that has sent nothing for the idle timeout
+     * Only closes the socket, so the wheel's thread never waits on the client, the reader thread then ends the session
+     */
+    private void timedOut() {
+        metrics.idleTimeouts.increment();
+        closeSocket();
+    }
+
+    /**
+     * Closes the socket without ending the session, which the reader thread does once its read fails
+     */
+    private void closeSocket() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Method to broadcast a text message to all other connected clients
+     * @param text - The text being broadcasted, only valid until the next frame is read
+     */
+    private void broadcastText(ByteBuffer text) {
+        // encode the frame once and record it, the sender already shows its own message
+        Frame frame = Frame.encode(Client.TEXT, this.sessionId, text);
+        history.publish(frame, clientHandlers, this);
+        federation.forward(frame);
+    }
+
+    /**
+     * Sends a frame from this client to all other clients on this node and on every other node
+     * @param frame - The frame being relayed
+     */
+    private void relay(Frame frame) {
+        clientHandlers.broadcast(frame, this);
+        federation.forward(frame);
+    }
+
+    /**
+     * Method to tell all remaining clients that this client has left the chat
+     */
+    private void broadcastLogout() {
+        // encode the alert once and send the same bytes to everyone still connected
+        Frame frame = Presence.logout(this.sessionId, this.clientUsername);
+        clientHandlers.announce(frame);
+        federation.forward(frame);
+    }
+
+    /**
+     * Method to tell all connected clients that this client has entered the chat
+     */
+    private void broadcastLogin(){
+        // encode the alert once and send the same bytes to all connected clients
+        Frame frame = Presence.login(this.sessionId, this.clientUsername);
+        clientHandlers.announce(frame);
+        federation.forward(frame);
+    }
+
+    /**
+     * Queues one frame for this handler's client, the caller never waits on the client's socket
+     * @param frame - The frame being sent
+     */
+    public void send(Frame frame) {
+        if(this.attachments ? FileRelay.isPushed(frame) : frame.getType() == Client.ATTACHMENT) {
+            // a client that fetches files only hears about them once they're stored, older clients get them pushed
+            return;
+        }
+        if(!this.sessionIds) {
+            // an older client gets frames without senders, and nothing it wouldn't understand
+            frame = frame.anonymous();
+            if(frame == null) {
+                return;
+            }
+        }
+        if(this.compression) {
+            // the first compressing recipient of a broadcast compresses it, the rest reuse those bytes
+            frame = frame.compressed();
+        }
+        if(!this.outboundQueue.offer(frame)) {
+            // the client has stopped reading for longer than the stall timeout. Only the queue and the socket are
+            // closed here: the writer is blocked in a write holding the stream, and this may be a broadcast holding
+            // the history lock, so the reader thread ends the session once its read fails
+            this.stalled = true;
+            this.outboundQueue.close();
+            closeSocket();
+        }
+    }
+
+    /**
+     * Writes queued frames to the client until the connection closes
+     * Everything queued while the last batch was being written goes out together with one flush
+     * This method runs on the handler's writer thread
+     */
+    private void writeFrames() {
+        try {
+            List<Frame> batch = new ArrayList<>();
+            Frame frame;
+            while((frame = this.outboundQueue.take()) != null) {
+                batch.add(frame);
+                this.outboundQueue.drainTo(batch);
+                long start = System.nanoTime();
+                for(Frame queued : batch) {
+                    queued.writeTo(this.dataOutputStream);
+                    metrics.frameOut(queued.getType(), queued.length());
+                }
+                batch.clear();
+                // end of batch, send everything buffered in as few segments as possible
+                this.dataOutputStream.flush();
+                metrics.writeNanos.recordSince(start);
+                this.outboundQueue.markProgress();
+            }
+        } catch (IOException | InterruptedException e) {
+            // only close the socket, the reader thread then ends the session and may park it
+            closeSocket();
+        }
+    }
+
+    /**
+     * Method to remove client handler
+     */
+    private void removeClientHandler() {
+        this.heartbeat.stop();
+        // only a client that made it into the group is announced, and only once however the session ended
+        if(clientHandlers.remove(this)) {
+            broadcastLogout();
+        }
+    }
+
+    /**
+     * Method to close connection to client and close streams
+     * @param socket - The socket being closed
+     * @param dataOutputStream - The data output stream being closed
+     * @param dataInputStream - The data input stream being closed
+     */
+    private void closeAll(Socket socket, DataOutputStream dataOutputStream, DataInputStream dataInputStream) {
+        // remove client from group and stop its writer
+        removeClientHandler();
+        this.outboundQueue.close();
+        // close the socket first, so closing the output stream can't wait on a writer blocked in a socket write
+        closeQuietly(socket);
+        // what the streams still buffer can't be sent anymore, closing them only frees them
+        closeQuietly(dataOutputStream);
+        closeQuietly(dataInputStream);
+    }
+
+    /**
+     * Closes a socket or stream if it isn't null, ignoring errors
+     * @param closeable - The socket or stream
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if(closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+    
+}
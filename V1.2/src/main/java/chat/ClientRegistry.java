@@ -0,0 +1,312 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Registry of logged in sessions that handler threads can join, leave and broadcast over at the same time
+ * Sessions are kept in a concurrent map keyed by session id, so joins and leaves are O(1) and never wait on a broadcast
+ * A second map indexes them by username, so one session can be found without visiting the others. A username shared
+ * by several sessions keeps all of them, so when one leaves the name still finds another
+ * Broadcasts iterate an immutable snapshot that is only rebuilt after membership changes, so they never wait on joins
+ * or leaves and never see a ConcurrentModificationException
+ * The outbound queues of registered sessions report to the registry's backlog, so the sessions that are behind can be
+ * found without visiting the others
+ * Session ids fit in the 16 bits frames carry them in, and are handed out round robin so a freed id is only
+ * reused after every other one has been
+ * @param <S> - The type of session being registered
+ */
+public class ClientRegistry<S extends ChatSession> implements Iterable<S> {
+
+    // fan-out time and deliveries of every broadcast, rooms included
+    private static final Metrics metrics = Metrics.get();
+    // largest session id, the most sessions one server can have at once
+    public static final int MAX_SESSION_ID = (1 << (32 - Frame.SENDER_SHIFT)) - 1;
+
+    // class variables
+    private final ConcurrentHashMap<Integer, S> sessions = new ConcurrentHashMap<>();
+    // the same sessions by username, oldest login first, a username shared by several sessions finds the one that
+    // logged in last of those still here. The lists are never changed, only replaced
+    private final ConcurrentHashMap<String, List<S>> usernames = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionId = new AtomicInteger();
+    // ids handed out and not yet freed, by sessions here and by sessions on other nodes
+    private final Set<Integer> usedSessionIds = ConcurrentHashMap.newKeySet();
+    // held while presence alerts go out, so a new member learns about every other session exactly once
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private final AtomicInteger count = new AtomicInteger();
+    // bumped by every join and leave, a snapshot built at an older version is out of date
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot<S>> snapshot = new AtomicReference<>(new Snapshot<>(0, List.of()));
+    // the registered sessions whose queues have a pushed file's worth of frames waiting
+    private final Backlog backlog = new Backlog(FilePacer.MAX_BACKLOG);
+
+    /**
+     * Hands out a session id that no one else holds
+     * @return the new session id, or 0 if every id is taken
+     */
+    public int nextSessionId() {
+        for(int tries = 0; tries < MAX_SESSION_ID; tries++) {
+            int sessionId = Math.floorMod(this.nextSessionId.getAndIncrement(), MAX_SESSION_ID) + 1;
+            if(this.usedSessionIds.add(sessionId)) {
+                return sessionId;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Frees a session id that was handed out but never used by a registered session, or whose session has gone
+     * Removing a registered session frees its id already
+     * @param sessionId - The session id
+     */
+    public void releaseSessionId(int sessionId) {
+        this.usedSessionIds.remove(sessionId);
+    }
+
+    /**
+     * Adds a session to the registry
+     * @param session - The session being added, it must already have its session id
+     */
+    public void add(S session) {
+        if(this.sessions.putIfAbsent(session.getSessionId(), session) == null) {
+            this.usernames.compute(session.getUsername(), (username, named) -> with(named, session));
+            session.getOutboundQueue().track(this.backlog);
+            this.count.incrementAndGet();
+            this.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a session from the registry, removing a session twice has no effect
+     * @param session - The session being removed
+     * @return true if the session was registered
+     */
+    public boolean remove(S session) {
+        if(this.sessions.remove(session.getSessionId(), session)) {
+            // the username finds the other sessions using it, if any
+            this.usernames.computeIfPresent(session.getUsername(), (username, named) -> without(named, session));
+            session.getOutboundQueue().track(null);
+            this.count.decrementAndGet();
+            this.version.incrementAndGet();
+            releaseSessionId(session.getSessionId());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a session from the registry but keeps its id, for a session that may come back under it
+     * @param session - The session being removed
+     * @return true if the session was registered
+     */
+    public boolean detach(S session) {
+        if(this.sessions.remove(session.getSessionId(), session)) {
+            this.usernames.computeIfPresent(session.getUsername(), (username, named) -> without(named, session));
+            session.getOutboundQueue().track(null);
+            this.count.decrementAndGet();
+            this.version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a session through a history join, first sending it the sessions already here if it uses session ids
+     * No presence alert goes out in between, so every other session is either in the list or alerted after the join
+     * @param session - The session joining, it must already have its session id
+     * @param history - The history the session is caught up with
+     * @param others - Sessions on other nodes by session id, or null if the session doesn't use session ids
+     */
+    public void join(S session, HistoryRing history, Map<Integer, String> others) {
+        join(session, others, () -> history.join(session, this, null));
+    }
+
+    /**
+     * Adds a session through a history join, first sending it the sessions already here if it uses session ids
+     * @param session - The session joining, it must already have its session id
+     * @param others - Sessions on other nodes by session id, or null if the session doesn't use session ids
+     * @param historyJoin - Adds the session to this registry through a history, returning where in it the session is
+     * @return what historyJoin returned
+     */
+    public long join(S session, Map<Integer, String> others, LongSupplier historyJoin) {
+        this.presenceLock.lock();
+        try {
+            if(others != null) {
+                // the list comes before the history, so the senders of recorded messages already have names
+                Map<Integer, String> present = new HashMap<>(others);
+                for(S member : snapshot()) {
+                    present.put(member.getSessionId(), member.getUsername());
+                }
+                for(Frame frame : Presence.sessions(present)) {
+                    session.send(frame);
+                }
+            }
+            return historyJoin.getAsLong();
+        } finally {
+            this.presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Delivers a LOGIN, LOGOUT or SESSIONS frame to every registered session, never in the middle of a join
+     * @param frame - The presence frame
+     */
+    public void announce(Frame frame) {
+        this.presenceLock.lock();
+        try {
+            broadcast(frame, null);
+        } finally {
+            this.presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Finds a session by its id
+     * @param sessionId - The id of the session
+     * @return the session, or null if no session with that id is registered
+     */
+    public S get(int sessionId) {
+        return this.sessions.get(sessionId);
+    }
+
+    /**
+     * Finds a session by its username
+     * @param username - The username of the session
+     * @return the session that logged in last with that username, or null if no session with it is registered
+     */
+    public S find(String username) {
+        List<S> named = this.usernames.get(username);
+        return named != null ? named.get(named.size() - 1) : null;
+    }
+
+    /**
+     * Gets the registered sessions that are behind
+     * @return the backlog their outbound queues report to
+     */
+    public Backlog backlog() {
+        return this.backlog;
+    }
+
+    /**
+     * Gets the number of registered sessions
+     * @return the exact number of sessions added and not yet removed
+     */
+    public int size() {
+        return this.count.get();
+    }
+
+    /**
+     * Gets an immutable view of the registered sessions for broadcasting
+     * @return the sessions registered at about the time of the call
+     */
+    public List<S> snapshot() {
+        Snapshot<S> current = this.snapshot.get();
+        // read the version before copying, so the copy holds at least every change up to that version
+        long latest = this.version.get();
+        if(current.version == latest) {
+            return current.sessions;
+        }
+        Snapshot<S> rebuilt = new Snapshot<>(latest, List.copyOf(this.sessions.values()));
+        // never replace a snapshot another thread built at a newer version
+        this.snapshot.accumulateAndGet(rebuilt, (a, b) -> a.version >= b.version ? a : b);
+        return rebuilt.sessions;
+    }
+
+    /**
+     * Delivers one frame to every registered session except the one given
+     * The frame is encoded once by the caller and the same bytes go to every recipient
+     * @param frame - The frame being delivered
+     * @param exclude - The session that should not receive the frame, or null
+     */
+    public void broadcast(Frame frame, S exclude) {
+        broadcast(frame, exclude, null);
+    }
+
+    /**
+     * Delivers one frame to every registered session except the one given and those a filter skips
+     * @param frame - The frame being delivered
+     * @param exclude - The session that should not receive the frame, or null
+     * @param skip - Tells which other sessions should not receive the frame, or null
+     */
+    public void broadcast(Frame frame, S exclude, Predicate<? super S> skip) {
+        long start = System.nanoTime();
+        int delivered = 0;
+        for(S session : snapshot()) {
+            if(session != exclude && (skip == null || !skip.test(session))) {
+                session.send(frame);
+                delivered++;
+            }
+        }
+        metrics.deliveries.add(delivered);
+        metrics.broadcastNanos.recordSince(start);
+    }
+
+    /**
+     * Copies a username's sessions with one more
+     * @param named - The sessions with the username, or null if there are none
+     * @param session - The session logging in with it
+     * @param <S> - The type of session
+     * @return the sessions, the new one last
+     */
+    private static <S> List<S> with(List<S> named, S session) {
+        if(named == null) {
+            return List.of(session);
+        }
+        List<S> copy = new ArrayList<>(named.size() + 1);
+        copy.addAll(named);
+        copy.add(session);
+        return List.copyOf(copy);
+    }
+
+    /**
+     * Copies a username's sessions without one of them
+     * @param named - The sessions with the username
+     * @param session - The session leaving
+     * @param <S> - The type of session
+     * @return the other sessions, or null if there are none so the username is dropped
+     */
+    private static <S> List<S> without(List<S> named, S session) {
+        List<S> copy = new ArrayList<>(named);
+        copy.remove(session);
+        return copy.isEmpty() ? null : List.copyOf(copy);
+    }
+
+    /**
+     * Iterates over a snapshot of the registered sessions
+     * @return an iterator over the current snapshot
+     */
+    public Iterator<S> iterator() {
+        return snapshot().iterator();
+    }
+
+    /**
+     * An immutable copy of the registered sessions and the version it was built at
+     * @param <S> - The type of session
+     */
+    private static class Snapshot<S> {
+
+        private final long version;
+        private final List<S> sessions;
+
+        /**
+         * Creates a new snapshot
+         * @param version - The registry version the copy was built at
+         * @param sessions - The copied sessions
+         */
+        private Snapshot(long version, List<S> sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+}
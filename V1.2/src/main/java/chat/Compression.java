@@ -0,0 +1,183 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame payload compression, used between the server and clients that asked for it when logging in
+ * A client sets the COMPRESSION bit in the top half of its username length, a server that agrees answers with a
+ * CAPABILITIES frame before anything else, and from then on either side may send a compressible frame with
+ * FLAG set in its type and a payload of [uncompressed length][zlib data]
+ * Every frame is compressed on its own with a preset dictionary of common chat words, so short messages still
+ * shrink and one compressed frame can go to every recipient that negotiated compression
+ * Frames under the threshold, frames that wouldn't get smaller and frame types other than text and file chunks
+ * are always sent as they are
+ */
+public class Compression {
+
+    // capability bit in the login handshake and the CAPABILITIES frame
+    public static final int COMPRESSION = 1;
+    // bit set in the type of a compressed frame
+    public static final int FLAG = 0x100;
+
+    // defaults, tunable with system properties
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+    public static final int THRESHOLD = Integer.getInteger("chat.compress.minBytes", 128);
+    // file types that are compressed already, their chunks are sent as they are
+    public static final Set<String> SKIPPED_EXTENSIONS = new HashSet<>(Arrays.asList(System.getProperty("chat.compress.skip",
+            "zip,gz,tgz,bz2,xz,zst,7z,rar,jar,war,apk,docx,xlsx,pptx,odt,png,jpg,jpeg,gif,webp,heic,mp3,m4a,aac,ogg,flac,mp4,m4v,mkv,mov,avi,webm").split(",")));
+
+    // words and phrases that show up in most chat messages, both sides prime every stream with them
+    // the most common ones go last, zlib finds matches near the end of the dictionary with the shortest codes
+    private static final byte[] DICTIONARY = ("https://www. .com/ .org/ .html .png .jpg .pdf .txt .log "
+            + "Exception at java. Caused by: ERROR WARN INFO DEBUG null true false "
+            + "tomorrow tonight today yesterday meeting everyone someone anyone something anything "
+            + "please thanks thank you sorry maybe probably actually really already "
+            + "because would could should there their they them then than what when where which "
+            + "about after again also back been before being from have here just know like "
+            + "make more need only other over right said some still take that this time want well "
+            + "will with your you're it's don't can't I'm I'll let's okay yeah yes no lol "
+            + "has entered the chat! has left the chat! the and for are but not you all any can "
+            + "had her was one our out day get has him his how man new now old see two way who ").getBytes();
+
+    // zlib streams keep tens of kilobytes of native memory, so a few are shared rather than one per connection
+    private static final int MAX_POOLED = 16;
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Works out which of the capabilities a client asked for the server agrees to
+     * @param requested - The capability bits sent with the username
+     * @return the capability bits both sides will use
+     */
+    public static int accept(int requested) {
+        return ENABLED ? requested & COMPRESSION : 0;
+    }
+
+    /**
+     * Encodes the server's answer to the capabilities a client asked for
+     * @param accepted - The capability bits both sides will use
+     * @param sessionId - The client's own session id, only seen by clients that use session ids
+     * @return the CAPABILITIES frame
+     */
+    public static Frame capabilities(int accepted, int sessionId) {
+        return Frame.encode(Client.CAPABILITIES, sessionId, ByteBuffer.allocate(4).putInt(accepted).array());
+    }
+
+    /**
+     * Checks whether a frame type may be sent compressed
+     * @param type - The frame type, without FLAG
+     * @return true for text, direct messages and file chunks
+     */
+    public static boolean isCompressible(int type) {
+        return type == Client.TEXT || type == Client.ROOM_TEXT || type == Client.DIRECT || type == Client.FILE_CHUNK;
+    }
+
+    /**
+     * Checks whether a file's chunks are worth compressing
+     * @param filename - The name of the file
+     * @return false for file types that are compressed already
+     */
+    public static boolean isCompressible(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot < 0 || !SKIPPED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compresses a payload
+     * @param type - The frame type, without FLAG
+     * @param payload - The bytes holding the payload
+     * @param offset - Where the payload starts
+     * @param length - The payload length
+     * @return [uncompressed length][zlib data], or null if the frame should be sent as it is
+     */
+    public static byte[] deflate(int type, byte[] payload, int offset, int length) {
+        if(!isCompressible(type) || length < THRESHOLD) {
+            return null;
+        }
+        Deflater deflater = deflaters.poll();
+        if(deflater == null) {
+            // with the dictionary the fastest level compresses chat text almost as well as the default one
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload, offset, length);
+            deflater.finish();
+            // only worth sending if it saves something, so never write more than the original
+            byte[] compressed = new byte[length];
+            ByteBuffer.wrap(compressed).putInt(length);
+            int compressedLength = 4;
+            while(!deflater.finished() && compressedLength < compressed.length) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            return deflater.finished() && compressedLength < length ? Arrays.copyOf(compressed, compressedLength) : null;
+        } finally {
+            deflater.reset();
+            release(deflaters, deflater);
+        }
+    }
+
+    /**
+     * Decompresses a payload received with FLAG set in its type
+     * @param compressed - [uncompressed length][zlib data], from its position to its limit
+     * @param into - Where the payload is decompressed to, at least as long as the uncompressed length
+     * @param length - The uncompressed length, already read from the front of the payload and checked
+     * @throws ProtocolException - The data is corrupt or doesn't decompress to the length it claims
+     */
+    public static void inflate(ByteBuffer compressed, byte[] into, int length) throws ProtocolException {
+        Inflater inflater = inflaters.poll();
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(compressed.slice(compressed.position() + 4, compressed.remaining() - 4));
+            int inflated = 0;
+            while(inflated < length) {
+                int count = inflater.inflate(into, inflated, length - inflated);
+                if(count == 0) {
+                    if(!inflater.needsDictionary()) {
+                        // finished early or ran out of input
+                        break;
+                    }
+                    inflater.setDictionary(DICTIONARY);
+                }
+                inflated += count;
+            }
+            // the stream has to end exactly at the length it claimed, output past it could be a decompression bomb
+            boolean overflow = !inflater.finished() && inflater.inflate(new byte[1]) > 0;
+            if(inflated != length || overflow || !inflater.finished()) {
+                throw new ProtocolException("compressed payload doesn't match its length " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("corrupt compressed payload: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            release(inflaters, inflater);
+        }
+    }
+
+    /**
+     * Returns a zlib stream to its pool, or frees it if the pool is full
+     * @param pool - The pool
+     * @param stream - The Deflater or Inflater, already reset
+     * @param <T> - The type of stream
+     */
+    private static <T> void release(ConcurrentLinkedQueue<T> pool, T stream) {
+        if(pool.size() < MAX_POOLED) {
+            pool.add(stream);
+        } else if(stream instanceof Deflater deflater) {
+            deflater.end();
+        } else if(stream instanceof Inflater inflater) {
+            inflater.end();
+        }
+    }
+}
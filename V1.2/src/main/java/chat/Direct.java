@@ -0,0 +1,118 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Direct messages, delivered to the one session with a username instead of to everyone
+ * A client sends DIRECT [username length][username][text] naming who the message is for, and the server finds the
+ * recipient in the registry's username index, so a message costs the same however many sessions are connected.
+ * The recipient gets DIRECT [username length][username][text] naming who it is from, with the sender's session id
+ * in the type like every other frame. If nobody by that name is on this node or a linked one, the sender gets
+ * OFFLINE [username] straight back
+ * Between nodes a DIRECT frame keeps the form the client sent it in, and only goes over the link to the recipient's node
+ * When the server keeps a MessageLog, every node a direct message passes through records it in that form too, so the
+ * record names the recipient and its session id is the sender's
+ */
+public class Direct {
+
+    private static final Metrics metrics = Metrics.get();
+    // durable record of direct messages, or null
+    private static final MessageLog log = MessageLog.getDefault();
+
+    /**
+     * Delivers a DIRECT frame from one of this node's clients, or tells the client its recipient is offline
+     * @param sender - The session sending
+     * @param payload - The DIRECT payload sent by the client
+     * @param sessions - The sessions on this node
+     * @param federation - The federation of this node, for recipients on other nodes
+     * @param <S> - The type of session
+     * @throws ProtocolException - The username is malformed
+     */
+    public static <S extends ChatSession> void send(S sender, ByteBuffer payload, ClientRegistry<S> sessions, Federation<S> federation) throws ProtocolException {
+        int start = payload.position();
+        String username = readUsername(payload);
+        record(sender.getSessionId(), payload.duplicate().position(start));
+        S recipient = sessions.find(username);
+        if(recipient != null) {
+            recipient.send(encode(sender.getSessionId(), sender.getUsername(), payload));
+            return;
+        }
+        // not here, relay it as it was sent to the node the recipient is on, if any
+        if(federation.forwardDirect(username, Frame.encode(Client.DIRECT, sender.getSessionId(), payload.position(start)))) {
+            return;
+        }
+        metrics.directOffline.increment();
+        sender.send(offline(username));
+    }
+
+    /**
+     * Delivers a DIRECT frame relayed by another node to its recipient on this node
+     * @param sessions - The sessions on this node
+     * @param sender - This node's session id for the sender
+     * @param senderUsername - The sender's username
+     * @param payload - The DIRECT payload as the sender's client sent it
+     * @param <S> - The type of session
+     * @throws ProtocolException - The username is malformed
+     */
+    public static <S extends ChatSession> void deliver(ClientRegistry<S> sessions, int sender, String senderUsername, ByteBuffer payload) throws ProtocolException {
+        int start = payload.position();
+        String username = readUsername(payload);
+        record(sender, payload.duplicate().position(start));
+        S recipient = sessions.find(username);
+        if(recipient != null) {
+            recipient.send(encode(sender, senderUsername, payload));
+        }
+        // otherwise the recipient left while the message was on its way
+    }
+
+    /**
+     * Records a direct message in the message log, if the server keeps one
+     * @param sender - The session id of the client sending
+     * @param payload - The DIRECT payload as the sender's client sent it, from its position to its limit
+     */
+    private static void record(int sender, ByteBuffer payload) {
+        if(log != null) {
+            log.append(Frame.encode(Client.DIRECT, sender, payload), sender);
+        }
+    }
+
+    /**
+     * Reads the username at the start of a DIRECT or OFFLINE payload
+     * @param payload - The payload, positioned at the username length, left positioned at the text
+     * @return the username
+     * @throws ProtocolException - The username is empty, too long or longer than the payload
+     */
+    public static String readUsername(ByteBuffer payload) throws ProtocolException {
+        int length = payload.getInt();
+        if(length < 1 || length > FrameCodec.MAX_USERNAME_LENGTH || length > payload.remaining()) {
+            throw new ProtocolException("bad username length " + length);
+        }
+        byte[] usernameBytes = new byte[length];
+        payload.get(usernameBytes);
+        return new String(usernameBytes);
+    }
+
+    /**
+     * Encodes a DIRECT frame
+     * @param sender - The session id of the client sending, or 0
+     * @param username - The username the frame names, the recipient from a client and the sender from the server
+     * @param text - The message, from its position to its limit
+     * @return the encoded frame
+     */
+    public static Frame encode(int sender, String username, ByteBuffer text) {
+        byte[] usernameBytes = username.getBytes();
+        ByteBuffer payload = ByteBuffer.allocate(4 + usernameBytes.length + text.remaining());
+        payload.putInt(usernameBytes.length).put(usernameBytes).put(text);
+        return Frame.encode(Client.DIRECT, sender, payload.array());
+    }
+
+    /**
+     * Encodes the answer to a DIRECT frame whose recipient isn't connected
+     * @param username - The recipient's username
+     * @return the OFFLINE frame
+     */
+    public static Frame offline(String username) {
+        return Frame.encode(Client.OFFLINE, username.getBytes());
+    }
+}
@@ -0,0 +1,773 @@
+package chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Links server processes into one chat, every node relays what its own clients send to every other node
+ * Nodes form a full mesh: each node listens for peers on its node port and dials the peers it is given, and
+ * when two nodes dial each other both keep the link dialed by the node with the smaller id
+ * A message is sent once over each link from the node its sender is connected to, and a node never passes on
+ * what it received from a peer, so nothing loops. Every message carries its origin node and a per-origin
+ * sequence number, and anything at or below the last sequence seen from that origin is dropped as a duplicate
+ * Each link has its own bounded queue and writer: a peer that stops reading is cut off once the queue is full
+ * and its writes have stalled, without holding up local clients or the other links, and is dialed again
+ * Link frames are PEER frames, [origin node][sequence][the relayed frame], the relayed frame compressed if
+ * compression is on, and encoded once for every link
+ * Session ids only mean something on the node that handed them out, so each node gives the sessions of other
+ * nodes ids of its own as it hears about them, from LOGIN frames and from the list of sessions a peer sends when
+ * a link opens, and forgets them again when they log out or their node's link drops
+ * Files relayed by a peer are kept in this node's attachment store as their chunks arrive, so that by the time
+ * the ATTACHMENT frame for a file arrives this node's clients can fetch it from here
+ * @param <S> - The type of session on this node
+ */
+public class Federation<S extends ChatSession> {
+
+    // defaults, tunable with system properties, federation is off unless a node port or peers are set
+    public static final int DEFAULT_PORT = Integer.getInteger("chat.node.port", -1);
+    public static final String DEFAULT_PEERS = System.getProperty("chat.node.peers", "");
+    public static final int LINK_CAPACITY = Integer.getInteger("chat.node.queue", 64 * 1024);
+    public static final long LINK_STALL_MILLIS = Long.getLong("chat.node.stallMillis", 10_000);
+    public static final long RETRY_MILLIS = Long.getLong("chat.node.retryMillis", 2_000);
+
+    // frame type used between nodes only, never sent to a client
+    public static final int PEER = 32;
+    // first thing each side of a link sends, followed by its node id
+    private static final int MAGIC = 0x43484154;
+
+    // class variables
+    private final ClientRegistry<S> sessions;
+    private final RoomIndex<S> rooms;
+    private final HistoryRing history;
+    // random per process, so a restarted node starts a fresh sequence under a new id
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    // live links by the node id at the other end
+    private final ConcurrentHashMap<Long, PeerLink> links = new ConcurrentHashMap<>();
+    // highest sequence delivered from each origin node
+    private final ConcurrentHashMap<Long, Long> lastSequences = new ConcurrentHashMap<>();
+    // this node's ids for the sessions of each origin node by their ids there, and their usernames by this node's ids
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Integer, Integer>> remoteIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, String> remoteUsernames = new ConcurrentHashMap<>();
+    // the nodes those sessions are on by username, for direct messages, one entry per session and the newest last,
+    // so a username used on several nodes still finds one after a session using it leaves. Replaced, never changed
+    private final ConcurrentHashMap<String, List<Long>> remoteNodes = new ConcurrentHashMap<>();
+    // files being relayed by each origin node by transfer id, as they are written to the store
+    private final ConcurrentHashMap<Long, Map<Integer, AttachmentStore.Upload>> uploads = new ConcurrentHashMap<>();
+    // the links that are behind, file chunks are paced by them like by this node's clients
+    private final Backlog linkBacklog = new Backlog(FilePacer.MAX_BACKLOG);
+    // numbering and queueing a message happen together, so every link gets every origin's messages in order
+    private final ReentrantLock forwardLock = new ReentrantLock();
+    private long nextSequence = 0;
+    private ServerSocket serverSocket;
+
+    // counters
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * Creates the federation of one node, it does nothing until it is started
+     * @param sessions - The sessions connected to this node
+     * @param rooms - The rooms of this node
+     * @param history - The history of the main chat on this node
+     */
+    public Federation(ClientRegistry<S> sessions, RoomIndex<S> rooms, HistoryRing history) {
+        this.sessions = sessions;
+        this.rooms = rooms;
+        this.history = history;
+    }
+
+    /**
+     * Starts with the configured node port and peers, if any are set
+     * @return true if federation was started
+     * @throws IOException - The node port could not be bound
+     */
+    public boolean startDefault() throws IOException {
+        if(DEFAULT_PORT <= 0 && DEFAULT_PEERS.isBlank()) {
+            return false;
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for(String peer : DEFAULT_PEERS.split(",")) {
+            if(!peer.isBlank()) {
+                int colon = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+        }
+        start(DEFAULT_PORT, peers);
+        return true;
+    }
+
+    /**
+     * Starts listening for peers and dialing the given ones
+     * @param port - The port other nodes dial, or 0 or less to only dial out
+     * @param peers - The nodes to dial, dialed again whenever their link drops
+     * @throws IOException - The port could not be bound
+     */
+    public void start(int port, List<InetSocketAddress> peers) throws IOException {
+        Metrics metrics = Metrics.get();
+        metrics.gauge("federation.links", this.links::size);
+        metrics.gauge("federation.frames.out", this.framesOut::sum);
+        metrics.gauge("federation.frames.in", this.framesIn::sum);
+        metrics.gauge("federation.duplicates", this.duplicates::sum);
+        metrics.gauge("federation.queued", () -> {
+            long queued = 0;
+            for(PeerLink link : this.links.values()) {
+                queued += link.outboundQueue.depth();
+            }
+            return queued;
+        });
+
+        if(port > 0) {
+            this.serverSocket = new ServerSocket(port);
+            Thread.ofPlatform().daemon().name("peer-acceptor").start(this::acceptPeers);
+        }
+        for(InetSocketAddress peer : peers) {
+            Thread.ofPlatform().daemon().name("peer-dialer-" + peer.getHostString() + ":" + peer.getPort()).start(() -> dial(peer));
+        }
+    }
+
+    /**
+     * Gets this node's id
+     * @return the id other nodes know this process by
+     */
+    public long getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * Gets the sessions on other nodes this node knows about
+     * @return usernames by this node's session ids for them, a live view
+     */
+    public Map<Integer, String> remoteSessions() {
+        return this.remoteUsernames;
+    }
+
+    /**
+     * Gets the number of nodes this node is linked to
+     * @return the number of live links
+     */
+    public int linkCount() {
+        return this.links.size();
+    }
+
+    /**
+     * Gets the links whose queues have a pushed file's worth of frames waiting
+     * @return the backlog the link queues report to
+     */
+    public Backlog backlog() {
+        return this.linkBacklog;
+    }
+
+    /**
+     * Relays a frame that came from one of this node's clients to every other node
+     * Frames received from peers must never be forwarded
+     * @param frame - The frame as it was fanned out to this node's clients
+     */
+    public void forward(Frame frame) {
+        if(this.links.isEmpty()) {
+            return;
+        }
+        // compress the relayed frame once, then encode the envelope once for every link
+        Frame relayed = Compression.ENABLED ? frame.compressed() : frame;
+        this.forwardLock.lock();
+        try {
+            Frame envelope = envelope(relayed);
+            // the envelope's type is PEER, the links are told whether it carries part of a file
+            boolean pushed = FileRelay.isPushed(frame);
+            for(PeerLink link : this.links.values()) {
+                link.send(envelope, pushed);
+            }
+        } finally {
+            this.forwardLock.unlock();
+        }
+    }
+
+    /**
+     * Relays a DIRECT frame from one of this node's clients to the node its recipient is on, and no other
+     * @param username - The recipient's username
+     * @param frame - The DIRECT frame as the client sent it, with its sender
+     * @return true if the recipient is on a linked node, false if nobody knows them
+     */
+    public boolean forwardDirect(String username, Frame frame) {
+        List<Long> nodes = this.remoteNodes.get(username);
+        PeerLink link = nodes != null ? this.links.get(nodes.get(nodes.size() - 1)) : null;
+        if(link == null) {
+            return false;
+        }
+        Frame relayed = Compression.ENABLED ? frame.compressed() : frame;
+        this.forwardLock.lock();
+        try {
+            // the other links never see this sequence number, which is fine as only repeats are dropped
+            link.send(envelope(relayed), false);
+        } finally {
+            this.forwardLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a new link the sessions of this node's clients, so the peer knows the senders of what comes next
+     * @param link - The link, just registered
+     */
+    private void sendSessions(PeerLink link) {
+        this.forwardLock.lock();
+        try {
+            Map<Integer, String> present = new HashMap<>();
+            for(S session : this.sessions) {
+                present.put(session.getSessionId(), session.getUsername());
+            }
+            for(Frame frame : Presence.sessions(present)) {
+                link.send(envelope(frame), false);
+            }
+        } finally {
+            this.forwardLock.unlock();
+        }
+    }
+
+    /**
+     * Wraps a frame in a PEER frame with the next sequence number, must be called holding the forward lock
+     * @param relayed - The frame being relayed
+     * @return the PEER frame
+     */
+    private Frame envelope(Frame relayed) {
+        byte[] bytes = new byte[Frame.HEADER_LENGTH + 16 + relayed.length()];
+        ByteBuffer.wrap(bytes).putInt(PEER).putInt(16 + relayed.length()).putLong(this.nodeId).putLong(++this.nextSequence).put(relayed.buffer());
+        return Frame.wrap(bytes);
+    }
+
+    /**
+     * Accepts links from other nodes until the node port is closed
+     * This method runs on the acceptor thread
+     */
+    private void acceptPeers() {
+        try {
+            while(!this.serverSocket.isClosed()) {
+                Socket socket = this.serverSocket.accept();
+                Thread.ofPlatform().daemon().name("peer-link-" + socket.getRemoteSocketAddress()).start(() -> {
+                    PeerLink link = new PeerLink(socket, false);
+                    if(link.open()) {
+                        link.read();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.out.println("STOPPED ACCEPTING PEERS: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps a link to one peer open, dialing it again after it drops
+     * This method runs on the peer's dialer thread
+     * @param address - Where the peer listens for nodes
+     */
+    private void dial(InetSocketAddress address) {
+        // the node id found at the address, so a link the peer dialed to us isn't dialed again
+        long knownPeer = 0;
+        while(true) {
+            if(knownPeer == this.nodeId) {
+                // the address is this node
+                return;
+            }
+            if(knownPeer == 0 || !this.links.containsKey(knownPeer)) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(address, (int) RETRY_MILLIS);
+                    PeerLink link = new PeerLink(socket, true);
+                    boolean opened = link.open();
+                    knownPeer = link.peerId;
+                    if(opened) {
+                        link.read();
+                    }
+                } catch (IOException e) {
+                    // not up yet, or gone for a restart
+                }
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds a link that finished its handshake, settling which link to keep if there is one to the same node
+     * @param link - The new link
+     * @return true if the new link is kept
+     */
+    private boolean register(PeerLink link) {
+        synchronized(this.links) {
+            PeerLink existing = this.links.get(link.peerId);
+            if(existing != null) {
+                // both nodes see the same two links, and both keep the one dialed by the node with the smaller id
+                // a node dialing the same peer again means its old link is dead, so the new one wins
+                if(link.dialerId() > existing.dialerId()) {
+                    return false;
+                }
+                existing.close();
+            }
+            this.links.put(link.peerId, link);
+            return true;
+        }
+    }
+
+    /**
+     * Checks a relayed message against the last one delivered from the same origin
+     * @param origin - The node the message came from first
+     * @param sequence - Its sequence number at that node
+     * @return true if it hasn't been delivered before
+     */
+    private boolean firstSeen(long origin, long sequence) {
+        boolean[] first = new boolean[1];
+        this.lastSequences.compute(origin, (id, last) -> {
+            first[0] = last == null || sequence > last;
+            return first[0] ? sequence : last;
+        });
+        return first[0];
+    }
+
+    /**
+     * Fans a frame relayed by a peer out to this node's clients, the same way the frame's origin did
+     * @param origin - The node the frame came from
+     * @param type - The frame type
+     * @param sender - The session id of the client behind the frame, as the origin knows it
+     * @param payload - The payload
+     * @throws ProtocolException - A room or SESSIONS frame is malformed
+     * @throws InterruptedIOException - The reader thread was interrupted while waiting for slow recipients
+     */
+    private void deliver(long origin, int type, int sender, ByteBuffer payload) throws IOException {
+        if(type == Client.LOGIN || type == Client.LOGOUT || type == Client.SESSIONS) {
+            deliverPresence(origin, type, sender, payload);
+            return;
+        }
+        Map<Integer, Integer> originIds = this.remoteIds.get(origin);
+        Integer localId = originIds != null ? originIds.get(sender) : null;
+        if(type == Client.DIRECT) {
+            // only sent here because the recipient is on this node, dropped if the sender has gone already
+            String senderUsername = localId != null ? this.remoteUsernames.get(localId) : null;
+            if(senderUsername != null) {
+                Direct.deliver(this.sessions, localId, senderUsername, payload);
+            }
+            return;
+        }
+        Frame frame = Frame.encode(type, localId != null ? localId : 0, payload);
+        switch(type) {
+            case Client.TEXT:
+                // recorded in this node's history too, so clients joining here see it
+                this.history.publish(frame, this.sessions, null);
+                break;
+            case Client.FILE:
+            case Client.FILE_CHUNK:
+            case Client.FILE_END:
+                store(origin, type, payload.duplicate());
+                // pushed frames go past a full queue, so wait for this node's clients to catch up instead of queueing
+                // the whole file. The link backs up meanwhile and the sender's node holds back the sender's credit
+                awaitRecipients();
+                this.sessions.broadcast(frame, null);
+                break;
+            case Client.ATTACHMENT:
+                this.sessions.broadcast(frame, null);
+                break;
+            case Client.JOIN:
+            case Client.LEAVE:
+            case Client.ROOM_TEXT:
+                this.rooms.deliver(frame, payload);
+                break;
+            default:
+                // nothing else is relayed between nodes
+                break;
+        }
+    }
+
+    /**
+     * Waits until none of this node's clients that are still reading has MAX_BACKLOG frames or more waiting
+     * This method runs on a link's reader thread
+     * @throws InterruptedIOException - The reader thread was interrupted while waiting
+     */
+    private void awaitRecipients() throws InterruptedIOException {
+        try {
+            while(!this.sessions.backlog().isClear(null)) {
+                Thread.sleep(FilePacer.RETRY_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for slow recipients");
+        }
+    }
+
+    /**
+     * Keeps a file relayed by a peer in this node's attachment store
+     * Only the link from the origin node delivers its frames, so each origin's uploads are only used by one thread
+     * @param origin - The node the file came from
+     * @param type - FILE, FILE_CHUNK or FILE_END
+     * @param payload - The frame's payload
+     */
+    private void store(long origin, int type, ByteBuffer payload) {
+        AttachmentStore store = AttachmentStore.getDefault();
+        if(store == null) {
+            return;
+        }
+        Map<Integer, AttachmentStore.Upload> originUploads = this.uploads.computeIfAbsent(origin, id -> new HashMap<>());
+        int transferId = payload.getInt();
+        try {
+            if(type == Client.FILE) {
+                originUploads.put(transferId, store.upload());
+                return;
+            }
+            AttachmentStore.Upload upload = type == Client.FILE_END ? originUploads.remove(transferId) : originUploads.get(transferId);
+            if(upload == null) {
+                return;
+            }
+            if(type == Client.FILE_CHUNK) {
+                upload.write(payload);
+            } else if(payload.get() == FileRelay.COMPLETE) {
+                upload.commit(null);
+            } else {
+                upload.abort();
+            }
+        } catch (IOException e) {
+            // stop keeping this file, this node's older clients still get it pushed
+            e.printStackTrace();
+            AttachmentStore.Upload upload = originUploads.remove(transferId);
+            if(upload != null) {
+                upload.abort();
+            }
+        }
+    }
+
+    /**
+     * Learns or forgets sessions of another node and tells this node's clients under this node's ids for them
+     * @param origin - The node the frame came from
+     * @param type - LOGIN, LOGOUT or SESSIONS
+     * @param sender - The session id the frame is about, as the origin knows it
+     * @param payload - The username, or the list of sessions
+     * @throws ProtocolException - A SESSIONS frame is malformed
+     */
+    private void deliverPresence(long origin, int type, int sender, ByteBuffer payload) throws ProtocolException {
+        if(sender == 0 && type != Client.SESSIONS) {
+            // an alert about no session in particular, passed on as it is
+            this.sessions.announce(Frame.encode(type, payload));
+            return;
+        }
+        // ids that have gone are only freed once every client has been told
+        List<Integer> released = new ArrayList<>();
+        if(type == Client.SESSIONS) {
+            Map<Integer, String> listed = new HashMap<>();
+            Presence.readSessions(payload, listed);
+            Map<Integer, String> local = new HashMap<>();
+            for(Map.Entry<Integer, String> session : listed.entrySet()) {
+                int localId = session.getValue().isEmpty() ? forgetRemote(origin, session.getKey()) : learnRemote(origin, session.getKey(), session.getValue());
+                if(localId != 0) {
+                    local.put(localId, session.getValue());
+                    if(session.getValue().isEmpty()) {
+                        released.add(localId);
+                    }
+                }
+            }
+            for(Frame frame : Presence.sessions(local)) {
+                this.sessions.announce(frame);
+            }
+        } else {
+            String username = new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            if(type == Client.LOGIN) {
+                this.sessions.announce(Presence.login(learnRemote(origin, sender, username), username));
+            } else {
+                int localId = forgetRemote(origin, sender);
+                this.sessions.announce(Presence.logout(localId, username));
+                released.add(localId);
+            }
+        }
+        for(int localId : released) {
+            this.sessions.releaseSessionId(localId);
+        }
+    }
+
+    /**
+     * Gives a session of another node an id on this node, or updates the one it has
+     * @param origin - The session's node
+     * @param remoteId - Its session id there
+     * @param username - Its username
+     * @return its id on this node, or 0 if every id is taken
+     */
+    private int learnRemote(long origin, int remoteId, String username) {
+        Map<Integer, Integer> originIds = this.remoteIds.computeIfAbsent(origin, id -> new ConcurrentHashMap<>());
+        Integer localId = originIds.get(remoteId);
+        if(localId == null) {
+            localId = this.sessions.nextSessionId();
+            if(localId == 0) {
+                return 0;
+            }
+            originIds.put(remoteId, localId);
+        }
+        String previous = this.remoteUsernames.put(localId, username);
+        if(!username.equals(previous)) {
+            if(previous != null) {
+                forgetNodeOf(previous, origin);
+            }
+            this.remoteNodes.compute(username, (name, nodes) -> {
+                List<Long> copy = nodes != null ? new ArrayList<>(nodes) : new ArrayList<>();
+                copy.add(origin);
+                return List.copyOf(copy);
+            });
+        }
+        return localId;
+    }
+
+    /**
+     * Forgets a session of another node, its id on this node is freed by the caller
+     * @param origin - The session's node
+     * @param remoteId - Its session id there
+     * @return the id it had on this node, or 0 if it wasn't known
+     */
+    private int forgetRemote(long origin, int remoteId) {
+        Map<Integer, Integer> originIds = this.remoteIds.get(origin);
+        Integer localId = originIds != null ? originIds.remove(remoteId) : null;
+        if(localId == null) {
+            return 0;
+        }
+        forgetUsername(origin, localId);
+        return localId;
+    }
+
+    /**
+     * Forgets every session of a node whose link has dropped, telling this node's clients without an alert
+     * @param origin - The node
+     */
+    private void forgetNode(long origin) {
+        Map<Integer, Integer> originIds = this.remoteIds.remove(origin);
+        if(originIds == null || originIds.isEmpty()) {
+            return;
+        }
+        Map<Integer, String> gone = new HashMap<>();
+        for(int localId : originIds.values()) {
+            forgetUsername(origin, localId);
+            gone.put(localId, "");
+        }
+        for(Frame frame : Presence.sessions(gone)) {
+            this.sessions.announce(frame);
+        }
+        for(int localId : gone.keySet()) {
+            this.sessions.releaseSessionId(localId);
+        }
+    }
+
+    /**
+     * Forgets the username of a session of another node
+     * @param origin - The session's node
+     * @param localId - Its id on this node
+     */
+    private void forgetUsername(long origin, int localId) {
+        String username = this.remoteUsernames.remove(localId);
+        if(username != null) {
+            forgetNodeOf(username, origin);
+        }
+    }
+
+    /**
+     * Forgets one session's entry for its node under its username, the username still finds the node of any other
+     * session using it
+     * @param username - The session's username
+     * @param origin - The session's node
+     */
+    private void forgetNodeOf(String username, long origin) {
+        this.remoteNodes.computeIfPresent(username, (name, nodes) -> {
+            List<Long> copy = new ArrayList<>(nodes);
+            copy.remove(Long.valueOf(origin));
+            return copy.isEmpty() ? null : List.copyOf(copy);
+        });
+    }
+
+    /**
+     * One link to another node, with its own outbound queue and writer thread
+     */
+    private class PeerLink {
+
+        private Socket socket;
+        private final boolean dialed;
+        private long peerId;
+        private DataOutputStream dataOutputStream;
+        private DataInputStream dataInputStream;
+        private final OutboundQueue outboundQueue = new OutboundQueue(LINK_CAPACITY, OutboundQueue.Policy.DISCONNECT, LINK_STALL_MILLIS);
+        // decodes PEER frames, and separately the frames inside them
+        private final FrameCodec frameCodec = new FrameCodec();
+        private final FrameCodec relayedCodec = new FrameCodec();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * Creates a link over a connected socket
+         * @param socket - The socket
+         * @param dialed - Whether this node dialed the link
+         */
+        private PeerLink(Socket socket, boolean dialed) {
+            this.socket = socket;
+            this.dialed = dialed;
+            this.outboundQueue.track(linkBacklog);
+            // a PEER frame holds the largest frame a client may send, plus its origin and sequence
+            this.frameCodec.setLimits(PEER, 16 + Frame.HEADER_LENGTH, 16 + this.relayedCodec.maxFrameLength());
+            // relayed frames carry the session ids of the origin's clients
+            this.relayedCodec.setSenders(true);
+        }
+
+        /**
+         * Exchanges node ids, registers the link and starts its writer
+         * @return true if the link is open and should be read
+         */
+        private boolean open() {
+            try {
+                this.socket.setTcpNoDelay(true);
+                // don't let something that isn't a node hold the link open without answering
+                this.socket.setSoTimeout((int) RETRY_MILLIS);
+                if(Tls.ENABLED) {
+                    // links carry every message, so they are encrypted like client connections, the dialer being the client
+                    this.socket = Tls.wrap(this.socket, this.dialed);
+                }
+                this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), Frame.STREAM_BUFFER_SIZE));
+                this.dataInputStream = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), Frame.STREAM_BUFFER_SIZE));
+                this.dataOutputStream.writeInt(MAGIC);
+                this.dataOutputStream.writeLong(nodeId);
+                this.dataOutputStream.flush();
+
+                if(this.dataInputStream.readInt() != MAGIC) {
+                    throw new ProtocolException("not a chat node");
+                }
+                this.peerId = this.dataInputStream.readLong();
+                this.socket.setSoTimeout(0);
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+
+            if(this.peerId == nodeId || !register(this)) {
+                close();
+                return false;
+            }
+            System.out.println("LINKED TO NODE " + Long.toHexString(this.peerId));
+            Thread.ofPlatform().daemon().name("peer-writer-" + Long.toHexString(this.peerId)).start(this::writeFrames);
+            sendSessions(this);
+            return true;
+        }
+
+        /**
+         * Gets the node that dialed this link
+         * @return the id of the dialing node
+         */
+        private long dialerId() {
+            return this.dialed ? nodeId : this.peerId;
+        }
+
+        /**
+         * Queues a frame for the peer without waiting for its socket
+         * @param frame - The PEER frame
+         * @param pushed - Whether the frame carries part of a pushed file, which must not be thrown away
+         */
+        private void send(Frame frame, boolean pushed) {
+            if(!this.outboundQueue.offer(frame, pushed)) {
+                // the peer has stopped reading for longer than the stall timeout, drop the link and dial again
+                close();
+            }
+        }
+
+        /**
+         * Reads PEER frames until the link closes and delivers each new one to this node's clients
+         * This method runs on the link's reader thread
+         */
+        private void read() {
+            try {
+                while(true) {
+                    int type = this.frameCodec.readFrame(this.dataInputStream);
+                    if(type != PEER) {
+                        throw new ProtocolException("unexpected frame type " + type + " on a node link");
+                    }
+                    ByteBuffer payload = this.frameCodec.payload();
+                    long origin = payload.getLong();
+                    long sequence = payload.getLong();
+                    if(!firstSeen(origin, sequence)) {
+                        duplicates.increment();
+                        continue;
+                    }
+                    framesIn.increment();
+
+                    // the relayed frame gets the same checks as a frame from a client
+                    ByteBuffer relayed = payload.slice();
+                    if(this.relayedCodec.requiredBytes(relayed, false) != relayed.remaining()) {
+                        throw new ProtocolException("relayed frame doesn't fill its PEER frame");
+                    }
+                    int header = relayed.getInt();
+                    int relayedType = header & ((1 << Frame.SENDER_SHIFT) - 1);
+                    relayed.getInt();
+                    ByteBuffer relayedPayload = relayed.slice();
+                    if((relayedType & Compression.FLAG) != 0) {
+                        relayedType &= ~Compression.FLAG;
+                        relayedPayload = this.relayedCodec.decompress(relayedType, relayedPayload);
+                    }
+                    deliver(origin, relayedType, header >>> Frame.SENDER_SHIFT, relayedPayload);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes queued frames to the peer until the link closes, everything queued together goes in one flush
+         * This method runs on the link's writer thread
+         */
+        private void writeFrames() {
+            try {
+                List<Frame> batch = new ArrayList<>();
+                Frame frame;
+                while((frame = this.outboundQueue.take()) != null) {
+                    batch.add(frame);
+                    this.outboundQueue.drainTo(batch);
+                    for(Frame queued : batch) {
+                        queued.writeTo(this.dataOutputStream);
+                    }
+                    framesOut.add(batch.size());
+                    batch.clear();
+                    this.dataOutputStream.flush();
+                    this.outboundQueue.markProgress();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the link and forgets it, the dialer opens a new one
+         */
+        private void close() {
+            if(!this.closed.compareAndSet(false, true)) {
+                return;
+            }
+            if(links.remove(this.peerId, this)) {
+                System.out.println("LOST LINK TO NODE " + Long.toHexString(this.peerId));
+                // its sessions are heard about again from the list it sends when it is linked again
+                forgetNode(this.peerId);
+                // and the files it was relaying will never end
+                Map<Integer, AttachmentStore.Upload> originUploads = uploads.remove(this.peerId);
+                if(originUploads != null) {
+                    for(AttachmentStore.Upload upload : originUploads.values()) {
+                        upload.abort();
+                    }
+                }
+            }
+            this.outboundQueue.close();
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package chat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Hands a sending client back the credit for the file chunks it sent, but only as fast as the recipients take them
+ * Credit used to go back as soon as a chunk was queued, so a sender never slowed down for a slow recipient, whose
+ * queue then filled up and lost chunks. Now a chunk's credit is held back while any recipient on this node or any
+ * peer link has MAX_BACKLOG frames or more waiting, and checked again every RETRY_MILLIS. A recipient that has
+ * stopped reading altogether doesn't hold the sender up, its queue disconnects it after the stall timeout
+ * The queues report crossing MAX_BACKLOG to their registry's and the federation's backlogs, so a check only visits
+ * the queues that are behind, not every connection
+ * A file the store has already is replayed the same way on a virtual thread of its own, a chunk whenever the backlog
+ * allows, so neither the disk reads nor the chunks hold up the sender's reader or the event loop
+ * File frames that went on to other nodes are paced by the peer links, and each node holds up reading a link while
+ * its own recipients are behind, which backs the link up to the sender's node
+ * @param <S> - The type of session
+ */
+public class FilePacer<S extends ChatSession> {
+
+    // defaults, tunable with system properties
+    public static final int MAX_BACKLOG = Integer.getInteger("chat.file.maxBacklog", OutboundQueue.DEFAULT_CAPACITY / 2);
+    public static final long RETRY_MILLIS = Long.getLong("chat.file.retryMillis", 20);
+
+    // class variables
+    private final S sender;
+    private final ClientRegistry<S> recipients;
+    private final Federation<S> federation;
+    // chunks whose credit is being held back, by the client's transfer id
+    private final ConcurrentHashMap<Integer, Integer> held = new ConcurrentHashMap<>();
+    // set while a check is scheduled on the timer wheel
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the pacer of one sending client
+     * @param sender - The session sending files
+     * @param recipients - The sessions its files are pushed to
+     * @param federation - The federation its files are relayed through
+     */
+    public FilePacer(S sender, ClientRegistry<S> recipients, Federation<S> federation) {
+        this.sender = sender;
+        this.recipients = recipients;
+        this.federation = federation;
+    }
+
+    /**
+     * Records that a chunk was relayed, its credit goes back to the sender once the recipients have room for it
+     * @param transferId - The transfer id the sender gave the file
+     */
+    public void relayed(int transferId) {
+        this.held.merge(transferId, 1, Integer::sum);
+        release();
+    }
+
+    /**
+     * Relays a file from the store as fast as the recipients take it, ending it once the last chunk is out
+     * The replay carries on if the sender's session ends, as the file is whole already
+     * @param replay - The transfer relayed from the store
+     * @param relay - Sends a frame to the recipients the way the sender's frames are relayed
+     */
+    public void replay(FileRelay.Replay replay, Consumer<Frame> relay) {
+        Thread.startVirtualThread(() -> {
+            try {
+                Frame chunk;
+                while(waitForRoom() && (chunk = replay.next()) != null) {
+                    relay.accept(chunk);
+                }
+            } finally {
+                for(Frame end : replay.end()) {
+                    relay.accept(end);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops handing out credit, for when the sender's session ends
+     */
+    public void close() {
+        this.closed = true;
+        this.held.clear();
+    }
+
+    /**
+     * Sends the held credit if the recipients have room, or checks again later
+     * This method runs on the sender's reader thread or the timer wheel's thread
+     */
+    private void release() {
+        if(this.closed || this.held.isEmpty()) {
+            return;
+        }
+        if(!hasRoom()) {
+            if(this.waiting.compareAndSet(false, true)) {
+                Heartbeat.WHEEL.schedule(() -> {
+                    // cleared first, so credit held meanwhile is either sent below or schedules another check
+                    this.waiting.set(false);
+                    release();
+                }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        for(Integer transferId : this.held.keySet()) {
+            Integer chunks = this.held.remove(transferId);
+            if(chunks != null) {
+                this.sender.send(FileRelay.credit(transferId, chunks));
+            }
+        }
+    }
+
+    /**
+     * Waits until the recipients have room for another chunk
+     * This method runs on a replay's thread
+     * @return false if the thread was interrupted
+     */
+    private boolean waitForRoom() {
+        try {
+            while(!hasRoom()) {
+                Thread.sleep(RETRY_MILLIS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether every recipient that is still reading has fewer than MAX_BACKLOG frames waiting
+     * @return true if no other session and no peer link is behind
+     */
+    private boolean hasRoom() {
+        return this.recipients.backlog().isClear(this.sender.getOutboundQueue()) && this.federation.backlog().isClear(null);
+    }
+}
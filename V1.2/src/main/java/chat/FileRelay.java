@@ -0,0 +1,418 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side of the chunked file transfer sub-protocol for one sending client
+ * A transfer is a FILE frame ([transfer id][file size][filename]), any number of FILE_CHUNK frames
+ * ([transfer id][bytes]) and a FILE_END frame ([transfer id][status]). Each chunk is relayed as soon as it
+ * arrives, so the server never holds more than one chunk of a file. The sender may only have as many chunks
+ * in flight as the server has granted with FILE_ACK frames ([transfer id][chunks]), and FilePacer only grants more
+ * as fast as the recipients take them. Receivers check a file's size before taking it as complete
+ * With an AttachmentStore every file relayed is also kept in the store. A client that negotiated attachments
+ * announces a file with a FILE_OFFER frame ([transfer id][file size][SHA-256 hash][filename]) instead, and if
+ * the store has those bytes already the server answers with a FILE_ACK of STORED chunks and relays the file from
+ * the store itself, paced like an upload, so the client skips straight to its FILE_END
+ * Clients that negotiated attachments never get pushed the bytes at all. Once a file is in the store they get an
+ * ATTACHMENT frame ([transfer id][file size][SHA-256 hash][filename]) instead, and fetch the bytes if and when
+ * they want them with FILE_REQUEST frames ([request id][hash][offset][length]). The server answers with FILE_DATA
+ * frames ([request id][offset][bytes]) covering at most MAX_RANGE bytes of the range, always followed by a
+ * FILE_DATA frame with no bytes at the offset the answer stopped at, whether the range, the file or the server's
+ * limit ended it. FILE, FILE_CHUNK and FILE_END frames still go to older clients and other server nodes
+ * Only used by one thread at a time, the thread that reads the sending client's frames, or the nio server's file
+ * thread for the connection, which takes the store's disk reads and writes off the event loop
+ */
+public class FileRelay {
+
+    // largest number of file bytes in one FILE_CHUNK frame
+    public static final int CHUNK_SIZE = 64 * 1024;
+    // chunks a sender may have in flight before it has to wait for more credit
+    public static final int WINDOW = 16;
+    // FILE_END status values
+    public static final byte COMPLETE = 0;
+    public static final byte ABORTED = 1;
+    // FILE_ACK chunks telling the sender the server has the file already
+    public static final int STORED = -1;
+    // most bytes served for one FILE_REQUEST, so one request never floods the requester's outbound queue
+    public static final int MAX_RANGE = Integer.getInteger("chat.attachments.maxRange", WINDOW * CHUNK_SIZE);
+
+    // transfer ids seen by receivers, unique across every sender
+    // starts at a random point so ids handed out by different federated nodes don't collide in practice
+    private static final AtomicInteger nextTransferId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    // class variables
+    private final Map<Integer, Transfer> transfers = new HashMap<>();
+    // session id of the sending client, carried by every relayed frame
+    private int sender = 0;
+    // where every file relayed is kept, or null
+    private final AttachmentStore store;
+
+    /**
+     * Creates a relay that doesn't keep files
+     */
+    public FileRelay() {
+        this(null);
+    }
+
+    /**
+     * Creates a relay that keeps every file it relays
+     * @param store - The store files are kept in, or null to not keep them
+     */
+    public FileRelay(AttachmentStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Sets the session id relayed frames carry, once the sending client has logged in
+     * @param sender - The sending client's session id
+     */
+    public void setSender(int sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Starts relaying a transfer announced by a FILE frame
+     * @param payload - The FILE payload sent by the client
+     * @return the FILE frame to broadcast to the other clients, or null if the payload is malformed
+     */
+    public Frame start(ByteBuffer payload) {
+        if(payload.remaining() < 12) {
+            return null;
+        }
+        int clientTransferId = payload.getInt();
+        long size = payload.getLong();
+        return begin(clientTransferId, size, null, payload);
+    }
+
+    /**
+     * Starts relaying a transfer offered by its hash with a FILE_OFFER frame
+     * Check isStored afterwards to find out whether the client still has to send the chunks
+     * @param payload - The FILE_OFFER payload sent by the client
+     * @return the FILE frame to broadcast to the other clients, or null if the payload is malformed
+     */
+    public Frame offer(ByteBuffer payload) {
+        if(payload.remaining() < 12 + AttachmentStore.HASH_LENGTH) {
+            return null;
+        }
+        int clientTransferId = payload.getInt();
+        long size = payload.getLong();
+        byte[] hash = new byte[AttachmentStore.HASH_LENGTH];
+        payload.get(hash);
+        return begin(clientTransferId, size, hash, payload);
+    }
+
+    /**
+     * Checks whether a transfer is relayed from the store rather than uploaded
+     * @param clientTransferId - The transfer id the client used
+     * @return true if the store had the offered file
+     */
+    public boolean isStored(int clientTransferId) {
+        Transfer transfer = this.transfers.get(clientTransferId);
+        return transfer != null && transfer.stored;
+    }
+
+    /**
+     * Hands over a transfer relayed from the store, to be read a chunk at a time as the recipients take them
+     * The relay forgets the transfer, so the client's FILE_END for it is ignored and the replay ends it instead
+     * @param clientTransferId - The transfer id the client used
+     * @return the replay, or null if the transfer isn't relayed from the store
+     */
+    public Replay replay(int clientTransferId) {
+        Transfer transfer = this.transfers.get(clientTransferId);
+        if(transfer == null || !transfer.stored) {
+            return null;
+        }
+        this.transfers.remove(clientTransferId);
+        return new Replay(transfer, this.sender, this.store);
+    }
+
+    /**
+     * Starts relaying a transfer, and keeping it unless the store has it already
+     * @param clientTransferId - The transfer id the client used
+     * @param size - The announced file size
+     * @param hash - The hash the file was offered under, or null
+     * @param filename - The filename, from its position to its limit
+     * @return the FILE frame to broadcast, or null if the size is bad or the transfer id is in use
+     */
+    private Frame begin(int clientTransferId, long size, byte[] hash, ByteBuffer filename) {
+        if(size < 0 || this.transfers.containsKey(clientTransferId)) {
+            return null;
+        }
+        Transfer transfer = new Transfer(nextTransferId.incrementAndGet(), size);
+        transfer.hash = hash;
+        transfer.filename = new byte[filename.remaining()];
+        filename.duplicate().get(transfer.filename);
+        if(this.store != null) {
+            if(hash != null && this.store.contains(hash, size)) {
+                Metrics.get().attachmentDedupHits.increment();
+                transfer.stored = true;
+            } else {
+                try {
+                    transfer.upload = this.store.upload();
+                } catch (IOException e) {
+                    // relay it without keeping it
+                    e.printStackTrace();
+                }
+            }
+        }
+        this.transfers.put(clientTransferId, transfer);
+
+        // relay the announcement with the server wide id in place of the client's id
+        ByteBuffer relayed = ByteBuffer.allocate(12 + filename.remaining());
+        relayed.putInt(transfer.id).putLong(size).put(filename);
+        return Frame.encode(Client.FILE, this.sender, relayed.array());
+    }
+
+    /**
+     * Relays one chunk of a transfer
+     * @param clientTransferId - The transfer id the client used
+     * @param data - The chunk's file bytes
+     * @return the FILE_CHUNK frame to broadcast, or null if the chunk doesn't belong to a transfer in progress
+     */
+    public Frame chunk(int clientTransferId, ByteBuffer data) {
+        Transfer transfer = this.transfers.get(clientTransferId);
+        if(transfer == null || transfer.stored || data.remaining() > CHUNK_SIZE || transfer.received + data.remaining() > transfer.size) {
+            return null;
+        }
+        transfer.received += data.remaining();
+        if(transfer.upload != null) {
+            try {
+                transfer.upload.write(data);
+            } catch (IOException e) {
+                // stop keeping this file, the receivers still get it
+                e.printStackTrace();
+                transfer.upload.abort();
+                transfer.upload = null;
+            }
+        }
+
+        ByteBuffer relayed = ByteBuffer.allocate(4 + data.remaining());
+        relayed.putInt(transfer.id).put(data);
+        return Frame.encode(Client.FILE_CHUNK, this.sender, relayed.array());
+    }
+
+    /**
+     * Finishes a transfer
+     * @param clientTransferId - The transfer id the client used
+     * @param status - COMPLETE or ABORTED as sent by the client
+     * @return the FILE_END frame to broadcast followed by the ATTACHMENT frame if the file is now stored,
+     * empty if there is no such transfer
+     */
+    public List<Frame> end(int clientTransferId, byte status) {
+        List<Frame> frames = new ArrayList<>();
+        Transfer transfer = this.transfers.remove(clientTransferId);
+        if(transfer == null) {
+            return frames;
+        }
+        // a transfer that ends short of its announced size can't be complete
+        if(transfer.received != transfer.size) {
+            status = ABORTED;
+        }
+        byte[] hash = transfer.stored ? transfer.hash : null;
+        if(transfer.upload != null) {
+            if(status == COMPLETE) {
+                try {
+                    // a file that doesn't match the hash it was offered under is thrown away
+                    hash = transfer.upload.commit(transfer.hash);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                transfer.upload.abort();
+            }
+        }
+        frames.add(endFrame(transfer.id, this.sender, status));
+        if(status == COMPLETE && hash != null) {
+            // only now can the file be fetched, so only now do the clients that fetch files hear about it
+            frames.add(attachment(transfer.id, this.sender, transfer.size, hash, transfer.filename));
+        }
+        return frames;
+    }
+
+    /**
+     * Aborts every transfer still in progress, used when the sending client disconnects
+     * @return the FILE_END frames to broadcast
+     */
+    public List<Frame> abortAll() {
+        List<Frame> frames = new ArrayList<>();
+        for(Transfer transfer : this.transfers.values()) {
+            if(transfer.upload != null) {
+                transfer.upload.abort();
+            }
+            frames.add(endFrame(transfer.id, this.sender, ABORTED));
+        }
+        this.transfers.clear();
+        return frames;
+    }
+
+    /**
+     * Creates a FILE_ACK frame granting the sender more chunks
+     * @param clientTransferId - The transfer id the client used
+     * @param chunks - The number of chunks granted
+     * @return the encoded frame
+     */
+    public static Frame credit(int clientTransferId, int chunks) {
+        return Frame.encode(Client.FILE_ACK, ByteBuffer.allocate(8).putInt(clientTransferId).putInt(chunks).array());
+    }
+
+    /**
+     * Answers a FILE_REQUEST from the store, in FILE_DATA frames of at most a chunk each and an empty one to end
+     * @param store - The store the file is read from, or null if the server has none
+     * @param request - The FILE_REQUEST payload sent by the client
+     * @param session - The session that asked, the frames are queued for it alone
+     */
+    public static void serve(AttachmentStore store, ByteBuffer request, ChatSession session) {
+        int requestId = request.getInt();
+        byte[] hash = new byte[AttachmentStore.HASH_LENGTH];
+        request.get(hash);
+        long offset = request.getLong();
+        int length = offset < 0 ? 0 : Math.min(request.getInt(), MAX_RANGE);
+        while(length > 0) {
+            ByteBuffer data = null;
+            try {
+                data = store != null ? store.read(hash, offset, Math.min(length, CHUNK_SIZE)) : null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if(data == null || !data.hasRemaining()) {
+                break;
+            }
+            int read = data.remaining();
+            session.send(Frame.encode(Client.FILE_DATA, ByteBuffer.allocate(12 + read).putInt(requestId).putLong(offset).put(data).array()));
+            offset += read;
+            length -= read;
+        }
+        // the client asks for the rest from here if it still wants it, or gives up if nothing came
+        session.send(Frame.encode(Client.FILE_DATA, ByteBuffer.allocate(12).putInt(requestId).putLong(offset).array()));
+    }
+
+    /**
+     * Checks whether a frame is one of the pushed file frames clients that fetch files don't get
+     * @param frame - The frame
+     * @return true for FILE, FILE_CHUNK and FILE_END frames
+     */
+    public static boolean isPushed(Frame frame) {
+        int type = frame.getType();
+        return type == Client.FILE || type == Client.FILE_CHUNK || type == Client.FILE_END;
+    }
+
+    /**
+     * Creates an ATTACHMENT frame announcing a stored file
+     * @param transferId - The transfer id
+     * @param sender - The sending client's session id
+     * @param size - The size of the file
+     * @param hash - The SHA-256 hash of the file
+     * @param filename - The name the sender gave the file
+     * @return the encoded frame
+     */
+    public static Frame attachment(int transferId, int sender, long size, byte[] hash, byte[] filename) {
+        ByteBuffer payload = ByteBuffer.allocate(12 + hash.length + filename.length);
+        payload.putInt(transferId).putLong(size).put(hash).put(filename);
+        return Frame.encode(Client.ATTACHMENT, sender, payload.array());
+    }
+
+    /**
+     * Creates a FILE_END frame
+     * @param transferId - The transfer id
+     * @param sender - The sending client's session id
+     * @param status - COMPLETE or ABORTED
+     * @return the encoded frame
+     */
+    public static Frame endFrame(int transferId, int sender, byte status) {
+        return Frame.encode(Client.FILE_END, sender, ByteBuffer.allocate(5).putInt(transferId).put(status).array());
+    }
+
+    /**
+     * A transfer relayed from the store, which may be read from any one thread at a time
+     */
+    public static class Replay {
+
+        private final Transfer transfer;
+        private final int sender;
+        private final AttachmentStore store;
+
+        /**
+         * Creates a replay
+         * @param transfer - The transfer, which no relay holds anymore
+         * @param sender - The sending client's session id
+         * @param store - The store holding the file
+         */
+        private Replay(Transfer transfer, int sender, AttachmentStore store) {
+            this.transfer = transfer;
+            this.sender = sender;
+            this.store = store;
+        }
+
+        /**
+         * Reads the next chunk of the file from the store
+         * @return the FILE_CHUNK frame to broadcast, or null once the whole file has been read or it can't be read
+         */
+        public Frame next() {
+            if(this.transfer.received == this.transfer.size) {
+                return null;
+            }
+            try {
+                ByteBuffer data = this.store.read(this.transfer.hash, this.transfer.received, CHUNK_SIZE);
+                if(data == null || !data.hasRemaining()) {
+                    // evicted since it was offered, the transfer ends short and so aborted
+                    return null;
+                }
+                this.transfer.received += data.remaining();
+                ByteBuffer relayed = ByteBuffer.allocate(4 + data.remaining());
+                relayed.putInt(this.transfer.id).put(data);
+                return Frame.encode(Client.FILE_CHUNK, this.sender, relayed.array());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+         * Finishes the replay, complete if every chunk was read
+         * @return the FILE_END frame to broadcast followed by the ATTACHMENT frame if the file was complete
+         */
+        public List<Frame> end() {
+            List<Frame> frames = new ArrayList<>();
+            boolean complete = this.transfer.received == this.transfer.size;
+            frames.add(endFrame(this.transfer.id, this.sender, complete ? COMPLETE : ABORTED));
+            if(complete) {
+                frames.add(attachment(this.transfer.id, this.sender, this.transfer.size, this.transfer.hash, this.transfer.filename));
+            }
+            return frames;
+        }
+    }
+
+    /**
+     * Progress of one transfer being relayed
+     */
+    private static class Transfer {
+
+        private final int id;
+        private final long size;
+        private long received = 0;
+        // the hash the file was offered under, or null if it was announced with a FILE frame
+        private byte[] hash;
+        private byte[] filename;
+        // whether the store had the file, so it is read from there rather than sent by the client
+        private boolean stored = false;
+        // where the file is being kept as it arrives, or null
+        private AttachmentStore.Upload upload;
+
+        /**
+         * Creates a new transfer
+         * @param id - The server wide transfer id
+         * @param size - The announced file size
+         */
+        private Transfer(int id, long size) {
+            this.id = id;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A frame encoded once as [type][payload length][payload] and shared read-only by every recipient
+ * Broadcasting hands the same bytes to each connection instead of re-encoding the frame per recipient
+ * The top 16 bits of the type hold the session id of the client the frame came from, 0 for the server
+ */
+public final class Frame {
+
+    // size of the type and length integers in front of the payload
+    public static final int HEADER_LENGTH = 8;
+    // size of the buffers wrapped around socket streams, big enough to coalesce a batch of chat frames into one flush
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // type of a batch of already encoded frames sent together, never written as a header of its own
+    public static final int BATCH = -1;
+    // where the sender's session id starts in the type
+    public static final int SENDER_SHIFT = 16;
+
+    // class variables
+    private final int type;
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    // the form of this frame sent to sessions that negotiated compression, this frame itself if it stays as it is
+    private volatile Frame compressed;
+    // the form of this frame sent to sessions that don't use session ids, this frame itself if it has no sender
+    private volatile Frame anonymous;
+    // whether sessions that don't use session ids never get this frame at all
+    private boolean sessionIdsOnly = false;
+
+    /**
+     * Creates a frame over already encoded bytes
+     * @param type - The frame type
+     * @param bytes - The whole encoded frame, never modified after this
+     */
+    private Frame(int type, byte[] bytes) {
+        this.type = type;
+        this.bytes = bytes;
+        this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a frame made of a type and a length prefixed payload
+     * @param type - The frame type
+     * @param payload - The payload bytes
+     * @return the encoded frame
+     */
+    public static Frame encode(int type, byte[] payload) {
+        return encode(type, 0, payload);
+    }
+
+    /**
+     * Encodes a frame that came from a client
+     * @param type - The frame type
+     * @param sender - The session id of the client, 0 for the server
+     * @param payload - The payload bytes
+     * @return the encoded frame
+     */
+    public static Frame encode(int type, int sender, byte[] payload) {
+        byte[] bytes = new byte[HEADER_LENGTH + payload.length];
+        ByteBuffer.wrap(bytes).putInt(sender << SENDER_SHIFT | type).putInt(payload.length).put(payload);
+        return new Frame(type, bytes);
+    }
+
+    /**
+     * Wraps one frame that is already encoded, such as a frame read back from the message log
+     * @param encoded - The whole encoded frame, never modified after this
+     * @return the frame
+     */
+    public static Frame wrap(byte[] encoded) {
+        return new Frame(ByteBuffer.wrap(encoded).getInt() & ((1 << SENDER_SHIFT) - 1), encoded);
+    }
+
+    /**
+     * Wraps frames that are already encoded back to back so they can be queued and written as one
+     * @param frames - The encoded frames, never modified after this
+     * @return a frame of type BATCH over the same bytes
+     */
+    public static Frame batch(byte[] frames) {
+        return new Frame(BATCH, frames);
+    }
+
+    /**
+     * Encodes a frame straight from a decoded payload, without copying the payload into an array of its own first
+     * @param type - The frame type
+     * @param payload - The payload, from its position to its limit, the buffer's position is left unchanged
+     * @return the encoded frame
+     */
+    public static Frame encode(int type, ByteBuffer payload) {
+        return encode(type, 0, payload);
+    }
+
+    /**
+     * Encodes a frame that came from a client straight from a decoded payload
+     * @param type - The frame type
+     * @param sender - The session id of the client, 0 for the server
+     * @param payload - The payload, from its position to its limit, the buffer's position is left unchanged
+     * @return the encoded frame
+     */
+    public static Frame encode(int type, int sender, ByteBuffer payload) {
+        byte[] bytes = new byte[HEADER_LENGTH + payload.remaining()];
+        ByteBuffer.wrap(bytes).putInt(sender << SENDER_SHIFT | type).putInt(payload.remaining()).put(payload.duplicate());
+        return new Frame(type, bytes);
+    }
+
+    /**
+     * Gets this frame compressed, for sessions that negotiated compression
+     * Compressed on first use and then shared, so a broadcast compresses once for all of its recipients
+     * @return the compressed frame, or this frame when its type isn't compressed or compressing doesn't pay
+     */
+    public Frame compressed() {
+        Frame twin = this.compressed;
+        if(twin == null) {
+            // two threads may race to compress the same frame, they produce the same bytes so either one is kept
+            byte[] payload = Compression.deflate(this.type, this.bytes, HEADER_LENGTH, this.bytes.length - HEADER_LENGTH);
+            if(payload == null) {
+                twin = this;
+            } else {
+                byte[] compressedBytes = new byte[HEADER_LENGTH + payload.length];
+                ByteBuffer.wrap(compressedBytes).putInt(header() | Compression.FLAG).putInt(payload.length).put(payload);
+                twin = new Frame(this.type, compressedBytes);
+                twin.compressed = twin;
+            }
+            this.compressed = twin;
+        }
+        return twin;
+    }
+
+    /**
+     * Marks this frame as one that is always sent as it is, such as a chunk of a file that is compressed already
+     */
+    public void keepUncompressed() {
+        this.compressed = this;
+    }
+
+    /**
+     * Gets this frame without its sender, for sessions that don't use session ids
+     * Built on first use and then shared like the compressed form, a batch has the sender of every frame in it cleared
+     * @return the frame without a sender, or null if those sessions don't get this frame at all
+     */
+    public Frame anonymous() {
+        if(this.sessionIdsOnly) {
+            return null;
+        }
+        Frame twin = this.anonymous;
+        if(twin == null) {
+            if(this.type != BATCH && getSender() == 0) {
+                twin = this;
+            } else {
+                byte[] anonymousBytes = this.bytes.clone();
+                ByteBuffer buffer = ByteBuffer.wrap(anonymousBytes);
+                // clear the sender in the header of every frame, one frame unless this is a batch
+                for(int at = 0; at < anonymousBytes.length; at += HEADER_LENGTH + buffer.getInt(at + 4)) {
+                    buffer.putShort(at, (short) 0);
+                }
+                twin = new Frame(this.type, anonymousBytes);
+                twin.anonymous = twin;
+            }
+            this.anonymous = twin;
+        }
+        return twin;
+    }
+
+    /**
+     * Sets the form of this frame that sessions without session ids get, such as an alert worded for people
+     * @param anonymous - The frame sent to them instead, or null to not send them this frame at all
+     * @return this frame
+     */
+    public Frame withAnonymous(Frame anonymous) {
+        this.sessionIdsOnly = anonymous == null;
+        this.anonymous = anonymous;
+        return this;
+    }
+
+    /**
+     * Gets the session id of the client this frame came from
+     * @return the sender's session id, 0 for frames from the server and for batches
+     */
+    public int getSender() {
+        return this.type == BATCH ? 0 : header() >>> SENDER_SHIFT;
+    }
+
+    /**
+     * Reads the type as it was encoded, sender included
+     * @return the first integer of the frame
+     */
+    private int header() {
+        return this.buffer.getInt(0);
+    }
+
+    /**
+     * Gets the type of the frame
+     * @return the frame type
+     */
+    public int getType() {
+        return this.type;
+    }
+
+    /**
+     * Gets the encoded size of the frame
+     * @return the number of bytes written for this frame
+     */
+    public int length() {
+        return this.bytes.length;
+    }
+
+    /**
+     * Gets a read-only view of the encoded frame with its own position, the bytes themselves are shared
+     * @return a buffer positioned at the start of the frame
+     */
+    public ByteBuffer buffer() {
+        return this.buffer.duplicate();
+    }
+
+    /**
+     * Writes the whole frame with a single write call
+     * @param outputStream - The stream being written to
+     * @throws IOException - IO error while writing
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(this.bytes, 0, this.bytes.length);
+    }
+}
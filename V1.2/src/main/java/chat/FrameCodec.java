@@ -0,0 +1,361 @@
+package chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes the login handshake and [type][payload length][payload] frames for the server and the client
+ * Every length is checked against the limits for its type before anything is read, so a peer can't make us
+ * allocate or wait for more than the largest frame the protocol allows. Unknown types and bad lengths throw
+ * a ProtocolException and the connection is closed, the stream can't be trusted after that
+ * One codec per connection, it reuses the same payload buffer for every frame and isn't thread safe
+ */
+public class FrameCodec {
+
+    // defaults, tunable with system properties
+    public static final int MAX_USERNAME_LENGTH = Integer.getInteger("chat.frame.maxUsername", 64);
+    public static final int MAX_TEXT_LENGTH = Integer.getInteger("chat.frame.maxText", 16 * 1024);
+    public static final int MAX_FILENAME_LENGTH = Integer.getInteger("chat.frame.maxFilename", 1024);
+    // server alerts carry a username and a short sentence
+    public static final int MAX_ALERT_LENGTH = MAX_USERNAME_LENGTH + 256;
+    // time spent decompressing frames
+    private static final Metrics metrics = Metrics.get();
+
+    // limits every new codec starts with, indexed by frame type, -1 for types that aren't part of the protocol
+    private static final int[] DEFAULT_MIN_LENGTHS = new int[32];
+    private static final int[] DEFAULT_MAX_LENGTHS = new int[32];
+    static {
+        Arrays.fill(DEFAULT_MAX_LENGTHS, -1);
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.LOGOUT, 0, MAX_ALERT_LENGTH);
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.LOGIN, 0, MAX_ALERT_LENGTH);
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.TEXT, 0, MAX_TEXT_LENGTH);
+        // [transfer id][file size][filename]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE, 12, 12 + MAX_FILENAME_LENGTH);
+        // [transfer id][bytes]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE_CHUNK, 4, 4 + FileRelay.CHUNK_SIZE);
+        // [transfer id][status]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE_END, 5, 5);
+        // [transfer id][chunks]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE_ACK, 8, 8);
+        // [room name length][room name][username], the username is only there when the server sends it
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.JOIN, 5, 4 + RoomIndex.MAX_ROOM_LENGTH + MAX_USERNAME_LENGTH);
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.LEAVE, 5, 4 + RoomIndex.MAX_ROOM_LENGTH + MAX_USERNAME_LENGTH);
+        // [room name length][room name][text]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.ROOM_TEXT, 5, 4 + RoomIndex.MAX_ROOM_LENGTH + MAX_TEXT_LENGTH);
+        // [capabilities]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.CAPABILITIES, 4, 4);
+        // empty, the frame arriving is all that matters
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.HEARTBEAT, 0, 0);
+        // [session id][username length][username]...
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.SESSIONS, 0, Presence.MAX_SESSIONS_LENGTH);
+        // [username length][username][text], the recipient's username from a client and the sender's from the server
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.DIRECT, 5, 4 + MAX_USERNAME_LENGTH + MAX_TEXT_LENGTH);
+        // [username]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.OFFLINE, 1, MAX_USERNAME_LENGTH);
+        // [transfer id][file size][SHA-256 hash][filename]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE_OFFER, 12 + AttachmentStore.HASH_LENGTH, 12 + AttachmentStore.HASH_LENGTH + MAX_FILENAME_LENGTH);
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.ATTACHMENT, 12 + AttachmentStore.HASH_LENGTH, 12 + AttachmentStore.HASH_LENGTH + MAX_FILENAME_LENGTH);
+        // [request id][SHA-256 hash][offset][length]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE_REQUEST, 16 + AttachmentStore.HASH_LENGTH, 16 + AttachmentStore.HASH_LENGTH);
+        // [request id][offset][bytes]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.FILE_DATA, 12, 12 + FileRelay.CHUNK_SIZE);
+        // [token]
+        setLimits(DEFAULT_MIN_LENGTHS, DEFAULT_MAX_LENGTHS, Client.RESUME, Resume.TOKEN_LENGTH, Resume.TOKEN_LENGTH);
+    }
+
+    // class variables
+    private int[] minLengths = DEFAULT_MIN_LENGTHS.clone();
+    private int[] maxLengths = DEFAULT_MAX_LENGTHS.clone();
+    private int maxUsernameLength = MAX_USERNAME_LENGTH;
+    // payload of the last frame read from a stream, grown up to the largest limit and then reused
+    private byte[] payloadBytes = new byte[0];
+    private ByteBuffer payload = ByteBuffer.wrap(this.payloadBytes);
+    // compressed payload of the last frame read from a stream, before it is decompressed into payloadBytes
+    private byte[] compressedBytes = new byte[0];
+    private boolean compressed = false;
+    // size on the wire of the last frame read from a stream, header included
+    private int frameLength = 0;
+    // capability bits the peer sent with its username
+    private int capabilities = 0;
+    // [token][TEXT frames received] sent after the username by a resuming client, or null
+    private ByteBuffer resumeLogin = null;
+    // whether frame types may carry a sender's session id, only the server sends them
+    private boolean senders = false;
+    // session id carried by the last frame read from a stream
+    private int sender = 0;
+
+    /**
+     * Sets the smallest and largest payload this codec accepts for a frame type
+     * A type without limits is rejected, so this is also how a new frame type is added
+     * @param type - The frame type
+     * @param minLength - The smallest payload length
+     * @param maxLength - The largest payload length
+     */
+    public void setLimits(int type, int minLength, int maxLength) {
+        if(type >= this.maxLengths.length) {
+            int size = Math.max(type + 1, this.maxLengths.length * 2);
+            this.minLengths = Arrays.copyOf(this.minLengths, size);
+            int oldSize = this.maxLengths.length;
+            this.maxLengths = Arrays.copyOf(this.maxLengths, size);
+            Arrays.fill(this.maxLengths, oldSize, size, -1);
+        }
+        setLimits(this.minLengths, this.maxLengths, type, minLength, maxLength);
+    }
+
+    /**
+     * Sets whether frames may carry a sender's session id in the top of their type, as frames from the server do
+     * @param senders - true to accept and strip sender ids, false to reject them as unknown types
+     */
+    public void setSenders(boolean senders) {
+        this.senders = senders;
+    }
+
+    /**
+     * Sets the longest username the login handshake accepts
+     * @param maxUsernameLength - The most username bytes
+     */
+    public void setMaxUsernameLength(int maxUsernameLength) {
+        this.maxUsernameLength = maxUsernameLength;
+    }
+
+    /**
+     * Gets the size of the largest frame this codec accepts, header included
+     * @return the number of bytes a buffer needs to hold any one frame or handshake
+     */
+    public int maxFrameLength() {
+        int max = 4 + this.maxUsernameLength;
+        for(int maxLength : this.maxLengths) {
+            max = Math.max(max, Frame.HEADER_LENGTH + maxLength);
+        }
+        return max;
+    }
+
+    /**
+     * Reads the login handshake from a stream
+     * The handshake is [capabilities << 16 | username length][username], clients without capabilities send 0 on top
+     * A client resuming its session sets Resume.RESUMING and follows the username with [token][TEXT frames received]
+     * @param dataInputStream - The stream being read
+     * @return the username, the capabilities it came with are available from capabilities()
+     * @throws IOException - IO error, or a username longer than the limit
+     */
+    public String readLogin(DataInputStream dataInputStream) throws IOException {
+        int header = dataInputStream.readInt();
+        this.capabilities = header >>> 16;
+        int length = checkUsernameLength(header & 0xFFFF);
+        byte[] usernameBytes = new byte[length];
+        dataInputStream.readFully(usernameBytes);
+        this.resumeLogin = null;
+        if((this.capabilities & Resume.RESUMING) != 0) {
+            byte[] resumeBytes = new byte[Resume.LOGIN_LENGTH];
+            dataInputStream.readFully(resumeBytes);
+            this.resumeLogin = ByteBuffer.wrap(resumeBytes);
+        }
+        return new String(usernameBytes);
+    }
+
+    /**
+     * Reads one frame from a stream into the codec's payload buffer
+     * @param dataInputStream - The stream being read
+     * @return the frame type, its payload is available from payload() until the next frame is read
+     * @throws IOException - IO error, or a frame that breaks the protocol
+     */
+    public int readFrame(DataInputStream dataInputStream) throws IOException {
+        int type = dataInputStream.readInt();
+        this.sender = this.senders ? type >>> Frame.SENDER_SHIFT : 0;
+        if(this.senders) {
+            type &= (1 << Frame.SENDER_SHIFT) - 1;
+        }
+        int length = checkLength(type, dataInputStream.readInt());
+        this.frameLength = Frame.HEADER_LENGTH + length;
+        this.compressed = (type & Compression.FLAG) != 0;
+        if(this.compressed) {
+            // read the compressed bytes aside, then decompress them into the payload buffer
+            if(this.compressedBytes.length < length) {
+                this.compressedBytes = new byte[Math.min(Math.max(length, this.compressedBytes.length * 2), maxPayloadLength())];
+            }
+            dataInputStream.readFully(this.compressedBytes, 0, length);
+            type &= ~Compression.FLAG;
+            decompress(type, ByteBuffer.wrap(this.compressedBytes, 0, length));
+            return type;
+        }
+        ensurePayloadCapacity(length);
+        dataInputStream.readFully(this.payloadBytes, 0, length);
+        this.payload.clear().limit(length);
+        return type;
+    }
+
+    /**
+     * Decompresses the payload of a frame that was sent with Compression.FLAG in its type
+     * @param type - The frame type, without the flag
+     * @param compressed - The compressed payload, from its position to its limit
+     * @return the decompressed payload, in the same reused buffer as payload()
+     * @throws ProtocolException - The uncompressed length is out of range for the type or the data is corrupt
+     */
+    public ByteBuffer decompress(int type, ByteBuffer compressed) throws ProtocolException {
+        // the length it claims is checked like any other payload length before anything is decompressed
+        int length = checkLength(type, compressed.getInt(compressed.position()));
+        long start = System.nanoTime();
+        ensurePayloadCapacity(length);
+        Compression.inflate(compressed, this.payloadBytes, length);
+        this.payload.clear().limit(length);
+        metrics.decompressNanos.recordSince(start);
+        return this.payload;
+    }
+
+    /**
+     * Checks whether the last frame read by readFrame arrived compressed
+     * @return true if the frame's type had Compression.FLAG set
+     */
+    public boolean wasCompressed() {
+        return this.compressed;
+    }
+
+    /**
+     * Gets the size the last frame read by readFrame took on the wire
+     * @return the number of bytes received for it, header included
+     */
+    public int frameLength() {
+        return this.frameLength;
+    }
+
+    /**
+     * Gets the session id the last frame read by readFrame came from
+     * @return the sender's session id, 0 for frames from the server or when sender ids aren't accepted
+     */
+    public int sender() {
+        return this.sender;
+    }
+
+    /**
+     * Gets the capability bits the peer sent with its username
+     * @return the bits from the last handshake read, 0 from clients that don't know about capabilities
+     */
+    public int capabilities() {
+        return this.capabilities;
+    }
+
+    /**
+     * Gets what a resuming client sent after its username
+     * @return [token][TEXT frames received] from the last handshake read, or null if it wasn't resuming
+     */
+    public ByteBuffer resumeLogin() {
+        return this.resumeLogin;
+    }
+
+    /**
+     * Gets the payload of the last frame read by readFrame
+     * The buffer is reused by the next readFrame, so copy anything that has to outlive the frame
+     * @return the payload, from position 0 to its length
+     */
+    public ByteBuffer payload() {
+        return this.payload;
+    }
+
+    /**
+     * Works out how many bytes the next frame or handshake needs from what has been received so far
+     * Used by the non-blocking server, which decodes straight out of its read buffers
+     * @param in - The received bytes, ready to be read
+     * @param login - Whether the next bytes are the login handshake rather than a frame
+     * @return the size of the whole frame once its header is known, otherwise the size of its header
+     * @throws ProtocolException - The header breaks the protocol
+     */
+    public int requiredBytes(ByteBuffer in, boolean login) throws ProtocolException {
+        int position = in.position();
+        if(in.remaining() < 4) {
+            return 4;
+        }
+        if(login) {
+            // the login handshake is [capabilities << 16 | username length][username bytes], and resuming clients
+            // add [token][TEXT frames received]
+            int header = in.getInt(position);
+            return 4 + checkUsernameLength(header & 0xFFFF) + ((header >>> 16 & Resume.RESUMING) != 0 ? Resume.LOGIN_LENGTH : 0);
+        }
+        if(in.remaining() < Frame.HEADER_LENGTH) {
+            return Frame.HEADER_LENGTH;
+        }
+        int type = in.getInt(position);
+        if(this.senders) {
+            type &= (1 << Frame.SENDER_SHIFT) - 1;
+        }
+        return Frame.HEADER_LENGTH + checkLength(type, in.getInt(position + 4));
+    }
+
+    /**
+     * Checks a frame's payload length against the limits for its type
+     * @param type - The frame type
+     * @param length - The payload length the peer sent
+     * @return the length
+     * @throws ProtocolException - The type is unknown or the length is out of range
+     */
+    private int checkLength(int type, int length) throws ProtocolException {
+        boolean flagged = (type & Compression.FLAG) != 0;
+        int baseType = type & ~Compression.FLAG;
+        if(baseType < 0 || baseType >= this.maxLengths.length || this.maxLengths[baseType] < 0 || (flagged && !Compression.isCompressible(baseType))) {
+            throw new ProtocolException("unknown frame type " + type);
+        }
+        if(flagged) {
+            // [uncompressed length][at least one byte of zlib data], only ever sent when smaller than the payload
+            if(length < 5 || length > this.maxLengths[baseType]) {
+                throw new ProtocolException("bad compressed length " + length + " for frame type " + baseType);
+            }
+            return length;
+        }
+        if(length < this.minLengths[type] || length > this.maxLengths[type]) {
+            throw new ProtocolException("bad length " + length + " for frame type " + type);
+        }
+        return length;
+    }
+
+    /**
+     * Checks the username length sent in the login handshake
+     * @param length - The length the peer sent
+     * @return the length
+     * @throws ProtocolException - The length is out of range
+     */
+    private int checkUsernameLength(int length) throws ProtocolException {
+        if(length < 0 || length > this.maxUsernameLength) {
+            throw new ProtocolException("bad username length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Makes sure the payload buffer can hold a payload
+     * @param length - The payload length, already checked against the limits
+     */
+    private void ensurePayloadCapacity(int length) {
+        if(this.payloadBytes.length < length) {
+            // grow in steps so a conversation settles on one buffer quickly, never past the largest limit
+            this.payloadBytes = new byte[Math.min(Math.max(length, this.payloadBytes.length * 2), maxPayloadLength())];
+            this.payload = ByteBuffer.wrap(this.payloadBytes);
+        }
+    }
+
+    /**
+     * Gets the largest payload any frame type allows
+     * @return the most payload bytes in one frame
+     */
+    private int maxPayloadLength() {
+        int max = 0;
+        for(int maxLength : this.maxLengths) {
+            max = Math.max(max, maxLength);
+        }
+        return max;
+    }
+
+    /**
+     * Stores the limits for one type
+     * @param minLengths - The smallest lengths by type
+     * @param maxLengths - The largest lengths by type
+     * @param type - The frame type
+     * @param minLength - The smallest payload length
+     * @param maxLength - The largest payload length
+     */
+    private static void setLimits(int[] minLengths, int[] maxLengths, int type, int minLength, int maxLength) {
+        minLengths[type] = minLength;
+        maxLengths[type] = maxLength;
+    }
+}
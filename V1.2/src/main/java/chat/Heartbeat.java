@@ -0,0 +1,132 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Idle detection for one connection, and the heartbeat settings both sides share
+ * A client that sets the HEARTBEATS bit when logging in sends a HEARTBEAT frame whenever it has sent nothing
+ * for a heartbeat interval, and the server answers each one, so a live connection never goes quiet in either
+ * direction. A connection that receives nothing for the idle timeout is dropped
+ * Receiving a frame only stamps the time, the timeout sits in the shared timer wheel and is moved on lazily when
+ * it fires early, so a busy connection costs one timer per idle timeout rather than one per frame
+ */
+public class Heartbeat {
+
+    // capability bit in the login handshake and the CAPABILITIES frame
+    public static final int HEARTBEATS = 2;
+
+    // defaults, tunable with system properties, the idle timeout allows a couple of heartbeats to go missing
+    public static final long INTERVAL_MILLIS = Long.getLong("chat.heartbeatMillis", 15_000);
+    public static final long IDLE_MILLIS = Long.getLong("chat.idleMillis", 45_000);
+
+    // one wheel times every connection in the process
+    public static final TimerWheel WHEEL = new TimerWheel(TimerWheel.DEFAULT_TICK_MILLIS, Math.max(INTERVAL_MILLIS, IDLE_MILLIS));
+    // the frame is empty, so every heartbeat shares the same bytes
+    public static final Frame FRAME = Frame.encode(Client.HEARTBEAT, new byte[0]);
+
+    // class variables
+    private final long idleNanos;
+    private final Runnable onIdle;
+    // when the last frame arrived, written for every frame so kept as cheap as possible
+    private volatile long lastActivity = System.nanoTime();
+    // a ReentrantLock rather than synchronized so stopping from a virtual thread's reader doesn't pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private TimerWheel.Timeout timeout;
+    private boolean stopped = false;
+
+    /**
+     * Works out whether the server agrees to heartbeats a client asked for
+     * @param requested - The capability bits sent with the username
+     * @return HEARTBEATS if the client asked for them, otherwise 0
+     */
+    public static int accept(int requested) {
+        return requested & HEARTBEATS;
+    }
+
+    /**
+     * Creates idle detection with the configured timeout
+     * @param onIdle - Run once on the wheel's thread when the connection goes idle, must not block
+     */
+    public Heartbeat(Runnable onIdle) {
+        this(IDLE_MILLIS, onIdle);
+    }
+
+    /**
+     * Creates idle detection
+     * @param idleMillis - How long the connection may receive nothing
+     * @param onIdle - Run once on the wheel's thread when the connection goes idle, must not block
+     */
+    public Heartbeat(long idleMillis, Runnable onIdle) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * Records that something arrived on the connection
+     */
+    public void touch() {
+        this.lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Starts timing the connection, counting from the last time it was touched
+     */
+    public void start() {
+        this.lock.lock();
+        try {
+            if(!this.stopped && this.timeout == null) {
+                arm(this.idleNanos - (System.nanoTime() - this.lastActivity));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops timing the connection for good, the idle task won't run after this
+     */
+    public void stop() {
+        this.lock.lock();
+        try {
+            this.stopped = true;
+            if(this.timeout != null) {
+                this.timeout.cancel();
+                this.timeout = null;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the timeout in the wheel, must be called holding the lock
+     * @param delayNanos - How long until the connection could be idle
+     */
+    private void arm(long delayNanos) {
+        this.timeout = WHEEL.schedule(this::expire, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Checks the connection when its timeout fires, moving the timeout on if something has arrived since
+     * This method runs on the wheel's thread
+     */
+    private void expire() {
+        this.lock.lock();
+        try {
+            if(this.stopped) {
+                return;
+            }
+            long idle = System.nanoTime() - this.lastActivity;
+            if(idle < this.idleNanos) {
+                arm(this.idleNanos - idle);
+                return;
+            }
+            this.stopped = true;
+            this.timeout = null;
+        } finally {
+            this.lock.unlock();
+        }
+        this.onIdle.run();
+    }
+}
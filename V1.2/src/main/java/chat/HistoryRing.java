@@ -0,0 +1,310 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent messages of a chat, kept as their encoded frames in a fixed-size ring outside the heap
+ * A new member gets the whole ring as one batch frame, copied out once and never re-encoded
+ * Only numbering and recording a message happen under the lock a join takes, the message is delivered after it is
+ * released. Deliveries still go out one at a time in sequence order, and a member that joins while some are on
+ * their way skips those its backfill already holds, so it sees each message exactly once and always in order
+ * Memory is capped by both a message count and a byte count, the oldest messages make room for new ones
+ * When the server keeps a MessageLog, every published message is also queued for it
+ * Every published message gets the next sequence number, recorded or not, so a session that resumes after losing
+ * its connection can be sent just the messages it missed
+ */
+public class HistoryRing {
+
+    // defaults, tunable with system properties
+    public static final int DEFAULT_MESSAGES = Integer.getInteger("chat.history.messages", 100);
+    public static final int DEFAULT_BYTES = Integer.getInteger("chat.history.bytes", 1024 * 1024);
+
+    // class variables
+    private final int capacity;
+    // where each message starts in the data buffer and how long it is, oldest at head
+    private final int[] offsets;
+    private final int[] lengths;
+    // the sequence number of each message and the session id of its sender, 0 if it came from another node
+    private final long[] sequences;
+    private final int[] senders;
+    // the sequence number of the newest published message, and of the newest one delivered along with all before it
+    private long sequence = 0;
+    private long delivered = 0;
+    // signalled whenever a delivery finishes, the next message in sequence may go out
+    private final Condition turn;
+    // members that joined or resumed while messages were being delivered, with the newest sequence number their
+    // backfill went up to, so those deliveries pass them by
+    private final Map<ChatSession, Long> caughtUp = new ConcurrentHashMap<>();
+    private int head = 0;
+    private int count = 0;
+    private int usedBytes = 0;
+    // encoded frames, back to back and wrapping around the end, allocated on the first message
+    private ByteBuffer data;
+    // a ReentrantLock rather than synchronized so a virtual thread doesn't pin its carrier while waiting its turn
+    private final ReentrantLock lock = new ReentrantLock();
+    // durable record of published messages, or null
+    private final MessageLog log;
+
+    /**
+     * Creates a ring with the configured size that records to the configured message log
+     */
+    public HistoryRing() {
+        this(DEFAULT_MESSAGES, DEFAULT_BYTES);
+    }
+
+    /**
+     * Creates a ring that records to the configured message log
+     * @param messages - The most messages kept
+     * @param bytes - The most bytes of encoded frames kept
+     */
+    public HistoryRing(int messages, int bytes) {
+        this(messages, bytes, MessageLog.getDefault());
+    }
+
+    /**
+     * Creates a ring
+     * @param messages - The most messages kept
+     * @param bytes - The most bytes of encoded frames kept
+     * @param log - Where published messages are recorded durably, or null
+     */
+    public HistoryRing(int messages, int bytes, MessageLog log) {
+        this.log = log;
+        this.turn = this.lock.newCondition();
+        this.capacity = Math.max(0, bytes);
+        this.offsets = new int[Math.max(0, messages)];
+        this.lengths = new int[Math.max(0, messages)];
+        this.sequences = new long[Math.max(0, messages)];
+        this.senders = new int[Math.max(0, messages)];
+    }
+
+    /**
+     * Records a message and delivers it to the members of the chat
+     * @param frame - The encoded message
+     * @param members - The members of the chat
+     * @param exclude - The member that should not receive the frame, or null
+     * @param <S> - The type of session
+     */
+    public <S extends ChatSession> void publish(Frame frame, ClientRegistry<S> members, S exclude) {
+        long sequence;
+        this.lock.lock();
+        try {
+            sequence = ++this.sequence;
+            append(frame, exclude != null ? exclude.getSessionId() : 0);
+            if(this.log != null) {
+                // only queued here, the log's writer thread does the copying and the fsync
+                this.log.append(frame, exclude != null ? exclude.getSessionId() : 0);
+            }
+            // wait for the messages numbered before this one to go out, the lock is free while waiting
+            while(this.delivered != sequence - 1) {
+                this.turn.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            // the fan-out happens outside the lock, so joins and other publishers don't wait on it
+            // each member is checked as it is reached rather than once up front, a member that joins meanwhile is
+            // recorded before it is added, so it is found here if the broadcast reaches it at all
+            members.broadcast(frame, exclude, member -> {
+                Long backfilled = this.caughtUp.isEmpty() ? null : this.caughtUp.get(member);
+                return backfilled != null && backfilled >= sequence;
+            });
+        } finally {
+            this.lock.lock();
+            try {
+                this.delivered = sequence;
+                this.caughtUp.values().removeIf(backfilled -> backfilled <= sequence);
+                this.turn.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds a session to the members of the chat and sends it the recorded messages
+     * @param session - The session joining, it must already have its session id
+     * @param members - The members of the chat
+     * @param <S> - The type of session
+     */
+    public <S extends ChatSession> void join(S session, ClientRegistry<S> members) {
+        join(session, members, null);
+    }
+
+    /**
+     * Adds a session to the members of the chat and sends it the recorded messages, followed by a frame marking
+     * where its live messages start
+     * @param session - The session joining, it must already have its session id
+     * @param members - The members of the chat
+     * @param mark - The frame sent after the recorded messages, or null
+     * @param <S> - The type of session
+     * @return the sequence number of the newest message the session was sent
+     */
+    public <S extends ChatSession> long join(S session, ClientRegistry<S> members, Frame mark) {
+        this.lock.lock();
+        try {
+            add(session, members);
+            if(this.count > 0) {
+                // the whole history goes out as one frame, so it's one write for the client's writer
+                session.send(Frame.batch(copyRecorded()));
+            }
+            if(mark != null) {
+                session.send(mark);
+            }
+            return this.sequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a resuming session back to the members of the chat and sends it the messages it missed, followed by a
+     * frame marking where its live messages start
+     * The session was sent every message after the mark it was last given except its own, and received some of
+     * them before its connection was lost. Those that have left the ring since are taken to be among them, as
+     * they are the oldest, so if it was away too long it misses the rest of those
+     * @param session - The session resuming, with the session id it had before
+     * @param members - The members of the chat
+     * @param after - The sequence number join or resume last returned for the session
+     * @param received - The number of messages the session received since then
+     * @param mark - The frame sent after the missed messages
+     * @param <S> - The type of session
+     * @return the sequence number of the newest message the session was sent
+     */
+    public <S extends ChatSession> long resume(S session, ClientRegistry<S> members, long after, long received, Frame mark) {
+        this.lock.lock();
+        try {
+            add(session, members);
+            long oldest = this.count > 0 ? this.sequences[this.head] : this.sequence + 1;
+            long skip = received - Math.max(0, oldest - after - 1);
+            int[] missed = new int[this.count];
+            int missedCount = 0;
+            int missedBytes = 0;
+            for(int i = 0; i < this.count; i++) {
+                int slot = (this.head + i) % this.offsets.length;
+                if(this.sequences[slot] <= after || this.senders[slot] == session.getSessionId()) {
+                    continue;
+                }
+                if(skip > 0) {
+                    skip--;
+                    continue;
+                }
+                missed[missedCount++] = slot;
+                missedBytes += this.lengths[slot];
+            }
+            if(missedCount > 0) {
+                byte[] bytes = new byte[missedBytes];
+                int at = 0;
+                for(int i = 0; i < missedCount; i++) {
+                    at = copy(missed[i], bytes, at);
+                }
+                session.send(Frame.batch(bytes));
+            }
+            session.send(mark);
+            return this.sequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of recorded messages
+     * @return the number of messages in the ring
+     */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a joining or resuming session to the members, making the deliveries still on their way pass it by
+     * Must be called holding the lock, before the session is sent its backfill
+     * @param session - The session
+     * @param members - The members of the chat
+     * @param <S> - The type of session
+     */
+    private <S extends ChatSession> void add(S session, ClientRegistry<S> members) {
+        if(this.delivered != this.sequence) {
+            // recorded before adding, so a delivery that finds the session as a member also finds this
+            this.caughtUp.put(session, this.sequence);
+        }
+        members.add(session);
+    }
+
+    /**
+     * Copies a frame into the ring, dropping the oldest messages until it fits
+     * Frames bigger than the whole ring aren't recorded
+     * @param frame - The encoded message
+     * @param sender - The session id of the sender, or 0
+     */
+    private void append(Frame frame, int sender) {
+        int length = frame.length();
+        if(this.offsets.length == 0 || length > this.capacity) {
+            return;
+        }
+        if(this.data == null) {
+            this.data = ByteBuffer.allocateDirect(this.capacity);
+        }
+        while(this.count == this.offsets.length || this.capacity - this.usedBytes < length) {
+            this.usedBytes -= this.lengths[this.head];
+            this.head = (this.head + 1) % this.offsets.length;
+            this.count--;
+        }
+
+        // the free space starts right after the newest message
+        int offset = this.count == 0 ? 0 : (this.offsets[this.head] + this.usedBytes) % this.capacity;
+        if(this.count == 0) {
+            this.head = 0;
+        }
+        ByteBuffer source = frame.buffer();
+        int firstPart = Math.min(length, this.capacity - offset);
+        this.data.put(offset, source, 0, firstPart);
+        this.data.put(0, source, firstPart, length - firstPart);
+
+        int slot = (this.head + this.count) % this.offsets.length;
+        this.offsets[slot] = offset;
+        this.lengths[slot] = length;
+        this.sequences[slot] = this.sequence;
+        this.senders[slot] = sender;
+        this.count++;
+        this.usedBytes += length;
+    }
+
+    /**
+     * Copies every recorded frame, oldest first, into one array
+     * @return the frames back to back
+     */
+    private byte[] copyRecorded() {
+        byte[] bytes = new byte[this.usedBytes];
+        int offset = this.offsets[this.head];
+        int firstPart = Math.min(this.usedBytes, this.capacity - offset);
+        this.data.get(offset, bytes, 0, firstPart);
+        this.data.get(0, bytes, firstPart, this.usedBytes - firstPart);
+        return bytes;
+    }
+
+    /**
+     * Copies one recorded frame into an array
+     * @param slot - The slot of the frame
+     * @param bytes - Where the frame goes
+     * @param at - Where in bytes it starts
+     * @return where in bytes the frame ends
+     */
+    private int copy(int slot, byte[] bytes, int at) {
+        int offset = this.offsets[slot];
+        int length = this.lengths[slot];
+        int firstPart = Math.min(length, this.capacity - offset);
+        this.data.get(offset, bytes, at, firstPart);
+        this.data.get(0, bytes, at + firstPart, length - firstPart);
+        return at + length;
+    }
+}
@@ -0,0 +1,144 @@
+package chat;
+
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * The messages shown in the chat window, kept in a ring that holds at most a fixed number of them
+ * Adding a message costs the same however many are held: once the ring is full the oldest message is
+ * overwritten, and the list is told about exactly one row removed and one row added
+ * Only the event dispatch thread may use the model, like any other Swing model
+ */
+public class MessageListModel extends AbstractListModel<MessageListModel.Message> {
+
+    // default number of messages kept, tunable with a system property
+    public static final int DEFAULT_MAX_MESSAGES = Integer.getInteger("chat.client.maxMessages", 5000);
+
+    // Swing models are Serializable, but this one is never written out, so the messages aren't either
+    private static final long serialVersionUID = 1L;
+
+    // class variables
+    private final transient Message[] messages;
+    // index of the oldest message
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * Creates a model that keeps the configured number of messages
+     */
+    public MessageListModel() {
+        this(DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * Creates a model
+     * @param maxMessages - The most messages kept, older ones are dropped
+     */
+    public MessageListModel(int maxMessages) {
+        this.messages = new Message[Math.max(1, maxMessages)];
+    }
+
+    /**
+     * Adds a message after the newest one, dropping the oldest if the model is full
+     * @param message - The message
+     */
+    public void add(Message message) {
+        if(this.count == this.messages.length) {
+            // the new message takes the oldest one's slot
+            this.messages[this.head] = message;
+            this.head = (this.head + 1) % this.messages.length;
+            fireIntervalRemoved(this, 0, 0);
+        } else {
+            this.messages[(this.head + this.count) % this.messages.length] = message;
+            this.count++;
+        }
+        fireIntervalAdded(this, this.count - 1, this.count - 1);
+    }
+
+    /**
+     * Adds messages after the newest one, dropping as many of the oldest as needed to stay within the cap
+     * The list is told about one range of rows removed and one range added, however many messages there are
+     * @param batch - The messages, oldest first
+     */
+    public void addAll(List<Message> batch) {
+        // a batch bigger than the model only leaves its newest messages
+        int skipped = Math.max(0, batch.size() - this.messages.length);
+        int adding = batch.size() - skipped;
+        if(adding == 0) {
+            return;
+        }
+
+        int removed = Math.max(0, this.count + adding - this.messages.length);
+        if(removed > 0) {
+            this.head = (this.head + removed) % this.messages.length;
+            this.count -= removed;
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        int first = this.count;
+        for(int i = skipped; i < batch.size(); i++) {
+            this.messages[(this.head + this.count) % this.messages.length] = batch.get(i);
+            this.count++;
+        }
+        fireIntervalAdded(this, first, this.count - 1);
+    }
+
+    public int getSize() {
+        return this.count;
+    }
+
+    public Message getElementAt(int index) {
+        return this.messages[(this.head + index) % this.messages.length];
+    }
+
+    /**
+     * One row of the chat window
+     */
+    public static class Message {
+
+        private final String sender;
+        private final String text;
+        private final boolean file;
+        // a shared file that is fetched when the row is clicked, or null
+        private final Attachment attachment;
+
+        /**
+         * Creates a message
+         * @param sender - Who the message is from: "me", "server alert", another user's name, or "server" when the server doesn't say
+         * @param text - The text of the message, or the filename for a file
+         * @param file - Whether the message is a file
+         */
+        public Message(String sender, String text, boolean file) {
+            this(sender, text, file, null);
+        }
+
+        /**
+         * Creates a message
+         * @param sender - Who the message is from: "me", "server alert", another user's name, or "server" when the server doesn't say
+         * @param text - The text of the message, or the filename for a file
+         * @param file - Whether the message is a file
+         * @param attachment - The shared file the message stands for, or null
+         */
+        public Message(String sender, String text, boolean file, Attachment attachment) {
+            this.sender = sender;
+            this.text = text;
+            this.file = file;
+            this.attachment = attachment;
+        }
+
+        public String getSender() {
+            return this.sender;
+        }
+
+        public String getText() {
+            return this.text;
+        }
+
+        public boolean isFile() {
+            return this.file;
+        }
+
+        public Attachment getAttachment() {
+            return this.attachment;
+        }
+    }
+}
@@ -0,0 +1,660 @@
+package chat;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable, append-only record of every message the server relays
+ * Records are [sequence][timestamp][sender session id][frame length][encoded frame], numbered from 1, written
+ * back to back into fixed-size memory-mapped segment files named after their first sequence number
+ * Each segment has a sparse index of (sequence, timestamp, position) every INDEX_INTERVAL bytes, saved next to
+ * the segment once it is full, so a range can be found without reading the log from the start
+ * The broadcast path only queues the shared frame and never waits. A writer thread copies everything queued into
+ * the mapped segment and then forces it to disk once for the whole batch, so a burst of messages costs one fsync
+ * Nothing is dropped when the writer falls behind. The threads reading clients' frames call awaitRoom once they have
+ * handed a message on, so while QUEUE_CAPACITY frames are waiting the clients are read from no faster than the disk
+ * Text in the main chat and in rooms, relayed or not, and direct messages are recorded. Files aren't, their bytes
+ * are kept by the attachment store and the frames announcing them aren't messages
+ */
+public class MessageLog implements Closeable {
+
+    // defaults, tunable with system properties, the log is only kept when chat.log.dir is set
+    public static final String DEFAULT_DIRECTORY = System.getProperty("chat.log.dir");
+    public static final int DEFAULT_SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 64 * 1024 * 1024);
+    public static final int INDEX_INTERVAL = Integer.getInteger("chat.log.indexInterval", 64 * 1024);
+    public static final int QUEUE_CAPACITY = Integer.getInteger("chat.log.queue", 64 * 1024);
+
+    // sequence, timestamp, session id and frame length in front of every frame
+    private static final int RECORD_HEADER_LENGTH = 24;
+    // bytes of one sparse index entry: sequence, timestamp and position
+    private static final int INDEX_ENTRY_LENGTH = 20;
+
+    // the log the server records to, opened on first use
+    private static MessageLog defaultLog;
+    private static boolean defaultOpened = false;
+
+    // class variables
+    private final Path directory;
+    private final int segmentBytes;
+    // messages waiting for the writer, the broadcast path only ever adds to this, QUEUE_CAPACITY is where readers wait
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // guards the segments, readers and the writer take it for as long as a copy takes, never for an fsync
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition durableChanged = this.lock.newCondition();
+    // signalled whenever the writer takes frames off the queue
+    private final Condition roomChanged = this.lock.newCondition();
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSequence;
+    private long lastTimestamp = 0;
+    // appends accepted so far and appends forced to disk so far, for sync
+    private final AtomicLong submitted = new AtomicLong();
+    private long durable = 0;
+
+    /**
+     * Gets the log configured with chat.log.dir, opening it the first time
+     * @return the log, or null if no directory is configured or it can't be opened
+     */
+    public static synchronized MessageLog getDefault() {
+        if(!defaultOpened) {
+            defaultOpened = true;
+            if(DEFAULT_DIRECTORY != null) {
+                try {
+                    defaultLog = new MessageLog(Paths.get(DEFAULT_DIRECTORY), DEFAULT_SEGMENT_BYTES);
+                } catch (IOException e) {
+                    // the chat still works without the log
+                    e.printStackTrace();
+                }
+            }
+        }
+        return defaultLog;
+    }
+
+    /**
+     * Opens a log, picking up where the records already in the directory end
+     * @param directory - The directory holding the segment files, created if needed
+     * @param segmentBytes - The size of each segment file
+     * @throws IOException - IO error while opening or scanning the segments
+     */
+    public MessageLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        // a segment always has room for the largest frame
+        this.segmentBytes = Math.max(segmentBytes, 1024 * 1024);
+        Files.createDirectories(directory);
+        recover();
+
+        this.writer = new Thread(this::writeRecords, "message-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a frame to be recorded, called on the broadcast path
+     * Never waits, even with the writer behind, a compliance log can't drop messages so the readers wait instead
+     * @param frame - The encoded frame, shared and never changed
+     * @param sessionId - The session that sent it, or 0 for the server
+     */
+    public void append(Frame frame, int sessionId) {
+        if(this.closed) {
+            return;
+        }
+        this.submitted.incrementAndGet();
+        // the queue has no bound, so this always succeeds and sync always finds the frame eventually written
+        this.queue.add(new Pending(frame, sessionId, System.currentTimeMillis()));
+    }
+
+    /**
+     * Checks whether the writer has fallen a whole queue behind
+     * @return true if QUEUE_CAPACITY frames or more are waiting to be written
+     */
+    public boolean isBehind() {
+        return this.queue.size() >= QUEUE_CAPACITY;
+    }
+
+    /**
+     * Waits while the writer is a whole queue behind, called by a thread reading a client's frames and never while
+     * holding a lock the broadcast path takes
+     */
+    public void awaitRoom() {
+        if(!isBehind()) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            while(isBehind() && !this.closed) {
+                this.roomChanged.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every frame appended before this call is on disk
+     * @param timeoutMillis - The longest to wait
+     * @return true if everything was forced in time
+     * @throws InterruptedException - Interrupted while waiting
+     */
+    public boolean sync(long timeoutMillis) throws InterruptedException {
+        long target = this.submitted.get();
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.lock.lock();
+        try {
+            while(this.durable < target) {
+                if(nanos <= 0) {
+                    return false;
+                }
+                nanos = this.durableChanged.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the sequence number of the newest record
+     * @return the last sequence number written, 0 if the log is empty
+     */
+    public long lastSequence() {
+        this.lock.lock();
+        try {
+            return this.nextSequence - 1;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads records in order starting at a sequence number
+     * @param fromSequence - The first sequence number wanted
+     * @param maxRecords - The most records returned
+     * @return the records, oldest first, empty if there are none that new
+     */
+    public List<Record> read(long fromSequence, int maxRecords) {
+        this.lock.lock();
+        try {
+            // the last segment that starts at or before the sequence, then its closest index entry
+            int segmentIndex = 0;
+            while(segmentIndex + 1 < this.segments.size() && this.segments.get(segmentIndex + 1).baseSequence <= fromSequence) {
+                segmentIndex++;
+            }
+            Segment segment = this.segments.get(segmentIndex);
+            int entry = floorEntry(segment.indexSequences, segment.indexCount, fromSequence);
+            int position = entry < 0 ? 0 : segment.indexPositions[entry];
+            return scan(segmentIndex, position, fromSequence, Long.MIN_VALUE, maxRecords);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads records in order starting at the first one recorded at or after a time
+     * @param fromTimestamp - The earliest time wanted, in milliseconds since the epoch
+     * @param maxRecords - The most records returned
+     * @return the records, oldest first, empty if there are none that new
+     */
+    public List<Record> readFrom(long fromTimestamp, int maxRecords) {
+        this.lock.lock();
+        try {
+            // timestamps never go backwards in the log, so the same search works on time
+            int segmentIndex = 0;
+            while(segmentIndex + 1 < this.segments.size() && this.segments.get(segmentIndex + 1).firstTimestamp() < fromTimestamp) {
+                segmentIndex++;
+            }
+            Segment segment = this.segments.get(segmentIndex);
+            int entry = floorEntry(segment.indexTimestamps, segment.indexCount, fromTimestamp - 1);
+            int position = entry < 0 ? 0 : segment.indexPositions[entry];
+            return scan(segmentIndex, position, Long.MIN_VALUE, fromTimestamp, maxRecords);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writer once everything queued is on disk
+     */
+    public void close() {
+        this.closed = true;
+        signalRoom();
+        this.writer.interrupt();
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes queued frames until the log is closed, forcing each batch to disk once
+     * This method runs on the log's writer thread
+     */
+    private void writeRecords() {
+        List<Pending> batch = new ArrayList<>();
+        while(true) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException e) {
+                if(this.closed) {
+                    // write whatever is left, then stop
+                    this.queue.drainTo(batch);
+                    writeBatch(batch);
+                    return;
+                }
+            }
+            this.queue.drainTo(batch);
+            signalRoom();
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Wakes the readers waiting for the writer to catch up
+     */
+    private void signalRoom() {
+        this.lock.lock();
+        try {
+            this.roomChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Copies a batch of frames into the log and forces it to disk
+     * @param batch - The frames, in the order they were appended
+     */
+    private void writeBatch(List<Pending> batch) {
+        if(batch.isEmpty()) {
+            return;
+        }
+        Segment segment;
+        int from;
+        this.lock.lock();
+        try {
+            from = this.segments.get(this.segments.size() - 1).position;
+            for(Pending pending : batch) {
+                Segment active = this.segments.get(this.segments.size() - 1);
+                if(active.position + RECORD_HEADER_LENGTH + pending.frame.length() > active.buffer.capacity()) {
+                    // seal the full segment, the frames already in it are forced now
+                    active.buffer.force(from, active.position - from);
+                    active.saveIndex();
+                    this.segments.add(Segment.create(this.directory, this.nextSequence, this.segmentBytes));
+                    from = 0;
+                }
+                writeRecord(this.segments.get(this.segments.size() - 1), pending);
+            }
+            segment = this.segments.get(this.segments.size() - 1);
+        } catch (IOException e) {
+            // the log can't grow, stop recording rather than take the chat down with it
+            e.printStackTrace();
+            this.closed = true;
+            this.roomChanged.signalAll();
+            return;
+        } finally {
+            this.lock.unlock();
+        }
+
+        // one fsync for the whole batch, outside the lock so readers aren't held up by it
+        segment.buffer.force(from, segment.position - from);
+        this.lock.lock();
+        try {
+            this.durable += batch.size();
+            this.durableChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Copies one record into a segment and indexes it if it is far enough from the last index entry
+     * @param segment - The active segment, with room for the record
+     * @param pending - The frame being recorded
+     */
+    private void writeRecord(Segment segment, Pending pending) {
+        long sequence = this.nextSequence++;
+        // keep timestamps in order even if the clock steps back, so searching by time works
+        long timestamp = Math.max(pending.timestamp, this.lastTimestamp);
+        this.lastTimestamp = timestamp;
+        int position = segment.position;
+        int length = pending.frame.length();
+
+        // the length goes in last, a zero length marks the end of the records
+        segment.buffer.putLong(position, sequence);
+        segment.buffer.putLong(position + 8, timestamp);
+        segment.buffer.putInt(position + 16, pending.sessionId);
+        segment.buffer.put(position + RECORD_HEADER_LENGTH, pending.frame.buffer(), 0, length);
+        segment.buffer.putInt(position + 20, length);
+        segment.position = position + RECORD_HEADER_LENGTH + length;
+        // what the index trailer is saved with once the segment is sealed
+        segment.lastSequence = sequence;
+        segment.lastTimestamp = timestamp;
+
+        if(segment.indexCount == 0 || position >= segment.nextIndexPosition) {
+            segment.addIndexEntry(sequence, timestamp, position);
+        }
+    }
+
+    /**
+     * Collects records from a position onwards, crossing into later segments as needed
+     * @param segmentIndex - The segment to start in
+     * @param position - The record to start at in that segment
+     * @param fromSequence - Records before this sequence number are skipped
+     * @param fromTimestamp - Records before this time are skipped
+     * @param maxRecords - The most records returned
+     * @return the records found
+     */
+    private List<Record> scan(int segmentIndex, int position, long fromSequence, long fromTimestamp, int maxRecords) {
+        List<Record> records = new ArrayList<>();
+        for(int i = segmentIndex; i < this.segments.size() && records.size() < maxRecords; i++) {
+            Segment segment = this.segments.get(i);
+            for(int at = i == segmentIndex ? position : 0; at < segment.position && records.size() < maxRecords; ) {
+                long sequence = segment.buffer.getLong(at);
+                long timestamp = segment.buffer.getLong(at + 8);
+                int length = segment.buffer.getInt(at + 20);
+                if(sequence >= fromSequence && timestamp >= fromTimestamp) {
+                    byte[] bytes = new byte[length];
+                    segment.buffer.get(at + RECORD_HEADER_LENGTH, bytes);
+                    records.add(new Record(sequence, timestamp, segment.buffer.getInt(at + 16), Frame.wrap(bytes)));
+                }
+                at += RECORD_HEADER_LENGTH + length;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Opens the segments already in the directory, or creates the first one
+     * @throws IOException - IO error while opening or scanning the segments
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(this.directory, "*.log")) {
+            listing.forEach(files::add);
+        }
+        // names are zero padded sequence numbers, so name order is log order
+        files.sort(null);
+
+        this.nextSequence = 1;
+        for(int i = 0; i < files.size(); i++) {
+            Segment segment = Segment.open(files.get(i));
+            // a full segment's index was saved when it was sealed, the last one is always rebuilt
+            boolean last = i == files.size() - 1;
+            if(last || !segment.loadIndex()) {
+                segment.rebuild();
+            }
+            // the last segment may have no records yet, timestamps carry on from the newest one anyway
+            this.lastTimestamp = Math.max(this.lastTimestamp, segment.lastTimestamp);
+            this.segments.add(segment);
+        }
+        if(this.segments.isEmpty()) {
+            this.segments.add(Segment.create(this.directory, 1, this.segmentBytes));
+        } else {
+            Segment last = this.segments.get(this.segments.size() - 1);
+            this.nextSequence = last.lastSequence + 1;
+        }
+    }
+
+    /**
+     * Finds the last index entry at or before a value
+     * @param values - The indexed sequence numbers or timestamps, in order
+     * @param count - The number of entries
+     * @param value - The value searched for
+     * @return the entry, or -1 if every entry is after the value
+     */
+    private static int floorEntry(long[] values, int count, long value) {
+        int index = Arrays.binarySearch(values, 0, count, value);
+        if(index >= 0) {
+            // step back over equal timestamps to the first of them
+            while(index > 0 && values[index - 1] == value) {
+                index--;
+            }
+            return index;
+        }
+        return -(index + 1) - 1;
+    }
+
+    /**
+     * One recorded frame
+     */
+    public static class Record {
+
+        private final long sequence;
+        private final long timestamp;
+        private final int sessionId;
+        private final Frame frame;
+
+        /**
+         * Creates a record
+         * @param sequence - The record's sequence number
+         * @param timestamp - When it was recorded, in milliseconds since the epoch
+         * @param sessionId - The session that sent it, or 0 for the server
+         * @param frame - The encoded frame
+         */
+        private Record(long sequence, long timestamp, int sessionId, Frame frame) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.sessionId = sessionId;
+            this.frame = frame;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        public int getSessionId() {
+            return this.sessionId;
+        }
+
+        public Frame getFrame() {
+            return this.frame;
+        }
+    }
+
+    /**
+     * A frame waiting for the writer
+     */
+    private static class Pending {
+
+        private final Frame frame;
+        private final int sessionId;
+        private final long timestamp;
+
+        private Pending(Frame frame, int sessionId, long timestamp) {
+            this.frame = frame;
+            this.sessionId = sessionId;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * One memory-mapped segment file and its sparse index
+     */
+    private static class Segment {
+
+        private final Path path;
+        private final long baseSequence;
+        private final MappedByteBuffer buffer;
+        // where the next record goes
+        private int position = 0;
+        private long lastSequence;
+        private long lastTimestamp;
+        // sparse index, grown as records are added
+        private long[] indexSequences = new long[16];
+        private long[] indexTimestamps = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexCount = 0;
+        private int nextIndexPosition = 0;
+
+        /**
+         * Maps a segment file
+         * @param path - The segment file
+         * @param baseSequence - The sequence number of its first record
+         * @param size - The size to map, the file grows to it if needed
+         * @throws IOException - IO error while mapping the file
+         */
+        private Segment(Path path, long baseSequence, int size) throws IOException {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.lastSequence = baseSequence - 1;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the mapping stays valid after the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * Creates a new, empty segment
+         * @param directory - The log directory
+         * @param baseSequence - The sequence number of its first record
+         * @param size - The size of the segment file
+         * @return the segment
+         * @throws IOException - IO error while creating the file
+         */
+        private static Segment create(Path directory, long baseSequence, int size) throws IOException {
+            return new Segment(directory.resolve(String.format("%020d.log", baseSequence)), baseSequence, size);
+        }
+
+        /**
+         * Maps an existing segment file at its current size
+         * @param path - The segment file
+         * @return the segment, its records not read yet
+         * @throws IOException - IO error while mapping the file
+         */
+        private static Segment open(Path path) throws IOException {
+            String name = path.getFileName().toString();
+            long baseSequence = Long.parseLong(name.substring(0, name.length() - 4));
+            return new Segment(path, baseSequence, (int) Files.size(path));
+        }
+
+        /**
+         * Gets the timestamp of the first record
+         * @return the first timestamp, or Long.MAX_VALUE if the segment is empty
+         */
+        private long firstTimestamp() {
+            return this.indexCount > 0 ? this.indexTimestamps[0] : Long.MAX_VALUE;
+        }
+
+        /**
+         * Adds a sparse index entry
+         * @param sequence - The record's sequence number
+         * @param timestamp - The record's timestamp
+         * @param position - Where the record starts
+         */
+        private void addIndexEntry(long sequence, long timestamp, int position) {
+            if(this.indexCount == this.indexSequences.length) {
+                this.indexSequences = Arrays.copyOf(this.indexSequences, this.indexCount * 2);
+                this.indexTimestamps = Arrays.copyOf(this.indexTimestamps, this.indexCount * 2);
+                this.indexPositions = Arrays.copyOf(this.indexPositions, this.indexCount * 2);
+            }
+            this.indexSequences[this.indexCount] = sequence;
+            this.indexTimestamps[this.indexCount] = timestamp;
+            this.indexPositions[this.indexCount] = position;
+            this.indexCount++;
+            this.nextIndexPosition = position + INDEX_INTERVAL;
+        }
+
+        /**
+         * Reads every record to find where the records end and rebuild the index
+         * A record cut short by a crash, or out of sequence, ends the segment
+         */
+        private void rebuild() {
+            int at = 0;
+            long expected = this.baseSequence;
+            while(at + RECORD_HEADER_LENGTH <= this.buffer.capacity()) {
+                int length = this.buffer.getInt(at + 20);
+                long sequence = this.buffer.getLong(at);
+                if(length < Frame.HEADER_LENGTH || sequence != expected || at + RECORD_HEADER_LENGTH + length > this.buffer.capacity()) {
+                    break;
+                }
+                long timestamp = this.buffer.getLong(at + 8);
+                if(this.indexCount == 0 || at >= this.nextIndexPosition) {
+                    addIndexEntry(sequence, timestamp, at);
+                }
+                this.lastSequence = sequence;
+                this.lastTimestamp = timestamp;
+                expected++;
+                at += RECORD_HEADER_LENGTH + length;
+            }
+            this.position = at;
+        }
+
+        /**
+         * Saves the index of a full segment next to it, ending with where the records end
+         * @throws IOException - IO error while writing the index
+         */
+        private void saveIndex() throws IOException {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(indexPath()))) {
+                for(int i = 0; i < this.indexCount; i++) {
+                    out.writeLong(this.indexSequences[i]);
+                    out.writeLong(this.indexTimestamps[i]);
+                    out.writeInt(this.indexPositions[i]);
+                }
+                out.writeLong(this.lastSequence);
+                out.writeLong(this.lastTimestamp);
+                out.writeInt(this.position);
+            }
+        }
+
+        /**
+         * Loads the index saved when the segment was sealed
+         * @return false if there is no usable index and the segment has to be read instead
+         */
+        private boolean loadIndex() {
+            Path indexPath = indexPath();
+            try {
+                long size = Files.size(indexPath);
+                if(size < INDEX_ENTRY_LENGTH || size % INDEX_ENTRY_LENGTH != 0) {
+                    return false;
+                }
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(indexPath))) {
+                    int entries = (int) (size / INDEX_ENTRY_LENGTH) - 1;
+                    for(int i = 0; i < entries; i++) {
+                        long sequence = in.readLong();
+                        long timestamp = in.readLong();
+                        addIndexEntry(sequence, timestamp, in.readInt());
+                    }
+                    this.lastSequence = in.readLong();
+                    this.lastTimestamp = in.readLong();
+                    this.position = in.readInt();
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Gets where this segment's index is saved
+         * @return the index file path
+         */
+        private Path indexPath() {
+            String name = this.path.getFileName().toString();
+            return this.path.resolveSibling(name.substring(0, name.length() - 4) + ".index");
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package chat;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Counters, gauges and latency histograms for the whole server
+ * Recording is a LongAdder or a histogram bucket increment, cheap enough for every frame. Everything is read
+ * together as a snapshot of name/value pairs, served over JMX as the chat:type=Metrics MBean and as plain
+ * text lines on a local port when chat.metrics.port is set
+ */
+public class Metrics {
+
+    // defaults, tunable with system properties, the text endpoint is only started when a port is set
+    public static final int DEFAULT_PORT = Integer.getInteger("chat.metrics.port", -1);
+    // connections with the deepest outbound queues listed by a scrape
+    public static final int BACKLOG_TOP = Integer.getInteger("chat.metrics.backlogTop", 5);
+
+    // names of the frame types by type, BATCH is counted as type -1
+    private static final String[] TYPE_NAMES = {"LOGOUT", "LOGIN", "TEXT", "FILE", "FILE_CHUNK", "FILE_END", "FILE_ACK", "JOIN", "LEAVE", "ROOM_TEXT", "CAPABILITIES", "HEARTBEAT", "SESSIONS", "DIRECT", "OFFLINE", "FILE_OFFER", "ATTACHMENT", "FILE_REQUEST", "FILE_DATA", "RESUME"};
+    private static final int TYPE_SLOTS = 32;
+
+    private static final Metrics metrics = new Metrics();
+
+    // connections
+    public final LongAdder accepted = new LongAdder();
+    public final LongAdder protocolErrors = new LongAdder();
+    public final LongAdder idleTimeouts = new LongAdder();
+    // frames and bytes by type, slot 0 is BATCH and slot type + 1 is everything else
+    private final LongAdder[] framesIn = newAdders();
+    private final LongAdder[] bytesIn = newAdders();
+    private final LongAdder[] framesOut = newAdders();
+    private final LongAdder[] bytesOut = newAdders();
+    // latencies in nanoseconds, handling a frame covers everything after it is decoded, its broadcast included
+    public final Histogram decompressNanos = new Histogram();
+    public final Histogram handleNanos = new Histogram();
+    public final Histogram broadcastNanos = new Histogram();
+    public final Histogram writeNanos = new Histogram();
+    // recipients reached by broadcasts
+    public final LongAdder deliveries = new LongAdder();
+    // direct messages answered with OFFLINE
+    public final LongAdder directOffline = new LongAdder();
+    // files offered that the attachment store had already, and reads of stored files from memory and from disk
+    public final LongAdder attachmentDedupHits = new LongAdder();
+    public final LongAdder attachmentCacheHits = new LongAdder();
+    public final LongAdder attachmentCacheMisses = new LongAdder();
+    // TLS handshakes this server answered, by whether they resumed a session, and the CPU time each took, or the wall
+    // clock time for those run where CPU time can't be measured
+    public final LongAdder tlsFullHandshakes = new LongAdder();
+    public final LongAdder tlsResumedHandshakes = new LongAdder();
+    public final Histogram tlsHandshakeNanos = new Histogram();
+    public final Histogram tlsHandshakeWallNanos = new Histogram();
+    // parked sessions their client came back for, and those that ended because it didn't in time
+    public final LongAdder resumedSessions = new LongAdder();
+    public final LongAdder expiredSessions = new LongAdder();
+
+    // class variables
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    // the sessions whose outbound queues are reported
+    private volatile ClientRegistry<?> sessions;
+
+    /**
+     * Gets the server's metrics
+     * @return the one metrics registry
+     */
+    public static Metrics get() {
+        return metrics;
+    }
+
+    /**
+     * Counts a frame received from a client
+     * @param type - The frame type
+     * @param bytes - The frame's size on the wire
+     */
+    public void frameIn(int type, int bytes) {
+        int slot = slotOf(type);
+        this.framesIn[slot].increment();
+        this.bytesIn[slot].add(bytes);
+    }
+
+    /**
+     * Counts a frame handed to a client's socket
+     * @param type - The frame type
+     * @param bytes - The frame's size on the wire
+     */
+    public void frameOut(int type, int bytes) {
+        int slot = slotOf(type);
+        this.framesOut[slot].increment();
+        this.bytesOut[slot].add(bytes);
+    }
+
+    /**
+     * Adds a value that is read whenever the metrics are
+     * @param name - The metric name
+     * @param gauge - Reads the current value
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Reports the connected sessions: how many there are and how far behind their writers are
+     * @param sessions - The server's registry of logged in sessions
+     */
+    public void watch(ClientRegistry<?> sessions) {
+        this.sessions = sessions;
+        gauge("connections.active", sessions::size);
+    }
+
+    /**
+     * Reads every metric
+     * @return metric names and values, sorted by name
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("connections.accepted", this.accepted.sum());
+        values.put("connections.protocolErrors", this.protocolErrors.sum());
+        values.put("connections.idleTimeouts", this.idleTimeouts.sum());
+        for(int slot = 0; slot < TYPE_SLOTS; slot++) {
+            putIfCounted(values, "frames.in." + typeName(slot - 1), this.framesIn[slot]);
+            putIfCounted(values, "bytes.in." + typeName(slot - 1), this.bytesIn[slot]);
+            putIfCounted(values, "frames.out." + typeName(slot - 1), this.framesOut[slot]);
+            putIfCounted(values, "bytes.out." + typeName(slot - 1), this.bytesOut[slot]);
+        }
+        values.put("broadcast.deliveries", this.deliveries.sum());
+        values.put("direct.offline", this.directOffline.sum());
+        values.put("attachments.dedupHits", this.attachmentDedupHits.sum());
+        values.put("attachments.cache.hits", this.attachmentCacheHits.sum());
+        values.put("attachments.cache.misses", this.attachmentCacheMisses.sum());
+        values.put("tls.handshakes.full", this.tlsFullHandshakes.sum());
+        values.put("tls.handshakes.resumed", this.tlsResumedHandshakes.sum());
+        values.put("resume.resumed", this.resumedSessions.sum());
+        values.put("resume.expired", this.expiredSessions.sum());
+        putHistogram(values, "decompress.nanos", this.decompressNanos);
+        putHistogram(values, "frame.handle.nanos", this.handleNanos);
+        putHistogram(values, "broadcast.nanos", this.broadcastNanos);
+        putHistogram(values, "write.nanos", this.writeNanos);
+        putHistogram(values, "tls.handshake.nanos", this.tlsHandshakeNanos);
+        putHistogram(values, "tls.handshake.wall.nanos", this.tlsHandshakeWallNanos);
+        for(Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+
+        // write backlog across every connection
+        ClientRegistry<?> watched = this.sessions;
+        if(watched != null) {
+            long queued = 0, deepest = 0, dropped = 0, coalesced = 0;
+            for(ChatSession session : watched) {
+                OutboundQueue queue = session.getOutboundQueue();
+                int depth = queue.depth();
+                queued += depth;
+                deepest = Math.max(deepest, depth);
+                dropped += queue.getDroppedFrames();
+                coalesced += queue.getCoalescedFrames();
+            }
+            values.put("outbound.queued", queued);
+            values.put("outbound.deepest", deepest);
+            values.put("outbound.dropped", dropped);
+            values.put("outbound.coalesced", coalesced);
+        }
+        return values;
+    }
+
+    /**
+     * Formats every metric as "name value" lines, followed by the connections furthest behind
+     * A few clients far behind while the rest are empty is a slow client, everyone behind is a saturated server
+     * @return the text served by the scrape endpoint
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        for(Map.Entry<String, Long> value : snapshot().entrySet()) {
+            text.append("chat.").append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+
+        ClientRegistry<?> watched = this.sessions;
+        if(watched != null) {
+            List<ChatSession> deepest = new ArrayList<>();
+            for(ChatSession session : watched) {
+                if(session.getOutboundQueue().depth() > 0) {
+                    deepest.add(session);
+                }
+            }
+            deepest.sort(Comparator.comparingInt((ChatSession session) -> session.getOutboundQueue().depth()).reversed());
+            for(ChatSession session : deepest.subList(0, Math.min(BACKLOG_TOP, deepest.size()))) {
+                OutboundQueue queue = session.getOutboundQueue();
+                text.append("chat.outbound.backlog{session=").append(session.getSessionId())
+                    .append(",user=").append(session.getUsername()).append("} ").append(queue.depth())
+                    .append(" dropped=").append(queue.getDroppedFrames()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers the chat:type=Metrics MBean with the platform MBean server
+     * @throws JMException - The MBean could not be registered
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("chat:type=Metrics");
+        if(!server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(), name);
+        }
+    }
+
+    /**
+     * Starts serving scrape() on http://localhost:port/metrics
+     * @param port - The port, bound on the loopback address only
+     * @return the running HTTP server
+     * @throws IOException - The port could not be bound
+     */
+    public HttpServer startEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = scrape().getBytes();
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Gets the name used for a frame type in metric names
+     * @param type - The frame type
+     * @return the name
+     */
+    public static String typeName(int type) {
+        if(type == Frame.BATCH) {
+            return "BATCH";
+        }
+        return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "TYPE_" + type;
+    }
+
+    /**
+     * Gets the counter slot of a frame type
+     * @param type - The frame type
+     * @return the slot, types past the table share the last slot
+     */
+    private static int slotOf(int type) {
+        return Math.max(0, Math.min(type + 1, TYPE_SLOTS - 1));
+    }
+
+    /**
+     * Adds a counter to a snapshot, leaving out frame types that were never seen
+     * @param values - The snapshot
+     * @param name - The metric name
+     * @param adder - The counter
+     */
+    private static void putIfCounted(Map<String, Long> values, String name, LongAdder adder) {
+        long value = adder.sum();
+        if(value != 0) {
+            values.put(name, value);
+        }
+    }
+
+    /**
+     * Adds a histogram's count, maximum and percentiles to a snapshot
+     * @param values - The snapshot
+     * @param name - The histogram name
+     * @param histogram - The histogram
+     */
+    private static void putHistogram(Map<String, Long> values, String name, Histogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".p50", histogram.percentile(50));
+        values.put(name + ".p99", histogram.percentile(99));
+        values.put(name + ".p999", histogram.percentile(99.9));
+        values.put(name + ".max", histogram.getMax());
+    }
+
+    /**
+     * Creates a counter for every frame type slot
+     * @return the counters
+     */
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[TYPE_SLOTS];
+        for(int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Read-only MBean with one Long attribute per metric
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if(value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for(String attribute : attributes) {
+                if(values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            // the attributes are whatever the snapshot holds right now, new frame types appear as they're seen
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for(String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
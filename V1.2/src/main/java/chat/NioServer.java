@@ -0,0 +1,861 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking group chat server where a few selector threads own every client connection
+ * Speaks the same LOGIN/TEXT/FILE framing as the thread-per-client ClientHandler, over a TlsChannel when TLS is on
+ */
+public class NioServer {
+
+    // size of the read buffer shared by every connection on one event loop
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // maximum number of queued frames handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+    // most spare partial frame buffers each event loop keeps for reuse
+    private static final int MAX_POOLED_BUFFERS = 64;
+    // most file frames a connection may have waiting for its file thread before the loop stops reading from it
+    private static final int MAX_FILE_TASKS = 2 * FileRelay.WINDOW;
+
+    // class variables
+    private ServerSocketChannel serverSocketChannel;
+    private EventLoop[] eventLoops;
+    private int nextLoop = 0;
+    private ClientRegistry<Connection> connections = new ClientRegistry<>();
+    private RoomIndex<Connection> rooms = new RoomIndex<>();
+    // recent text messages, replayed to every client as it logs in
+    private HistoryRing history = new HistoryRing();
+    // durable record of the messages relayed, or null
+    private MessageLog messageLog = MessageLog.getDefault();
+    // other server nodes, everything this node's clients send to the group is relayed to them
+    private Federation<Connection> federation = new Federation<>(this.connections, this.rooms, this.history);
+    // sessions whose connection was lost, kept for a while so their client can resume them
+    private Resume<Connection> resumes = new Resume<>(this.connections, this.rooms, this.history, this.federation);
+    private static final Metrics metrics = Metrics.get();
+
+    /**
+     * Creates a new non-blocking server object
+     * @param serverSocketChannel - The bound server socket channel used to listen for connections
+     * @param loopCount - The number of selector threads that share the client connections
+     * @throws IOException - IO error when opening the selectors
+     */
+    public NioServer(ServerSocketChannel serverSocketChannel, int loopCount) throws IOException {
+        this.serverSocketChannel = serverSocketChannel;
+        this.eventLoops = new EventLoop[Math.max(1, loopCount)];
+        for(int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new EventLoop(i);
+        }
+        metrics.watch(this.connections);
+        metrics.gauge("rooms.active", this.rooms::roomCount);
+        metrics.gauge("resume.parked", this.resumes::parkedCount);
+        this.rooms.setFederation(this.federation);
+    }
+
+    /**
+     * Gets the links to other server nodes
+     * @return the federation of this server
+     */
+    public Federation<Connection> getFederation() {
+        return this.federation;
+    }
+
+    /**
+     * Starts the event loops and keeps accepting connections until the server channel is closed
+     */
+    public void runServer() {
+        // start every event loop on its own thread
+        for(EventLoop eventLoop : this.eventLoops) {
+            eventLoop.thread.start();
+        }
+
+        try {
+            // print confirmation that server has started
+            System.out.println("SERVER STARTUP SUCCESSFUL (nio, " + this.eventLoops.length + " event loops)");
+
+            // accepting is cheap, so the calling thread blocks on accept and hands connections to the loops
+            while(this.serverSocketChannel.isOpen()) {
+                SocketChannel channel = this.serverSocketChannel.accept();
+                metrics.accepted.increment();
+
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    // clients that don't send heartbeats are only found dead by the operating system's keepalive probes
+                    channel.socket().setKeepAlive(true);
+                } catch (IOException e) {
+                    // a client that reset right after connecting only loses its own connection, not the server
+                    closeQuietly(channel);
+                    continue;
+                }
+
+                // spread connections over the event loops round robin
+                this.eventLoops[this.nextLoop].register(channel);
+                this.nextLoop = (this.nextLoop + 1) % this.eventLoops.length;
+            }
+        } catch (IOException e) {
+            closeServerChannel();
+        }
+    }
+
+    /**
+     * Error handling method that closes the server channel
+     */
+    private void closeServerChannel() {
+        try {
+            if(this.serverSocketChannel != null) {
+                this.serverSocketChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A selector thread that owns a share of the client connections
+     */
+    private class EventLoop implements Runnable {
+
+        private Selector selector;
+        private Thread thread;
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // direct buffer every connection on this loop reads into, so idle connections hold no buffer
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // checks frame headers against the protocol's limits, only the payload buffer is per connection state
+        private FrameCodec frameCodec = new FrameCodec();
+        // spare buffers for partial frames, each big enough for the largest frame the codec accepts
+        private ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+        /**
+         * Creates a new event loop
+         * @param index - The index of the loop, used to name its thread
+         * @throws IOException - IO error when opening the selector
+         */
+        private EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        /**
+         * Hands an accepted channel to this loop
+         * @param channel - The non-blocking client channel
+         */
+        private void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+                    // the login has to arrive within the idle timeout
+                    connection.heartbeat.start();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Takes a buffer for a partial frame from the pool
+         * @return an empty buffer that holds any frame
+         */
+        private ByteBuffer takeBuffer() {
+            ByteBuffer buffer = this.bufferPool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocate(this.frameCodec.maxFrameLength());
+        }
+
+        /**
+         * Returns a partial frame buffer to the pool once its frame has been handled
+         * @param buffer - The buffer being returned
+         */
+        private void releaseBuffer(ByteBuffer buffer) {
+            if(this.bufferPool.size() < MAX_POOLED_BUFFERS) {
+                this.bufferPool.add(buffer.clear());
+            }
+        }
+
+        /**
+         * Runs a task on this loop's thread
+         * @param task - The task to run
+         */
+        private void execute(Runnable task) {
+            this.tasks.add(task);
+            // tasks queued from the loop itself run at the end of the current pass without a wakeup
+            if(Thread.currentThread() != this.thread) {
+                this.selector.wakeup();
+            }
+        }
+
+        /**
+         * Waits for ready connections and services them until the server channel is closed
+         */
+        public void run() {
+            while(serverSocketChannel.isOpen()) {
+                try {
+                    this.selector.select();
+
+                    // service every connection that is ready to read or write
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if(key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if(key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            if(e instanceof ProtocolException) {
+                                metrics.protocolErrors.increment();
+                            }
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // a bug handling one connection's frame only costs that connection, the loop and every
+                            // other connection on it carry on
+                            e.printStackTrace();
+                            closeAfterError(connection);
+                        }
+                    }
+
+                    // run tasks handed over by the acceptor and other loops
+                    Runnable task;
+                    while((task = this.tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // the task's connection is left to its idle timeout, the loop carries on
+                            e.printStackTrace();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Closes a connection whose frame handling threw, making sure its channel goes even if closing throws too
+         * @param connection - The connection being closed
+         */
+        private void closeAfterError(Connection connection) {
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                if(connection.key != null) {
+                    connection.key.cancel();
+                }
+                closeQuietly(connection.channel);
+            }
+        }
+    }
+
+    /**
+     * State of one client connection, only touched by the thread of its event loop except for send
+     */
+    private class Connection implements ChatSession {
+
+        private SocketChannel channel;
+        // encrypts and decrypts everything on the channel when TLS is on, or null
+        private TlsChannel tls;
+        private SelectionKey key;
+        private EventLoop eventLoop;
+        private String username;
+        private int sessionId;
+        // bytes of a partially received frame, or null when the connection has no partial frame
+        private ByteBuffer pending;
+        // bounded queue of frames from any thread, the event loop is this connection's writer
+        private OutboundQueue outboundQueue = new OutboundQueue();
+        // frames taken off the queue and partly written, only touched by the event loop
+        private ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private AtomicBoolean flushScheduled = new AtomicBoolean();
+        private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // files this client is sending, kept in the attachment store on the way, only used by the file tasks
+        private FileRelay fileRelay = new FileRelay(AttachmentStore.getDefault());
+        // file frames waiting to be handled in order off the event loop, as they read and write the store
+        private Queue<Runnable> fileTasks = new ConcurrentLinkedQueue<>();
+        private AtomicInteger pendingFileTasks = new AtomicInteger();
+        // set while too many file frames are waiting and the loop has stopped reading, only touched by the event loop
+        private boolean readPaused = false;
+        // hands back the credit for this client's chunks as fast as the recipients take them
+        private FilePacer<Connection> filePacer = new FilePacer<>(this, connections, federation);
+        // whether this client negotiated compressed frames, set before the connection is registered
+        private boolean compression = false;
+        // whether this client negotiated session ids in frame types, set before the connection is registered
+        private boolean sessionIds = false;
+        // whether this client fetches files from the attachment store instead of having them pushed, set before the connection is registered
+        private boolean attachments = false;
+        // drops the client once nothing has arrived from it for the idle timeout
+        private Heartbeat heartbeat = new Heartbeat(this::timedOut);
+
+        /**
+         * Creates a new connection
+         * @param channel - The non-blocking client channel
+         * @param eventLoop - The loop that owns the channel
+         * @throws IOException - TLS could not be set up
+         */
+        private Connection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            if(Tls.ENABLED) {
+                this.tls = new TlsChannel(channel, Tls.serverEngine(), () -> this.eventLoop.execute(this::resumeHandshake));
+            }
+        }
+
+        public int getSessionId() {
+            return this.sessionId;
+        }
+
+        public String getUsername() {
+            return this.username;
+        }
+
+        /**
+         * Gets the queue of frames waiting to be written to this connection
+         * @return the outbound queue, for its depth and drop counters
+         */
+        public OutboundQueue getOutboundQueue() {
+            return this.outboundQueue;
+        }
+
+        /**
+         * Carries the TLS handshake on once its delegated tasks have run, with whatever the client sent meanwhile
+         * This method runs on the event loop
+         */
+        private void resumeHandshake() {
+            if(this.key == null || !this.key.isValid()) {
+                return;
+            }
+            try {
+                onReadable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Reads what is available from the channel and handles every complete frame
+         * @throws IOException - IO error on the channel
+         */
+        private void onReadable() throws IOException {
+            // TLS may have decrypted more than fits at once, which the selector won't say is there
+            do {
+                // continue a partial frame in its own buffer, otherwise use the loop's shared buffer
+                ByteBuffer in = this.pending;
+                if(in == null) {
+                    in = this.eventLoop.readBuffer;
+                    in.clear();
+                }
+                if((this.tls != null ? this.tls.read(in) : this.channel.read(in)) < 0) {
+                    close();
+                    return;
+                }
+                this.heartbeat.touch();
+                in.flip();
+
+                // handle every complete frame in the buffer, the codec throws if a header breaks the protocol
+                while(this.eventLoop.frameCodec.requiredBytes(in, this.username == null) <= in.remaining()) {
+                    handleFrame(in);
+                    if(this.key == null || !this.key.isValid()) {
+                        return;
+                    }
+                }
+
+                if(!in.hasRemaining()) {
+                    // nothing left over, hand the partial frame buffer back
+                    if(in == this.pending) {
+                        this.eventLoop.releaseBuffer(this.pending);
+                        this.pending = null;
+                    }
+                } else if(in == this.pending) {
+                    // the buffer holds the largest frame, so the rest of this one always fits
+                    this.pending.compact();
+                } else {
+                    // keep the partial frame in a pooled buffer until the rest arrives
+                    this.pending = this.eventLoop.takeBuffer().put(in);
+                }
+            } while(this.tls != null && this.tls.hasBuffered());
+
+            if(this.tls != null && this.tls.isWritePending()) {
+                // the handshake has something to say that the socket didn't take yet
+                flush();
+            }
+        }
+
+        /**
+         * Consumes one complete frame from the buffer and acts on it
+         * @param in - The received bytes, holding at least one complete frame
+         * @throws ProtocolException - A room frame names its room badly
+         */
+        private void handleFrame(ByteBuffer in) throws ProtocolException {
+            if(this.username == null) {
+                // read in the client username and announce the new client to everyone
+                int header = in.getInt();
+                byte[] usernameBytes = new byte[header & 0xFFFF];
+                in.get(usernameBytes);
+                this.username = new String(usernameBytes);
+                int requested = header >>> 16;
+                // a client resuming a parked session takes over its session id and username, otherwise it logs in afresh
+                Resume.Parked<Connection> parked = null;
+                if((requested & Resume.RESUMING) != 0) {
+                    parked = resumes.claim(in.slice(in.position(), Resume.LOGIN_LENGTH));
+                    in.position(in.position() + Resume.LOGIN_LENGTH);
+                }
+                if(parked != null) {
+                    this.username = parked.getUsername();
+                }
+                // every frame this client causes carries its session id
+                this.sessionId = parked != null ? parked.getSessionId() : connections.nextSessionId();
+                if(this.sessionId == 0) {
+                    // every session id is taken
+                    close();
+                    return;
+                }
+                this.fileRelay.setSender(this.sessionId);
+
+                int accepted = 0;
+                if(requested != 0) {
+                    // answer the capabilities the client asked for before anything else is queued
+                    accepted = Compression.accept(requested) | Heartbeat.accept(requested) | Presence.accept(requested) | AttachmentStore.accept(requested) | Resume.accept(requested);
+                    if(parked != null) {
+                        accepted |= Resume.RESUMING;
+                    }
+                    this.compression = (accepted & Compression.COMPRESSION) != 0;
+                    this.sessionIds = (accepted & Presence.SESSION_IDS) != 0;
+                    this.attachments = (accepted & AttachmentStore.ATTACHMENTS) != 0;
+                    send(Compression.capabilities(accepted, this.sessionId));
+                }
+                if((accepted & Heartbeat.HEARTBEATS) == 0) {
+                    // an older client may stay quiet for as long as it likes, only the login had to arrive in time
+                    this.heartbeat.stop();
+                }
+                Map<Integer, String> others = this.sessionIds ? federation.remoteSessions() : null;
+                if(parked != null) {
+                    // back in its old place and caught up on what it missed, nobody saw it leave so nobody is told
+                    resumes.rejoin(this, parked, others);
+                    return;
+                }
+                // tell a client that keeps a table of session ids who is already here, then catch it up
+                if((accepted & Resume.RESUME) != 0) {
+                    resumes.join(this, others);
+                } else {
+                    connections.join(this, history, others);
+                }
+                Frame alert = Presence.login(this.sessionId, this.username);
+                connections.announce(alert);
+                federation.forward(alert);
+                return;
+            }
+
+            int type = in.getInt();
+            int length = in.getInt();
+            // view of just this frame's payload, the loop's buffer moves past it whatever the frame holds
+            ByteBuffer payload = in.slice(in.position(), length);
+            in.position(in.position() + length);
+            boolean compressed = (type & Compression.FLAG) != 0;
+            if(compressed) {
+                // decompressed into the loop's codec buffer, which is free again once this frame is handled
+                type &= ~Compression.FLAG;
+                payload = this.eventLoop.frameCodec.decompress(type, payload);
+            }
+            metrics.frameIn(type, Frame.HEADER_LENGTH + length);
+            // time from a whole frame having been decoded to it being handed to its recipients, as in the blocking server
+            long decoded = System.nanoTime();
+            try {
+                handlePayload(type, payload, compressed);
+            } finally {
+                metrics.handleNanos.recordSince(decoded);
+            }
+            if(messageLog != null && messageLog.isBehind()) {
+                waitForLog();
+            }
+        }
+
+        /**
+         * Acts on the payload of one frame
+         * @param type - The frame type
+         * @param payload - The frame's payload
+         * @param compressed - Whether the frame arrived compressed
+         * @throws ProtocolException - A room frame names its room badly, or a direct message its recipient
+         */
+        private void handlePayload(int type, ByteBuffer payload, boolean compressed) throws ProtocolException {
+            switch(type) {
+                case Client.TEXT:
+                    // record and relay the text to every other client, encoded straight from the read buffer
+                    Frame text = Frame.encode(Client.TEXT, this.sessionId, payload);
+                    history.publish(text, connections, this);
+                    federation.forward(text);
+                    break;
+                case Client.FILE:
+                case Client.FILE_OFFER:
+                case Client.FILE_CHUNK:
+                case Client.FILE_END:
+                case Client.FILE_REQUEST:
+                    // these read and write the attachment store, which would hold up every connection on this loop,
+                    // so they are handled on the connection's file thread from a copy of the payload
+                    ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+                    handOff(() -> handleFile(type, copy, compressed));
+                    break;
+                case Client.JOIN:
+                    rooms.join(this, payload);
+                    break;
+                case Client.LEAVE:
+                    rooms.leave(this, payload);
+                    break;
+                case Client.ROOM_TEXT:
+                    // only the members of the room are visited, not every connection
+                    rooms.send(this, payload);
+                    break;
+                case Client.DIRECT:
+                    // one index lookup finds the recipient, nobody else is visited
+                    Direct.send(this, payload, connections, federation);
+                    break;
+                case Client.HEARTBEAT:
+                    // answer, so the client knows the server is still there too
+                    send(Heartbeat.FRAME);
+                    break;
+                case Client.LOGOUT:
+                    // the client is leaving, end the session for good
+                    close(false);
+                    break;
+                default:
+                    // the codec only lets through types it knows, anything else clients may send is ignored
+                    break;
+            }
+        }
+
+        /**
+         * Acts on the payload of a file frame
+         * This method runs on the connection's file thread, one frame at a time in the order they arrived
+         * @param type - The frame type
+         * @param payload - A copy of the frame's payload
+         * @param compressed - Whether the frame arrived compressed
+         */
+        private void handleFile(int type, ByteBuffer payload, boolean compressed) {
+            switch(type) {
+                case Client.FILE:
+                    // relay the announcement of a new file transfer and let the sender start streaming
+                    int announcedId = payload.getInt(0);
+                    Frame announcement = this.fileRelay.start(payload);
+                    if(announcement != null) {
+                        relay(announcement);
+                        send(FileRelay.credit(announcedId, FileRelay.WINDOW));
+                    }
+                    break;
+                case Client.FILE_OFFER:
+                    // a file offered by its hash, only uploaded if the store doesn't have it yet
+                    int offeredId = payload.getInt(0);
+                    Frame offered = this.fileRelay.offer(payload);
+                    if(offered != null) {
+                        relay(offered);
+                        if(this.fileRelay.isStored(offeredId)) {
+                            // tell the client not to send the chunks, then relay them from the store
+                            send(FileRelay.credit(offeredId, FileRelay.STORED));
+                            // the chunks come from the store as the recipients take them, not all at once on this thread
+                            this.filePacer.replay(this.fileRelay.replay(offeredId), this::relay);
+                        } else {
+                            send(FileRelay.credit(offeredId, FileRelay.WINDOW));
+                        }
+                    }
+                    break;
+                case Client.FILE_CHUNK:
+                    int transferId = payload.getInt();
+                    Frame chunk = this.fileRelay.chunk(transferId, payload);
+                    if(chunk != null) {
+                        if(this.compression && !compressed) {
+                            // the sender chose not to compress this file, it won't shrink here either
+                            chunk.keepUncompressed();
+                        }
+                        relay(chunk);
+                        // the sender may send another chunk once the recipients have room for it
+                        this.filePacer.relayed(transferId);
+                    }
+                    break;
+                case Client.FILE_END:
+                    for(Frame end : this.fileRelay.end(payload.getInt(), payload.get())) {
+                        relay(end);
+                    }
+                    break;
+                case Client.FILE_REQUEST:
+                    // a range of a stored file, for this client alone
+                    FileRelay.serve(AttachmentStore.getDefault(), payload, this);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Queues a task that touches the attachment store, to run after every file task queued before it
+         * A virtual thread runs the tasks while there are any, and the loop stops reading from the connection while
+         * more than MAX_FILE_TASKS are waiting, so a client sending faster than the disk keeps up can't fill the heap
+         * This method runs on the event loop
+         * @param task - The task
+         */
+        private void handOff(Runnable task) {
+            this.fileTasks.add(task);
+            int pending = this.pendingFileTasks.incrementAndGet();
+            if(pending == 1) {
+                Thread.startVirtualThread(this::runFileTasks);
+            } else if(pending > MAX_FILE_TASKS && !this.readPaused && this.key != null && this.key.isValid()) {
+                this.readPaused = true;
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Runs the queued file tasks until there are none left
+         * This method runs on the connection's file thread
+         */
+        private void runFileTasks() {
+            int pending;
+            do {
+                try {
+                    this.fileTasks.poll().run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                pending = this.pendingFileTasks.decrementAndGet();
+                if(pending == MAX_FILE_TASKS / 2) {
+                    // caught up enough, let the loop read from the client again
+                    this.eventLoop.execute(this::resumeReading);
+                }
+            } while(pending > 0);
+        }
+
+        /**
+         * Stops reading from the client until the message log's writer has caught up, as the log never drops a
+         * message and the loop can't wait for it
+         * The wait is queued with the file tasks, so their thread does it and the loop goes on serving everyone else
+         * This method runs on the event loop
+         */
+        private void waitForLog() {
+            if(!this.readPaused && this.key != null && this.key.isValid()) {
+                this.readPaused = true;
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            handOff(() -> {
+                messageLog.awaitRoom();
+                this.eventLoop.execute(this::resumeReading);
+            });
+        }
+
+        /**
+         * Reads from the client again after its file frames or the message log have caught up
+         * Reading stays paused while too many file frames are waiting, the file thread resumes it once they aren't
+         * This method runs on the event loop
+         */
+        private void resumeReading() {
+            if(!this.readPaused || this.key == null || !this.key.isValid() || this.pendingFileTasks.get() > MAX_FILE_TASKS / 2) {
+                return;
+            }
+            this.readPaused = false;
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+            if(this.tls != null && this.tls.hasBuffered()) {
+                // decrypted bytes already read from the socket, the selector won't say they are there
+                try {
+                    onReadable();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Sends a frame from this client to all other clients on this node and on every other node
+         * @param frame - The frame being relayed
+         */
+        private void relay(Frame frame) {
+            connections.broadcast(frame, this);
+            federation.forward(frame);
+        }
+
+        /**
+         * Queues a frame for this connection, may be called from any thread
+         * @param frame - The frame to send
+         */
+        public void send(Frame frame) {
+            if(this.attachments ? FileRelay.isPushed(frame) : frame.getType() == Client.ATTACHMENT) {
+                // a client that fetches files only hears about them once they're stored, older clients get them pushed
+                return;
+            }
+            if(!this.sessionIds) {
+                // an older client gets frames without senders, and nothing it wouldn't understand
+                frame = frame.anonymous();
+                if(frame == null) {
+                    return;
+                }
+            }
+            if(this.compression) {
+                // the first compressing recipient of a broadcast compresses it, the rest reuse those bytes
+                frame = frame.compressed();
+            }
+            if(!this.outboundQueue.offer(frame)) {
+                // the client has stopped reading for longer than the stall timeout, its session ends for good
+                this.eventLoop.execute(() -> close(false));
+                return;
+            }
+            // only one flush needs to be pending on the loop at a time
+            if(this.flushScheduled.compareAndSet(false, true)) {
+                this.eventLoop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Writes as much of the queued frames as the socket accepts using gathering writes
+         * @throws IOException - IO error on the channel
+         */
+        private void flush() throws IOException {
+            this.flushScheduled.set(false);
+            if(this.key == null || !this.key.isValid()) {
+                return;
+            }
+            if(this.tls != null && !this.tls.flush()) {
+                // encrypted bytes of earlier frames or of the handshake have to go first
+                this.key.interestOps((this.readPaused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            while(true) {
+                // once the last batch is fully written, take the next batch off the queue
+                Frame frame;
+                while(this.writing.size() < MAX_GATHER && (frame = this.outboundQueue.poll()) != null) {
+                    // every recipient gets its own position over the same bytes
+                    this.writing.add(frame.buffer());
+                    metrics.frameOut(frame.getType(), frame.length());
+                }
+                if(this.writing.isEmpty()) {
+                    break;
+                }
+
+                // hand as many frames as possible to one write call
+                int count = 0;
+                for(ByteBuffer buffer : this.writing) {
+                    if(count == MAX_GATHER) {
+                        break;
+                    }
+                    this.gather[count++] = buffer;
+                }
+                long start = System.nanoTime();
+                long written = this.tls != null ? this.tls.write(this.gather, 0, count) : this.channel.write(this.gather, 0, count);
+                metrics.writeNanos.recordSince(start);
+                Arrays.fill(this.gather, 0, count, null);
+                if(written > 0) {
+                    this.outboundQueue.markProgress();
+                }
+
+                // drop the frames that were fully written
+                while(!this.writing.isEmpty() && !this.writing.peek().hasRemaining()) {
+                    this.writing.poll();
+                }
+                if(!this.writing.isEmpty()) {
+                    // socket buffer is full, wait until the socket is writable again
+                    break;
+                }
+            }
+
+            // only ask for write readiness while there is something left to write
+            boolean unwritten = !this.writing.isEmpty() || (this.tls != null && this.tls.isWritePending());
+            int ops = (this.readPaused ? 0 : SelectionKey.OP_READ) | (unwritten ? SelectionKey.OP_WRITE : 0);
+            if(this.key.interestOps() != ops) {
+                this.key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Drops the client's connection for a new connection that resumed its session
+         * The connection is closed by its event loop, and finds the session gone from the group
+         */
+        public void disconnect() {
+            this.eventLoop.execute(this::close);
+        }
+
+        /**
+         * Drops a client that has sent nothing for the idle timeout
+         * This method runs on the wheel's thread, so the connection is closed by its event loop
+         */
+        private void timedOut() {
+            metrics.idleTimeouts.increment();
+            this.eventLoop.execute(this::close);
+        }
+
+        /**
+         * Removes the connection from the group and closes its channel after its connection was lost, parking its
+         * session if its client can resume it
+         */
+        private void close() {
+            close(true);
+        }
+
+        /**
+         * Removes the connection from the group and closes its channel
+         * @param lost - Whether the connection was lost, so a client that can resume the session gets the chance
+         */
+        private void close(boolean lost) {
+            this.heartbeat.stop();
+            boolean parked = lost && resumes.park(this);
+            if(!parked) {
+                resumes.forget(this);
+            }
+            // a parked session is out of the group already but stays in its rooms, without anyone being told, and
+            // so is a session another connection resumed
+            boolean ended = !parked && connections.remove(this);
+            // tell the receivers that any file this client was sending won't be finished, once its file thread has
+            // handled what arrived before
+            this.filePacer.close();
+            handOff(() -> {
+                for(Frame end : this.fileRelay.abortAll()) {
+                    relay(end);
+                }
+            });
+            if(ended) {
+                rooms.leaveAll(this);
+                // only a client that made it into the group is announced, and only once however the session ended
+                Frame alert = Presence.logout(this.sessionId, this.username);
+                connections.announce(alert);
+                federation.forward(alert);
+            }
+            this.outboundQueue.close();
+            if(this.key != null) {
+                this.key.cancel();
+            }
+            if(this.pending != null) {
+                this.eventLoop.releaseBuffer(this.pending);
+                this.pending = null;
+            }
+            if(this.tls != null) {
+                this.tls.close();
+            }
+            closeQuietly(this.channel);
+        }
+    }
+
+    /**
+     * Closes a channel, printing any error
+     * @param channel - The channel being closed
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
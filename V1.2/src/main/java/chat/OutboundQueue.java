@@ -0,0 +1,405 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client
+ * Senders only ever add to the queue, so a client that reads slowly can't hold up a broadcast to everyone else
+ * When the queue is full the slow consumer policy decides what gives
+ * Pushed file frames are never thrown away, a file missing a chunk is no use to anyone. They are queued past the
+ * capacity instead, which FilePacer keeps in check by holding back the sender's credit, and a client that stops
+ * reading with file frames queued is disconnected after the stall timeout whatever the policy
+ * A queue tracked by a Backlog tells it whenever its depth crosses the backlog's threshold, which is how the pacer
+ * finds the clients that are behind without visiting every connection
+ * Under COALESCE the same goes for the join/leave alerts of clients that use session ids, which keep a table of
+ * usernames by session id: an alert is only ever dropped once a later one about the same session replaces it
+ */
+public class OutboundQueue {
+
+    /**
+     * What happens when a frame arrives for a client whose queue is full
+     */
+    public enum Policy {
+        // throw away the oldest queued frame to make room
+        DROP_OLDEST,
+        // merge the queued join/leave alerts, dropping the oldest other frame if there are none to merge
+        COALESCE,
+        // throw away the new frame, and disconnect the client once its writes have stalled for the stall timeout
+        DISCONNECT
+    }
+
+    // defaults, tunable with system properties
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    public static final Policy DEFAULT_POLICY = Policy.valueOf(System.getProperty("chat.outbound.policy", "DROP_OLDEST"));
+    public static final long DEFAULT_STALL_MILLIS = Long.getLong("chat.outbound.stallMillis", 10_000);
+
+    // class variables
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final Policy policy;
+    private final long stallNanos;
+    // a ReentrantLock rather than synchronized so a waiting writer doesn't pin a virtual thread's carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private boolean closed = false;
+    // the backlog this queue reports to, or null, and whether it is at or over the threshold, guarded by the lock
+    private Backlog backlog = null;
+    private boolean behind = false;
+    // when the writer last made progress, only meaningful while frames are queued
+    private volatile long lastProgressNanos = System.nanoTime();
+
+    // counters
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong coalescedFrames = new AtomicLong();
+
+    /**
+     * Creates a new queue with the configured capacity, policy and stall timeout
+     */
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY, DEFAULT_STALL_MILLIS);
+    }
+
+    /**
+     * Creates a new queue
+     * @param capacity - The most frames that can wait to be written
+     * @param policy - What to do when a frame arrives while the queue is full
+     * @param stallMillis - How long writes may make no progress before a DISCONNECT queue gives up on the client
+     */
+    public OutboundQueue(int capacity, Policy policy, long stallMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+    }
+
+    /**
+     * Adds a frame to the queue without ever waiting for the writer
+     * @param frame - The frame to be written
+     * @return false if the client has stalled for too long and should be disconnected
+     */
+    public boolean offer(Frame frame) {
+        // a COALESCE queue keeps the alerts of session id clients too, it merges them rather than losing them
+        return offer(frame, FileRelay.isPushed(frame) || (this.policy == Policy.COALESCE && isSessionAlert(frame)));
+    }
+
+    /**
+     * Adds a frame to the queue without ever waiting for the writer
+     * @param frame - The frame to be written
+     * @param keep - Whether the frame must not be thrown away, it then goes past the capacity if nothing else can go
+     * @return false if the client has stalled for too long and should be disconnected
+     */
+    public boolean offer(Frame frame, boolean keep) {
+        this.lock.lock();
+        try {
+            if(this.closed) {
+                return true;
+            }
+            if(this.frames.size() >= this.capacity && !makeRoom()) {
+                boolean stalled = System.nanoTime() - this.lastProgressNanos >= this.stallNanos;
+                if(!keep || stalled) {
+                    // the new frame is dropped
+                    this.droppedFrames.incrementAndGet();
+                    return !stalled;
+                }
+                // otherwise it's queued past the capacity
+            }
+            if(this.frames.isEmpty()) {
+                // the stall clock starts when the queue stops being empty
+                this.lastProgressNanos = System.nanoTime();
+            }
+            this.frames.add(frame);
+            updateBacklog();
+            this.notEmpty.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a slot in the full queue according to the policy, must be called holding the lock
+     * @return true if there is now room for another frame
+     */
+    private boolean makeRoom() {
+        switch(this.policy) {
+            case COALESCE:
+                // nothing to merge, fall back to dropping the oldest frame
+                return coalescePresence() || dropOldest();
+            case DROP_OLDEST:
+                return dropOldest();
+            case DISCONNECT:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Throws away the oldest queued frame that may be thrown away, must be called holding the lock
+     * That is any frame but those of a pushed file, and under COALESCE the alerts of session id clients too
+     * @return false if nothing queued may be thrown away
+     */
+    private boolean dropOldest() {
+        Iterator<Frame> iterator = this.frames.iterator();
+        while(iterator.hasNext()) {
+            Frame frame = iterator.next();
+            if(!FileRelay.isPushed(frame) && !(this.policy == Policy.COALESCE && isSessionAlert(frame))) {
+                iterator.remove();
+                this.droppedFrames.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges the queued join/leave alerts, must be called holding the lock
+     * @return true if at least one alert was saved
+     */
+    private boolean coalescePresence() {
+        return mergeSessionAlerts() || summarizeAlerts();
+    }
+
+    /**
+     * Drops each alert of a session id client that a later alert about the same session makes pointless
+     * Such a client keeps a table of usernames by session id, which a LOGIN sets and a LOGOUT clears, so only the
+     * last alert about each session counts. An earlier one is kept if something from that session comes between,
+     * so it's still known by name when that arrives, and so is everything before a batch, which could hold anything
+     * Must be called holding the lock
+     * @return true if at least one alert was dropped
+     */
+    private boolean mergeSessionAlerts() {
+        // sessions with an alert further on and nothing from them since, walking from the newest frame back
+        Set<Integer> superseded = new HashSet<>();
+        int merged = 0;
+        Iterator<Frame> iterator = this.frames.descendingIterator();
+        while(iterator.hasNext()) {
+            Frame frame = iterator.next();
+            int sender = frame.getSender();
+            if(frame.getType() == Frame.BATCH) {
+                superseded.clear();
+            } else if(isSessionAlert(frame)) {
+                if(superseded.contains(sender)) {
+                    iterator.remove();
+                    merged++;
+                } else {
+                    superseded.add(sender);
+                }
+            } else if(sender != 0) {
+                superseded.remove(sender);
+            }
+        }
+        this.coalescedFrames.addAndGet(merged);
+        return merged > 0;
+    }
+
+    /**
+     * Replaces every queued alert worded for people with one summary alert, must be called holding the lock
+     * @return true if at least two alerts were merged into one
+     */
+    private boolean summarizeAlerts() {
+        int alerts = 0;
+        for(Frame frame : this.frames) {
+            if(isAlert(frame) && frame.getSender() == 0) {
+                alerts++;
+            }
+        }
+        if(alerts < 2) {
+            return false;
+        }
+
+        // take the alerts out, keeping the order of everything else
+        Iterator<Frame> iterator = this.frames.iterator();
+        while(iterator.hasNext()) {
+            Frame frame = iterator.next();
+            if(isAlert(frame) && frame.getSender() == 0) {
+                iterator.remove();
+            }
+        }
+        // a client that fell this far behind only needs to know the membership changed
+        this.frames.add(Frame.encode(Client.LOGIN, (alerts + " people have entered or left the chat").getBytes()));
+        this.coalescedFrames.addAndGet(alerts - 1);
+        return true;
+    }
+
+    /**
+     * Checks whether a frame is a join/leave alert
+     * @param frame - The frame
+     * @return true for LOGIN and LOGOUT frames
+     */
+    private static boolean isAlert(Frame frame) {
+        return frame.getType() == Client.LOGIN || frame.getType() == Client.LOGOUT;
+    }
+
+    /**
+     * Checks whether a frame is a join/leave alert for a session id client, which carries the session it is about
+     * @param frame - The frame
+     * @return true for LOGIN and LOGOUT frames with a sender
+     */
+    private static boolean isSessionAlert(Frame frame) {
+        return isAlert(frame) && frame.getSender() != 0;
+    }
+
+    /**
+     * Waits for the next frame to write
+     * @return the next frame, or null once the queue has been closed
+     * @throws InterruptedException - The writer thread was interrupted while waiting
+     */
+    public Frame take() throws InterruptedException {
+        this.lock.lock();
+        try {
+            while(this.frames.isEmpty() && !this.closed) {
+                this.notEmpty.await();
+            }
+            if(this.closed) {
+                return null;
+            }
+            Frame frame = this.frames.poll();
+            updateBacklog();
+            return frame;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame if there is one, for writers that can't wait
+     * @return the next frame, or null if the queue is empty or closed
+     */
+    public Frame poll() {
+        this.lock.lock();
+        try {
+            if(this.closed) {
+                return null;
+            }
+            Frame frame = this.frames.poll();
+            updateBacklog();
+            return frame;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves every queued frame into a batch, so a writer can write them all before a single flush
+     * @param batch - The list the frames are added to, in queue order
+     * @return the number of frames moved
+     */
+    public int drainTo(List<Frame> batch) {
+        this.lock.lock();
+        try {
+            if(this.closed) {
+                return 0;
+            }
+            int count = this.frames.size();
+            batch.addAll(this.frames);
+            this.frames.clear();
+            updateBacklog();
+            return count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the writer has finished writing a frame, which resets the stall clock
+     */
+    public void markProgress() {
+        this.lastProgressNanos = System.nanoTime();
+    }
+
+    /**
+     * Closes the queue, waking the writer and throwing away anything still queued
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.frames.clear();
+            updateBacklog();
+            this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reports this queue's depth to a backlog from now on, in place of any backlog it reported to before
+     * @param backlog - The backlog of the group the queue's client is in, or null once it has left the group
+     */
+    public void track(Backlog backlog) {
+        this.lock.lock();
+        try {
+            if(this.backlog != null && this.behind) {
+                this.backlog.update(this, false);
+            }
+            this.backlog = backlog;
+            this.behind = false;
+            updateBacklog();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Tells the backlog if the depth crossed its threshold, must be called holding the lock after every change
+     */
+    private void updateBacklog() {
+        if(this.backlog == null) {
+            return;
+        }
+        boolean behind = this.frames.size() >= this.backlog.getThreshold();
+        if(behind != this.behind) {
+            this.behind = behind;
+            this.backlog.update(this, behind);
+        }
+    }
+
+    /**
+     * Gets the number of frames waiting to be written
+     * @return the queue depth
+     */
+    public int depth() {
+        this.lock.lock();
+        try {
+            return this.frames.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether frames are waiting but the writer has made no progress for the stall timeout
+     * @return true if the client looks like it stopped reading
+     */
+    public boolean isStalled() {
+        this.lock.lock();
+        try {
+            return !this.frames.isEmpty() && System.nanoTime() - this.lastProgressNanos >= this.stallNanos;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of frames thrown away because the queue was full
+     * @return the dropped frame count
+     */
+    public long getDroppedFrames() {
+        return this.droppedFrames.get();
+    }
+
+    /**
+     * Gets the number of join/leave alerts saved by merging them into summary alerts
+     * @return the coalesced frame count
+     */
+    public long getCoalescedFrames() {
+        return this.coalescedFrames.get();
+    }
+}
@@ -0,0 +1,110 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session ids in frame types, and the presence frames clients keep their session id to username tables with
+ * A client that sets the SESSION_IDS bit when logging in gets the session id of the client behind every frame in
+ * the top 16 bits of its type, 0 for frames from the server itself, and its own id on the CAPABILITIES frame.
+ * LOGIN and LOGOUT frames then carry just the username, and SESSIONS frames list sessions the client should know
+ * about without an alert: [session id][username length][username]..., a length of 0 meaning the id has gone
+ * Clients that didn't ask get every frame with its sender cleared, alerts worded for people, and no SESSIONS frames
+ */
+public class Presence {
+
+    // capability bit in the login handshake and the CAPABILITIES frame
+    public static final int SESSION_IDS = 4;
+    // largest SESSIONS frame, longer lists are split over several frames
+    public static final int MAX_SESSIONS_LENGTH = 64 * 1024;
+
+    /**
+     * Works out whether the server agrees to session ids a client asked for
+     * @param requested - The capability bits sent with the username
+     * @return SESSION_IDS if the client asked for them, otherwise 0
+     */
+    public static int accept(int requested) {
+        return requested & SESSION_IDS;
+    }
+
+    /**
+     * Encodes the alert that a client has entered the chat
+     * @param sessionId - The client's session id, or 0 if it isn't known here
+     * @param username - The client's username
+     * @return the LOGIN frame
+     */
+    public static Frame login(int sessionId, String username) {
+        return alert(Client.LOGIN, sessionId, username, username + " has entered the chat!");
+    }
+
+    /**
+     * Encodes the alert that a client has left the chat
+     * @param sessionId - The client's session id, or 0 if it isn't known here
+     * @param username - The client's username
+     * @return the LOGOUT frame
+     */
+    public static Frame logout(int sessionId, String username) {
+        return alert(Client.LOGOUT, sessionId, username, username + " has left the chat!");
+    }
+
+    /**
+     * Encodes SESSIONS frames listing sessions, split so no frame is longer than the limit
+     * @param sessions - Usernames by session id, an empty username for an id that has gone
+     * @return the frames, none for an empty list, only ever sent to sessions that use session ids
+     */
+    public static List<Frame> sessions(Map<Integer, String> sessions) {
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer payload = ByteBuffer.allocate(MAX_SESSIONS_LENGTH);
+        for(Map.Entry<Integer, String> session : sessions.entrySet()) {
+            byte[] usernameBytes = session.getValue().getBytes();
+            if(payload.remaining() < 8 + usernameBytes.length) {
+                frames.add(Frame.encode(Client.SESSIONS, payload.flip()).withAnonymous(null));
+                payload.clear();
+            }
+            payload.putInt(session.getKey()).putInt(usernameBytes.length).put(usernameBytes);
+        }
+        if(payload.position() > 0) {
+            frames.add(Frame.encode(Client.SESSIONS, payload.flip()).withAnonymous(null));
+        }
+        return frames;
+    }
+
+    /**
+     * Reads the sessions listed in a SESSIONS payload
+     * @param payload - The payload
+     * @param sessions - Where the usernames are put by session id, an empty username for an id that has gone
+     * @throws ProtocolException - An entry runs past the end of the payload
+     */
+    public static void readSessions(ByteBuffer payload, Map<Integer, String> sessions) throws ProtocolException {
+        while(payload.remaining() >= 8) {
+            int sessionId = payload.getInt();
+            int length = payload.getInt();
+            if(length < 0 || length > payload.remaining()) {
+                throw new ProtocolException("bad username length " + length + " in a SESSIONS frame");
+            }
+            byte[] usernameBytes = new byte[length];
+            payload.get(usernameBytes);
+            sessions.put(sessionId, new String(usernameBytes));
+        }
+    }
+
+    /**
+     * Encodes a presence alert in both of its forms
+     * @param type - LOGIN or LOGOUT
+     * @param sessionId - The session id, or 0 if it isn't known here
+     * @param username - The username
+     * @param text - The alert worded for people
+     * @return the frame carrying the username, with the worded alert for sessions without session ids
+     */
+    private static Frame alert(int type, int sessionId, String username, String text) {
+        Frame worded = Frame.encode(type, text.getBytes());
+        if(sessionId == 0) {
+            // without an id there is nothing to keep a table with, so everyone gets the words
+            return worded;
+        }
+        return Frame.encode(type, sessionId, username.getBytes()).withAnonymous(worded);
+    }
+}
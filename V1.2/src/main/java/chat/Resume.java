@@ -0,0 +1,284 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions that outlive their connection, so a client on a flaky link comes back without anyone seeing it go
+ * A client that sets the RESUME bit when logging in gets a RESUME frame ([token]) right after its history, and
+ * counts the TEXT frames it receives after it. When its connection is lost, rather than logging out the server
+ * parks the session for GRACE_MILLIS: it keeps its session id, its username and its rooms, and nobody is told.
+ * A client often notices first, on a half-open connection, so a token also takes over a session that is still
+ * connected, whose old connection is then dropped without ending it. The client then logs in again with the RESUMING bit set and [token][TEXT frames received] after its username.
+ * The server answers with RESUMING in the CAPABILITIES frame, the SESSIONS list, the chat messages the client
+ * missed and a new RESUME frame, and no login alert goes out. An unknown or expired token is an ordinary login
+ * Only the main chat is caught up, from what its HistoryRing still holds, room messages and direct messages sent
+ * while a session is parked are lost, and it looks offline to direct messages. A session that logs out or stops
+ * reading is ended for good as before, and a parked session that isn't resumed in time logs out then
+ * @param <S> - The type of session
+ */
+public class Resume<S extends ChatSession> {
+
+    // capability bit in the login handshake and the CAPABILITIES frame
+    public static final int RESUME = 16;
+    // login bit saying the handshake carries a token, answered in the CAPABILITIES frame if the session resumed
+    public static final int RESUMING = 32;
+    // bytes of a token, and of what a resuming login adds after the username
+    public static final int TOKEN_LENGTH = 16;
+    public static final int LOGIN_LENGTH = TOKEN_LENGTH + 8;
+
+    // defaults, tunable with system properties
+    public static final long GRACE_MILLIS = Long.getLong("chat.resume.graceMillis", 60_000);
+    // how often and how long apart a client tries to resume before giving up
+    public static final int ATTEMPTS = Integer.getInteger("chat.resume.attempts", 30);
+    public static final long RETRY_MILLIS = Long.getLong("chat.resume.retryMillis", 1_000);
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Metrics metrics = Metrics.get();
+
+    // class variables
+    private final ClientRegistry<S> sessions;
+    private final RoomIndex<S> rooms;
+    private final HistoryRing history;
+    private final Federation<S> federation;
+    // the token and history position of every connected session that can be resumed, by session id
+    private final ConcurrentHashMap<Integer, Ticket<S>> tickets = new ConcurrentHashMap<>();
+    // the same tickets by token
+    private final ConcurrentHashMap<String, Ticket<S>> connected = new ConcurrentHashMap<>();
+    // sessions waiting for their client to come back, by token
+    private final ConcurrentHashMap<String, Parked<S>> parked = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the resumable sessions of one server
+     * @param sessions - The sessions on this node
+     * @param rooms - The rooms on this node
+     * @param history - The history of the main chat, which resumed sessions are caught up from
+     * @param federation - The federation of this node, told when a parked session ends
+     */
+    public Resume(ClientRegistry<S> sessions, RoomIndex<S> rooms, HistoryRing history, Federation<S> federation) {
+        this.sessions = sessions;
+        this.rooms = rooms;
+        this.history = history;
+        this.federation = federation;
+    }
+
+    /**
+     * Works out whether the server agrees to resumable sessions a client asked for
+     * @param requested - The capability bits sent with the username
+     * @return RESUME if the client asked for it, otherwise 0
+     */
+    public static int accept(int requested) {
+        return requested & RESUME;
+    }
+
+    /**
+     * Adds a new session the way ClientRegistry.join does, followed by a token to resume it with
+     * @param session - The session joining, it must already have its session id
+     * @param others - Sessions on other nodes by session id, or null if the session doesn't use session ids
+     */
+    public void join(S session, Map<Integer, String> others) {
+        byte[] token = newToken();
+        long sequence = this.sessions.join(session, others, () -> this.history.join(session, this.sessions, frame(token)));
+        issue(new Ticket<>(session, token, sequence));
+    }
+
+    /**
+     * Takes the session a resuming login names, so nothing else can resume or end it
+     * A session that is still connected is taken out of the group and its old connection dropped, whoever serves
+     * it then closes it without ending the session
+     * @param login - The bytes after the username, [token][TEXT frames received]
+     * @return the session, whose session id and username the new session takes, or null if there is none
+     */
+    public Parked<S> claim(ByteBuffer login) {
+        byte[] token = new byte[TOKEN_LENGTH];
+        login.duplicate().get(token);
+        String key = AttachmentStore.hex(token);
+        Parked<S> claimed = this.parked.remove(key);
+        if(claimed != null) {
+            // null if park hasn't scheduled it yet, it then finds the session gone when it fires
+            TimerWheel.Timeout timeout = claimed.timeout;
+            if(timeout != null) {
+                timeout.cancel();
+            }
+        } else {
+            Ticket<S> ticket = this.connected.get(key);
+            // the old connection may be ending at the same time, whichever takes the session out of the group has it
+            if(ticket == null || take(ticket.session) != ticket || !this.sessions.detach(ticket.session)) {
+                return null;
+            }
+            ticket.session.disconnect();
+            claimed = new Parked<>(ticket.session, ticket.sequence);
+        }
+        claimed.received = login.getLong(login.position() + TOKEN_LENGTH);
+        return claimed;
+    }
+
+    /**
+     * Puts a new session in the place of the parked one it resumes, catching it up and giving it a new token
+     * Nobody else hears about it, the other sessions still have it as they last knew it
+     * @param session - The new session, with the parked session's id and username
+     * @param claimed - The parked session, from claim
+     * @param others - Sessions on other nodes by session id, or null if the session doesn't use session ids
+     */
+    public void rejoin(S session, Parked<S> claimed, Map<Integer, String> others) {
+        this.rooms.takeOver(claimed.session, session);
+        byte[] token = newToken();
+        // the SESSIONS list replaces the client's table, it missed the alerts of anyone who came or went meanwhile
+        long sequence = this.sessions.join(session, others, () -> this.history.resume(session, this.sessions, claimed.sequence, claimed.received, frame(token)));
+        issue(new Ticket<>(session, token, sequence));
+        metrics.resumedSessions.increment();
+    }
+
+    /**
+     * Gets the number of parked sessions
+     * @return the sessions waiting for their client to come back
+     */
+    public int parkedCount() {
+        return this.parked.size();
+    }
+
+    /**
+     * Parks a session whose connection was lost instead of ending it, if it can be resumed
+     * The caller then skips leaving its rooms and announcing it, but still closes its connection
+     * @param session - The session whose connection was lost
+     * @return true if the session was parked
+     */
+    public boolean park(S session) {
+        Ticket<S> ticket = take(session);
+        // a session that was ended another way already isn't parked
+        if(ticket == null || !this.sessions.detach(session)) {
+            return false;
+        }
+        Parked<S> waiting = new Parked<>(session, ticket.sequence);
+        String key = AttachmentStore.hex(ticket.token);
+        this.parked.put(key, waiting);
+        waiting.timeout = Heartbeat.WHEEL.schedule(() -> {
+            if(this.parked.remove(key, waiting)) {
+                // the wheel's thread must not wait on the rooms and the presence lock
+                Thread.startVirtualThread(() -> end(waiting.session));
+            }
+        }, GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Forgets the token of a session that is ending for good
+     * @param session - The session
+     */
+    public void forget(S session) {
+        take(session);
+    }
+
+    /**
+     * Removes the ticket of a session, leaving alone one that a session resuming under the same id was given
+     * @param session - The session
+     * @return the session's ticket, or null if it has none
+     */
+    private Ticket<S> take(S session) {
+        Ticket<S> ticket = this.tickets.get(session.getSessionId());
+        if(ticket == null || ticket.session != session || !this.tickets.remove(session.getSessionId(), ticket)) {
+            return null;
+        }
+        this.connected.remove(AttachmentStore.hex(ticket.token), ticket);
+        return ticket;
+    }
+
+    /**
+     * Records the token a connected session was sent
+     * @param ticket - The session's ticket
+     */
+    private void issue(Ticket<S> ticket) {
+        this.tickets.put(ticket.session.getSessionId(), ticket);
+        this.connected.put(AttachmentStore.hex(ticket.token), ticket);
+    }
+
+    /**
+     * Ends a parked session nobody came back for, the way it would have ended when its connection was lost
+     * @param session - The parked session
+     */
+    private void end(S session) {
+        metrics.expiredSessions.increment();
+        this.rooms.leaveAll(session);
+        this.sessions.releaseSessionId(session.getSessionId());
+        Frame alert = Presence.logout(session.getSessionId(), session.getUsername());
+        this.sessions.announce(alert);
+        this.federation.forward(alert);
+    }
+
+    /**
+     * Makes a new token
+     * @return random bytes nobody can guess
+     */
+    private static byte[] newToken() {
+        byte[] token = new byte[TOKEN_LENGTH];
+        random.nextBytes(token);
+        return token;
+    }
+
+    /**
+     * Encodes the frame that hands a session its token, only ever sent to sessions that asked for one
+     * @param token - The token
+     * @return the RESUME frame
+     */
+    private static Frame frame(byte[] token) {
+        return Frame.encode(Client.RESUME, token);
+    }
+
+    /**
+     * The token of a connected session and how far into the history its count of TEXT frames starts
+     * @param <S> - The type of session
+     */
+    private static class Ticket<S> {
+
+        private final S session;
+        private final byte[] token;
+        private final long sequence;
+
+        /**
+         * Creates a ticket
+         * @param session - The session the token was sent to
+         * @param token - The token the session was sent
+         * @param sequence - The history's sequence number when the token was sent
+         */
+        private Ticket(S session, byte[] token, long sequence) {
+            this.session = session;
+            this.token = token;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A session waiting for its client to come back
+     * @param <S> - The type of session
+     */
+    public static class Parked<S extends ChatSession> {
+
+        private final S session;
+        private final long sequence;
+        // TEXT frames the client says it received, set when it comes back
+        private long received;
+        // set by park once the session is waiting
+        private volatile TimerWheel.Timeout timeout;
+
+        /**
+         * Creates a parked session
+         * @param session - The session whose connection was lost
+         * @param sequence - The history's sequence number when its token was sent
+         */
+        private Parked(S session, long sequence) {
+            this.session = session;
+            this.sequence = sequence;
+        }
+
+        public int getSessionId() {
+            return this.session.getSessionId();
+        }
+
+        public String getUsername() {
+            return this.session.getUsername();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named rooms and the sessions in each of them
+ * Every room keeps its own ClientRegistry, so a frame sent to a room only touches that room's members
+ * no matter how many other sessions the server holds. Each room also keeps a HistoryRing of its recent
+ * messages, replayed to whoever joins and dropped with the room once its last member leaves
+ * Room frames (JOIN, LEAVE and ROOM_TEXT) all carry [room name length][room name][body], where the body is
+ * the username for JOIN and LEAVE frames sent by the server, empty for JOIN and LEAVE frames sent by a
+ * client, and the text for ROOM_TEXT frames
+ * Joins and leaves for one session must come from one thread at a time, sends may come from any thread
+ * @param <S> - The type of session in the rooms
+ */
+public class RoomIndex<S extends ChatSession> {
+
+    // defaults, tunable with system properties
+    public static final int MAX_ROOM_LENGTH = Integer.getInteger("chat.room.maxName", 64);
+    public static final int MAX_JOINED_ROOMS = Integer.getInteger("chat.room.maxJoined", 64);
+    public static final int HISTORY_MESSAGES = Integer.getInteger("chat.history.roomMessages", 50);
+    public static final int HISTORY_BYTES = Integer.getInteger("chat.history.roomBytes", 64 * 1024);
+
+    // class variables
+    private final ConcurrentHashMap<String, Room<S>> rooms = new ConcurrentHashMap<>();
+    // rooms each session is in by session id, so a leaving session only visits its own rooms
+    private final ConcurrentHashMap<Integer, Set<String>> memberships = new ConcurrentHashMap<>();
+    // other server nodes that room frames from this node's clients are relayed to, or null
+    private Federation<S> federation;
+
+    /**
+     * Adds a session to the room named in a JOIN payload and tells the room, the joiner included
+     * A session already in the room, or in as many rooms as it may join, is left as it is
+     * @param session - The session joining
+     * @param payload - The JOIN payload sent by the client
+     * @throws ProtocolException - The room name is malformed
+     */
+    public void join(S session, ByteBuffer payload) throws ProtocolException {
+        String room = readRoom(payload);
+        Set<String> joined = this.memberships.computeIfAbsent(session.getSessionId(), id -> ConcurrentHashMap.newKeySet());
+        if(joined.size() >= MAX_JOINED_ROOMS || !joined.add(room)) {
+            return;
+        }
+        // create the room with its first member, atomically with anyone leaving it, and catch the joiner up
+        this.rooms.compute(room, (name, current) -> {
+            if(current == null) {
+                current = new Room<>();
+            }
+            current.history.join(session, current.members);
+            return current;
+        });
+        Frame frame = encode(Client.JOIN, session.getSessionId(), room, session.getUsername().getBytes());
+        broadcast(room, frame, null);
+        forward(frame);
+    }
+
+    /**
+     * Removes a session from the room named in a LEAVE payload and tells the leaver and the rest of the room
+     * @param session - The session leaving
+     * @param payload - The LEAVE payload sent by the client
+     * @throws ProtocolException - The room name is malformed
+     */
+    public void leave(S session, ByteBuffer payload) throws ProtocolException {
+        String room = readRoom(payload);
+        Set<String> joined = this.memberships.get(session.getSessionId());
+        if(joined != null && joined.remove(room)) {
+            Frame frame = encode(Client.LEAVE, session.getSessionId(), room, session.getUsername().getBytes());
+            session.send(frame);
+            removeMember(room, session, frame);
+            forward(frame);
+        }
+    }
+
+    /**
+     * Takes a session out of every room it is in, for when it disconnects
+     * @param session - The session leaving
+     */
+    public void leaveAll(S session) {
+        Set<String> joined = this.memberships.remove(session.getSessionId());
+        if(joined == null) {
+            return;
+        }
+        byte[] usernameBytes = session.getUsername().getBytes();
+        for(String room : joined) {
+            Frame frame = encode(Client.LEAVE, session.getSessionId(), room, usernameBytes);
+            removeMember(room, session, frame);
+            forward(frame);
+        }
+    }
+
+    /**
+     * Puts a new session in place of an old one with the same session id in every room the old one is in,
+     * without telling anyone, for a session that resumed after losing its connection
+     * @param old - The session that lost its connection
+     * @param session - The session taking its place
+     */
+    public void takeOver(S old, S session) {
+        Set<String> joined = this.memberships.get(session.getSessionId());
+        if(joined == null) {
+            return;
+        }
+        for(String room : joined) {
+            this.rooms.computeIfPresent(room, (name, current) -> {
+                current.members.remove(old);
+                current.members.add(session);
+                return current;
+            });
+        }
+    }
+
+    /**
+     * Relays a ROOM_TEXT frame to the other members of its room
+     * Only members may send to a room, anything else is dropped
+     * @param session - The session sending
+     * @param payload - The ROOM_TEXT payload sent by the client, relayed as it is
+     * @throws ProtocolException - The room name is malformed
+     */
+    public void send(S session, ByteBuffer payload) throws ProtocolException {
+        int start = payload.position();
+        Room<S> room = this.rooms.get(readRoom(payload));
+        if(room != null && room.members.get(session.getSessionId()) == session) {
+            // encode once from the start of the payload, the same bytes are recorded and go to every member
+            Frame frame = Frame.encode(Client.ROOM_TEXT, session.getSessionId(), payload.position(start));
+            room.history.publish(frame, room.members, session);
+            forward(frame);
+        }
+    }
+
+    /**
+     * Delivers a room frame relayed by another server node to the members of its room on this node
+     * @param frame - The JOIN, LEAVE or ROOM_TEXT frame
+     * @param payload - The frame's payload
+     * @throws ProtocolException - The room name is malformed
+     */
+    public void deliver(Frame frame, ByteBuffer payload) throws ProtocolException {
+        Room<S> room = this.rooms.get(readRoom(payload));
+        if(room == null) {
+            // nobody on this node is in the room
+            return;
+        }
+        if(frame.getType() == Client.ROOM_TEXT) {
+            room.history.publish(frame, room.members, null);
+        } else {
+            room.members.broadcast(frame, null);
+        }
+    }
+
+    /**
+     * Sets the federation that room frames from this node's clients are relayed through
+     * @param federation - The federation of this node
+     */
+    public void setFederation(Federation<S> federation) {
+        this.federation = federation;
+    }
+
+    /**
+     * Delivers a frame to every member of a room
+     * @param room - The room name
+     * @param frame - The frame being delivered
+     * @param exclude - The session that should not receive the frame, or null
+     */
+    public void broadcast(String room, Frame frame, S exclude) {
+        Room<S> current = this.rooms.get(room);
+        if(current != null) {
+            current.members.broadcast(frame, exclude);
+        }
+    }
+
+    /**
+     * Gets the members of a room
+     * @param room - The room name
+     * @return a snapshot of the members, empty if the room doesn't exist
+     */
+    public List<S> members(String room) {
+        Room<S> current = this.rooms.get(room);
+        return current != null ? current.members.snapshot() : List.of();
+    }
+
+    /**
+     * Gets the number of rooms with at least one member
+     * @return the number of rooms
+     */
+    public int roomCount() {
+        return this.rooms.size();
+    }
+
+    /**
+     * Relays a room frame from one of this node's clients to the other server nodes
+     * @param frame - The frame
+     */
+    private void forward(Frame frame) {
+        if(this.federation != null) {
+            this.federation.forward(frame);
+        }
+    }
+
+    /**
+     * Removes a session from one room, dropping the room once it's empty, and tells the remaining members
+     * @param room - The room name
+     * @param session - The session leaving
+     * @param frame - The LEAVE frame for the remaining members
+     */
+    private void removeMember(String room, S session, Frame frame) {
+        this.rooms.computeIfPresent(room, (name, current) -> {
+            current.members.remove(session);
+            return current.members.size() == 0 ? null : current;
+        });
+        broadcast(room, frame, session);
+    }
+
+    /**
+     * The members of one room and its recent messages
+     * @param <S> - The type of session
+     */
+    private static class Room<S extends ChatSession> {
+
+        private final ClientRegistry<S> members = new ClientRegistry<>();
+        private final HistoryRing history = new HistoryRing(HISTORY_MESSAGES, HISTORY_BYTES);
+    }
+
+    /**
+     * Reads the room name at the start of a room frame's payload
+     * @param payload - The payload, positioned at the room name length, left positioned at the body
+     * @return the room name
+     * @throws ProtocolException - The name is empty, too long or longer than the payload
+     */
+    public static String readRoom(ByteBuffer payload) throws ProtocolException {
+        int length = payload.getInt();
+        if(length < 1 || length > MAX_ROOM_LENGTH || length > payload.remaining()) {
+            throw new ProtocolException("bad room name length " + length);
+        }
+        byte[] roomBytes = new byte[length];
+        payload.get(roomBytes);
+        return new String(roomBytes);
+    }
+
+    /**
+     * Encodes a room frame
+     * @param type - JOIN, LEAVE or ROOM_TEXT
+     * @param sender - The session id of the client the frame is about
+     * @param room - The room name
+     * @param body - The bytes that follow the room name
+     * @return the encoded frame
+     */
+    public static Frame encode(int type, int sender, String room, byte[] body) {
+        byte[] roomBytes = room.getBytes();
+        ByteBuffer payload = ByteBuffer.allocate(4 + roomBytes.length + body.length);
+        payload.putInt(roomBytes.length).put(roomBytes).put(body);
+        return Frame.encode(type, sender, payload.array());
+    }
+}
@@ -0,0 +1,151 @@
+package chat;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import javax.management.JMException;
+
+/**
+ * Group chat server to handle client connection requests
+ * @author Alexander Domilescu
+ */
+public class Server {
+
+    // port the server listens on, tunable with a system property so several nodes can run on one machine
+    public static final int PORT = Integer.getInteger("chat.port", 9999);
+    // number of pending connections the operating system queues for accept
+    static final int BACKLOG = 1024;
+
+    // class variables
+    private ServerSocket serverSocket;
+    private Thread.Builder threadBuilder;
+
+    /**
+     * Creates a new server object that runs every client handler on its own platform thread
+     * @param serverSocket - The server socket used to listen for connections
+     */
+    public Server(ServerSocket serverSocket) {
+        this(serverSocket, false);
+    }
+
+    /**
+     * Creates a new server object
+     * @param serverSocket - The server socket used to listen for connections
+     * @param virtualThreads - Whether client handlers run on virtual threads instead of platform threads
+     */
+    public Server(ServerSocket serverSocket, boolean virtualThreads) {
+        this.serverSocket = serverSocket;
+        // a blocked virtual thread only costs a small heap object, so idle clients no longer tie up OS threads
+        this.threadBuilder = virtualThreads ? Thread.ofVirtual().name("client-handler-", 0) : Thread.ofPlatform().name("client-handler-", 0);
+        Metrics.get().watch(ClientHandler.clientHandlers);
+        Metrics.get().gauge("rooms.active", ClientHandler.rooms::roomCount);
+        Metrics.get().gauge("resume.parked", ClientHandler.resumes::parkedCount);
+    }
+
+    /**
+     * Starts server and keeps it running
+     */
+    public void runServer() {
+        try {
+            // print confirmation that server has started
+            System.out.println("SERVER STARTUP SUCCESSFUL");
+
+            // constantly run server until the server socket is closed
+            while(!serverSocket.isClosed()) {
+                // wait for a client to connect
+                // create a socket to talk to the client once a connection is requested
+                Socket socket = serverSocket.accept();
+                Metrics.get().accepted.increment();
+
+                // create a new client handler to communicate with the client
+                ClientHandler clientHandler = new ClientHandler(socket);
+
+                // create a new thread to run the client handler in and start it
+                this.threadBuilder.start(clientHandler);
+            }
+        } catch (IOException e) {
+            closeServerSocket();
+        }
+    }
+
+    /**
+     * Error handling method that closes the server socket
+     */
+    private void closeServerSocket() {
+        // an error has occurred and so we want to close the server socket
+        try {
+            if(serverSocket != null) {
+                // close server socket if it isn't null
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method executed when program is ran
+     * @param args - The command line arguments, optionally the server mode ("thread", "virtual" or "nio")
+     * @throws IOException - IO error when opening the server socket
+     */
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "thread";
+
+        // open the message log now if one is configured, and make sure what is queued reaches disk on shutdown
+        MessageLog messageLog = MessageLog.getDefault();
+        if(messageLog != null) {
+            System.out.println("RECORDING MESSAGES TO " + MessageLog.DEFAULT_DIRECTORY);
+            Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close));
+        }
+
+        // publish the metrics over JMX, and as plain text on a local port if one is configured
+        Metrics metrics = Metrics.get();
+        try {
+            metrics.registerMBean();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        if(Metrics.DEFAULT_PORT > 0) {
+            metrics.startEndpoint(Metrics.DEFAULT_PORT);
+            System.out.println("METRICS AT http://localhost:" + Metrics.DEFAULT_PORT + "/metrics");
+        }
+        if(messageLog != null) {
+            metrics.gauge("log.lastSequence", messageLog::lastSequence);
+        }
+        metrics.gauge("timers.pending", Heartbeat.WHEEL::size);
+        // open the attachment store now rather than on the first file, so it is scanned before clients arrive
+        AttachmentStore attachments = AttachmentStore.getDefault();
+        if(attachments != null) {
+            System.out.println("STORING ATTACHMENTS IN " + AttachmentStore.DEFAULT_DIRECTORY);
+            metrics.gauge("attachments.stored.bytes", attachments::storedBytes);
+            metrics.gauge("attachments.cached.bytes", attachments::cachedBytes);
+        }
+
+        if(mode.equals("nio")) {
+            // create a non-blocking server where a few selector threads own all connections
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(PORT), BACKLOG);
+            int loopCount = Integer.getInteger("chat.nio.loops", Runtime.getRuntime().availableProcessors());
+            NioServer server = new NioServer(serverSocketChannel, loopCount);
+            startFederation(server.getFederation());
+            server.runServer();
+        } else {
+            // create a server that listens to connections on port 9999 and start running it
+            ServerSocket serverSocket = new ServerSocket(PORT, BACKLOG);
+            Server server = new Server(serverSocket, mode.equals("virtual"));
+            startFederation(ClientHandler.federation);
+            server.runServer();
+        }
+    }
+
+    /**
+     * Links this server to the other nodes of the chat, if any are configured
+     * @param federation - The federation of the server being started
+     * @throws IOException - IO error when opening the node port
+     */
+    private static void startFederation(Federation<?> federation) throws IOException {
+        if(federation.startDefault()) {
+            System.out.println("FEDERATION NODE " + Long.toHexString(federation.getNodeId()));
+        }
+    }
+}
\ No newline at end of file
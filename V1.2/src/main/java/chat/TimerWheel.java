@@ -0,0 +1,205 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel: a ring of slots, one per tick, each holding the timeouts due in that tick
+ * Scheduling and cancelling link and unlink one timeout, and every tick only visits the timeouts in one slot.
+ * A wheel that spans the longest delay it is given never holds a timeout for a later turn of the ring, so a
+ * tick costs as much as the timeouts expiring in it, however many sessions are being timed
+ * Expired tasks run on the wheel's own thread one after another, so they must hand anything slow to another thread
+ */
+public class TimerWheel {
+
+    // default length of a tick, tunable with a system property, timeouts fire up to one tick late
+    public static final long DEFAULT_TICK_MILLIS = Long.getLong("chat.timer.tickMillis", 100);
+
+    // class variables
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    // guards the slots, a ReentrantLock rather than synchronized so sessions on virtual threads scheduling and
+    // cancelling their timeouts don't pin their carriers
+    private final ReentrantLock lock = new ReentrantLock();
+    // the last tick whose slot has been expired, only advanced by the wheel's thread
+    private long currentTick = 0;
+    private int size = 0;
+
+    /**
+     * Creates a wheel and starts its thread
+     * @param tickMillis - The length of a tick in milliseconds
+     * @param spanMillis - The longest delay expected, the wheel gets enough slots to cover it in one turn
+     */
+    public TimerWheel(long tickMillis, long spanMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        // a power of two number of slots, so a tick's slot is found with a mask
+        long ticks = Math.max(1, spanMillis / Math.max(1, tickMillis) + 1);
+        int slotCount = Integer.highestOneBit((int) Math.min(1 << 20, ticks) * 2 - 1);
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        Thread.ofPlatform().daemon().name("timer-wheel").start(this::run);
+    }
+
+    /**
+     * Runs a task once after a delay
+     * @param task - The task, run on the wheel's thread
+     * @param delay - How long to wait
+     * @param unit - The unit of the delay
+     * @return the timeout, which can be cancelled until it fires
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long due = System.nanoTime() - this.startNanos + unit.toNanos(delay);
+        // round up, a timeout never fires early
+        long deadline = (due + this.tickNanos - 1) / this.tickNanos;
+        Timeout timeout = new Timeout(task);
+        this.lock.lock();
+        try {
+            // the slot of the current tick has already been expired, so the soonest a timeout can fire is the next one
+            timeout.deadline = Math.max(deadline, this.currentTick + 1);
+            link(timeout);
+        } finally {
+            this.lock.unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * Gets the number of timeouts waiting to fire
+     * @return the number of scheduled timeouts
+     */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a timeout to the front of its slot's list, must be called holding the lock
+     * @param timeout - The timeout, its deadline already set
+     */
+    private void link(Timeout timeout) {
+        int slot = (int) (timeout.deadline & this.mask);
+        timeout.next = this.slots[slot];
+        if(timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        this.slots[slot] = timeout;
+        timeout.scheduled = true;
+        this.size++;
+    }
+
+    /**
+     * Takes a timeout out of its slot's list, must be called holding the lock
+     * @param timeout - The timeout, which must be scheduled
+     */
+    private void unlink(Timeout timeout) {
+        if(timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            this.slots[(int) (timeout.deadline & this.mask)] = timeout.next;
+        }
+        if(timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        this.size--;
+    }
+
+    /**
+     * Expires one slot per tick for as long as the program runs
+     * This method runs on the wheel's thread
+     */
+    private void run() {
+        List<Timeout> expired = new ArrayList<>();
+        while(true) {
+            // sleep until the next tick is over
+            long nextTickNanos = (this.currentTick + 1) * this.tickNanos;
+            long sleepNanos = nextTickNanos - (System.nanoTime() - this.startNanos);
+            if(sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            // catch up on every tick that has passed, in case the thread was held up
+            long now = (System.nanoTime() - this.startNanos) / this.tickNanos;
+            this.lock.lock();
+            try {
+                while(this.currentTick < now) {
+                    this.currentTick++;
+                    Timeout timeout = this.slots[(int) (this.currentTick & this.mask)];
+                    while(timeout != null) {
+                        Timeout next = timeout.next;
+                        // a timeout for a later turn of the ring shares the slot, leave it where it is
+                        if(timeout.deadline <= this.currentTick) {
+                            unlink(timeout);
+                            expired.add(timeout);
+                        }
+                        timeout = next;
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+
+            // run the tasks without holding the wheel, so they may schedule and cancel timeouts themselves
+            for(Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * A task waiting in the wheel
+     */
+    public class Timeout {
+
+        private final Runnable task;
+        private long deadline;
+        private boolean scheduled;
+        // neighbours in the slot's list, guarded by the wheel's lock
+        private Timeout previous;
+        private Timeout next;
+
+        /**
+         * Creates a timeout
+         * @param task - The task run when it fires
+         */
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running, if it hasn't already fired
+         * @return true if the timeout was still waiting
+         */
+        public boolean cancel() {
+            TimerWheel.this.lock.lock();
+            try {
+                if(!this.scheduled) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            } finally {
+                TimerWheel.this.lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package chat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Optional TLS for client connections and the links between server nodes, turned on with -Dchat.tls=true
+ * Keys and trust come from the standard javax.net.ssl.keyStore and javax.net.ssl.trustStore properties through the
+ * JVM's default SSLContext, so a server needs a key store and whoever connects to it has to trust its certificate
+ * for the name they connect by
+ * Every connection in a process shares that context and so its session cache. A client that reconnects to the same
+ * host and port offers the session ticket the server gave it last time, and the server resumes the session from it
+ * without the certificate exchange and key agreement of a full handshake. TLS 1.3 tickets hold the session
+ * themselves, so resumable sessions cost the server no memory per client
+ * Blocking connections are SSLSockets, the nio server drives an SSLEngine per connection through a TlsChannel
+ */
+public class Tls {
+
+    // defaults, tunable with system properties
+    public static final boolean ENABLED = Boolean.getBoolean("chat.tls");
+    public static final int SESSION_SECONDS = Integer.getInteger("chat.tls.sessionSeconds", 24 * 60 * 60);
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static SSLContext context;
+
+    /**
+     * Gets the context every TLS connection of this process is made from, setting how long its sessions resume for
+     * @return the default SSLContext
+     * @throws IOException - The key store or trust store could not be loaded
+     */
+    public static synchronized SSLContext getContext() throws IOException {
+        if(context == null) {
+            try {
+                SSLContext defaultContext = SSLContext.getDefault();
+                defaultContext.getServerSessionContext().setSessionTimeout(SESSION_SECONDS);
+                defaultContext.getClientSessionContext().setSessionTimeout(SESSION_SECONDS);
+                context = defaultContext;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("TLS is not available", e);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Layers TLS over a connected socket, the handshake happens with the first read or write or startHandshake
+     * @param socket - The connected socket, closed with the returned one
+     * @param client - Whether this end connected, and so checks the certificate against the name it connected to
+     * @return the TLS socket
+     * @throws IOException - TLS could not be set up
+     */
+    public static SSLSocket wrap(Socket socket, boolean client) throws IOException {
+        // the session cache is keyed by the peer's name and port, so a reconnect to the same place resumes
+        InetSocketAddress address = (InetSocketAddress) socket.getRemoteSocketAddress();
+        SSLSocket sslSocket = (SSLSocket) getContext().getSocketFactory().createSocket(socket, address.getHostString(), address.getPort(), true);
+        sslSocket.setUseClientMode(client);
+        if(client) {
+            sslSocket.setSSLParameters(verifyHostname(sslSocket.getSSLParameters()));
+        }
+        return sslSocket;
+    }
+
+    /**
+     * Creates the engine for one connection accepted by the nio server
+     * @return a server mode engine
+     * @throws IOException - TLS could not be set up
+     */
+    public static SSLEngine serverEngine() throws IOException {
+        SSLEngine engine = getContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Runs the handshake of a socket this server accepted and records what it cost
+     * @param socket - The socket, from wrap with client false
+     * @throws IOException - The handshake failed
+     */
+    public static void handshake(SSLSocket socket) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        long start = cpuTime();
+        socket.startHandshake();
+        long end = cpuTime();
+        if(start >= 0 && end >= 0) {
+            handshakeFinished(socket.getSession(), startMillis, end - start, true);
+        } else {
+            // a virtual thread, only the time the handshake took from start to end can be had
+            handshakeFinished(socket.getSession(), startMillis, System.nanoTime() - startNanos, false);
+        }
+    }
+
+    /**
+     * Records a finished server side handshake
+     * @param session - The session the handshake set up
+     * @param startMillis - The wall clock time the handshake started at
+     * @param nanos - The time the handshake took
+     * @param cpu - Whether nanos is the CPU time it took, or only the wall clock time where that couldn't be measured
+     */
+    public static void handshakeFinished(SSLSession session, long startMillis, long nanos, boolean cpu) {
+        Metrics metrics = Metrics.get();
+        // kept apart, as wall clock time includes waiting for the peer
+        (cpu ? metrics.tlsHandshakeNanos : metrics.tlsHandshakeWallNanos).record(nanos);
+        // a resumed session is the one its ticket was issued for, created before this handshake began
+        if(session.getCreationTime() < startMillis) {
+            metrics.tlsResumedHandshakes.increment();
+        } else {
+            metrics.tlsFullHandshakes.increment();
+        }
+    }
+
+    /**
+     * Gets the CPU time of the current thread, for measuring handshakes
+     * @return the thread's CPU time in nanoseconds, or -1 where the platform can't measure it, as it can't for
+     * virtual threads
+     */
+    public static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Makes the client end of a connection check the certificate is for the host it connected to
+     * @param parameters - The socket's parameters
+     * @return the parameters
+     */
+    private static SSLParameters verifyHostname(SSLParameters parameters) {
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        return parameters;
+    }
+}
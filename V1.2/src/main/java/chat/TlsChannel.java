@@ -0,0 +1,343 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a non-blocking socket channel, driven by an SSLEngine
+ * Reads hand out decrypted bytes and writes take plaintext, so the nio server frames and gathers frames the same
+ * way it does over a plain channel. The handshake happens inside the reads and writes as the engine asks for it,
+ * and its CPU time is recorded once it finishes. Its delegated tasks, the key agreement and certificate work that
+ * take the longest, run on a shared pool of task threads instead of the event loop, which is told to carry on when
+ * they are done, so one connection's handshake never holds up the others on its loop
+ * Encrypted bytes the socket didn't take are kept and go out before anything else, so the connection waits for
+ * the socket to become writable while isWritePending says so
+ * Only used by the thread of the connection's event loop, apart from the delegated tasks
+ */
+public class TlsChannel {
+
+    // TLS records encrypted ahead of a write, so a large batch of frames goes out in a few system calls
+    private static final int RECORDS_PER_WRITE = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // runs the delegated tasks of every channel, platform threads so their CPU time can be measured
+    private static final ExecutorService TASKS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            Thread.ofPlatform().daemon().name("tls-task-", 0).factory());
+
+    // class variables
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // encrypted bytes read but not yet decrypted, left ready to read into
+    private final ByteBuffer netIn;
+    // encrypted bytes not yet written, left ready to write from
+    private final ByteBuffer netOut;
+    // decrypted bytes not yet handed out, left ready to read from
+    private final ByteBuffer appIn;
+    // whether netIn may hold another whole record, left there because appIn was full
+    private boolean moreRecords = false;
+    private boolean inboundClosed = false;
+    private boolean handshaking = true;
+    // when the handshake started and the CPU time it has taken so far, on the loop and on the task threads
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private final long handshakeStartNanos = System.nanoTime();
+    private long handshakeNanos = 0;
+    private volatile long taskNanos = 0;
+    // cleared if any part of the handshake ran where CPU time can't be measured, its wall clock time is recorded then
+    private volatile boolean cpuMeasured = true;
+    // called on a task thread once the delegated tasks have run
+    private final Runnable tasksDone;
+
+    /**
+     * Creates a TLS channel, the handshake carries on with the first read
+     * @param channel - The connected non-blocking channel
+     * @param engine - The engine for this connection, in server or client mode
+     * @param tasksDone - Called on a task thread once the handshake's delegated tasks have run, it should have the
+     * event loop read from the channel again, as the handshake carries on from there
+     * @throws SSLException - The handshake could not be started
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine, Runnable tasksDone) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.tasksDone = tasksDone;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize * RECORDS_PER_WRITE).flip();
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads decrypted bytes, from what was decrypted already or from the channel
+     * @param dst - Where the bytes go
+     * @return the number of bytes read, possibly 0, or -1 once the peer has closed the connection
+     * @throws IOException - IO error on the channel, or the peer broke the TLS protocol
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if(!this.appIn.hasRemaining()) {
+            if(this.inboundClosed) {
+                return -1;
+            }
+            if(!this.moreRecords && this.channel.read(this.netIn) < 0) {
+                this.engine.closeInbound();
+                return -1;
+            }
+            unwrap();
+        }
+        int count = Math.min(this.appIn.remaining(), dst.remaining());
+        dst.put(this.appIn.slice(this.appIn.position(), count));
+        this.appIn.position(this.appIn.position() + count);
+        return count;
+    }
+
+    /**
+     * Checks whether decrypted bytes are waiting without another read from the channel, which the selector
+     * wouldn't report
+     * @return true if read should be called again
+     */
+    public boolean hasBuffered() {
+        return this.appIn.hasRemaining() || (this.moreRecords && !this.inboundClosed);
+    }
+
+    /**
+     * Encrypts and writes as much plaintext as the socket takes, a few records at a time
+     * Nothing is written until the handshake has finished
+     * @param srcs - The buffers holding the plaintext
+     * @param offset - The first buffer used
+     * @param length - The number of buffers used
+     * @return the number of plaintext bytes taken, possibly 0
+     * @throws IOException - IO error on the channel, or the connection is closed
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if(!flush() || this.handshaking) {
+            return 0;
+        }
+        long taken = 0;
+        while(hasRemaining(srcs, offset, length)) {
+            if(this.netOut.capacity() - this.netOut.remaining() < this.engine.getSession().getPacketBufferSize() && !flushNetOut()) {
+                // no room for another record until the socket takes what is there
+                break;
+            }
+            this.netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = this.engine.wrap(srcs, offset, length, this.netOut);
+            } finally {
+                this.netOut.flip();
+            }
+            if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("connection closed");
+            }
+            if(result.bytesConsumed() == 0) {
+                break;
+            }
+            taken += result.bytesConsumed();
+        }
+        flushNetOut();
+        return taken;
+    }
+
+    /**
+     * Writes the encrypted bytes left over from earlier writes, and carries on the handshake
+     * @return true if nothing is waiting for the socket, false if the connection should wait until it is writable
+     * @throws IOException - IO error on the channel
+     */
+    public boolean flush() throws IOException {
+        if(flushNetOut() && this.handshaking) {
+            handshake(this.engine.getHandshakeStatus());
+        }
+        return !isWritePending();
+    }
+
+    /**
+     * Checks whether encrypted bytes are waiting for the socket to take them
+     * @return true if the connection should wait for the socket to become writable
+     */
+    public boolean isWritePending() {
+        return this.netOut.hasRemaining() || (this.handshaking && this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+    }
+
+    /**
+     * Tells the peer the connection is closing if the socket takes it straight away, the channel is closed by the caller
+     */
+    public void close() {
+        this.engine.closeOutbound();
+        try {
+            this.netOut.clear();
+            this.engine.wrap(EMPTY, this.netOut);
+            this.netOut.flip();
+            flushNetOut();
+        } catch (IOException e) {
+            // the peer is gone already
+        }
+    }
+
+    /**
+     * Decrypts the records in netIn into appIn, handling the handshake messages among them
+     * @throws IOException - IO error on the channel, or the peer broke the TLS protocol
+     */
+    private void unwrap() throws IOException {
+        this.netIn.flip();
+        this.appIn.compact();
+        this.moreRecords = false;
+        try {
+            while(this.netIn.hasRemaining()) {
+                long start = this.handshaking ? Tls.cpuTime() : 0;
+                SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+                if(this.handshaking) {
+                    this.handshakeNanos += cpuSince(start);
+                }
+                SSLEngineResult.Status status = result.getStatus();
+                if(status == SSLEngineResult.Status.CLOSED) {
+                    this.inboundClosed = true;
+                    break;
+                }
+                if(status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // hand out what is decrypted first
+                    this.moreRecords = true;
+                    break;
+                }
+                if(status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    // the rest of the record hasn't arrived
+                    break;
+                }
+                handshake(result.getHandshakeStatus());
+                if(result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    // waiting for the socket to take the handshake's reply
+                    break;
+                }
+            }
+        } finally {
+            this.netIn.compact();
+            this.appIn.flip();
+        }
+    }
+
+    /**
+     * Does what the engine asks for during the handshake until it needs more bytes from the peer
+     * @param status - The handshake status the engine last reported
+     * @throws IOException - IO error on the channel, or the handshake failed
+     */
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while(true) {
+            long start = Tls.cpuTime();
+            switch(status) {
+                case NEED_TASK:
+                    // the expensive parts of the handshake, handed to the task threads, none are left to take while
+                    // the ones taken earlier are still running
+                    List<Runnable> tasks = new ArrayList<>();
+                    Runnable task;
+                    while((task = this.engine.getDelegatedTask()) != null) {
+                        tasks.add(task);
+                    }
+                    if(!tasks.isEmpty()) {
+                        TASKS.execute(() -> runTasks(tasks));
+                    }
+                    // carried on from the next read, once tasksDone has been called
+                    return;
+                case NEED_WRAP:
+                    if(this.netOut.capacity() - this.netOut.remaining() < this.engine.getSession().getPacketBufferSize() && !flushNetOut()) {
+                        // carried on from flush once the socket takes what is there
+                        return;
+                    }
+                    this.netOut.compact();
+                    SSLEngineResult result;
+                    try {
+                        result = this.engine.wrap(EMPTY, this.netOut);
+                    } finally {
+                        this.netOut.flip();
+                    }
+                    this.handshakeNanos += cpuSince(start);
+                    if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("handshake failed");
+                    }
+                    flushNetOut();
+                    status = result.getHandshakeStatus();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    // only reported as FINISHED by the wrap or unwrap that ended it
+                    if(this.handshaking) {
+                        this.handshaking = false;
+                        if(this.cpuMeasured) {
+                            Tls.handshakeFinished(this.engine.getSession(), this.handshakeStartMillis, this.handshakeNanos + this.taskNanos, true);
+                        } else {
+                            Tls.handshakeFinished(this.engine.getSession(), this.handshakeStartMillis, System.nanoTime() - this.handshakeStartNanos, false);
+                        }
+                    }
+                    return;
+                default:
+                    // waiting for the peer, or not handshaking at all
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Runs delegated tasks of the handshake, then tells the connection to carry on
+     * This method runs on a task thread
+     * @param tasks - The tasks, in the order the engine handed them out
+     */
+    private void runTasks(List<Runnable> tasks) {
+        long start = Tls.cpuTime();
+        try {
+            for(Runnable task : tasks) {
+                task.run();
+            }
+        } finally {
+            // only one batch of tasks runs at a time, and the loop reads this after tasksDone hands the channel back
+            this.taskNanos += cpuSince(start);
+            this.tasksDone.run();
+        }
+    }
+
+    /**
+     * Measures the CPU time the current thread used since a reading of it
+     * @param start - What Tls.cpuTime returned before
+     * @return the CPU time used, or 0 if it can't be measured here
+     */
+    private long cpuSince(long start) {
+        long end = Tls.cpuTime();
+        if(start < 0 || end < 0) {
+            this.cpuMeasured = false;
+            return 0;
+        }
+        return end - start;
+    }
+
+    /**
+     * Writes encrypted bytes until the socket takes no more
+     * @return true if none are left
+     * @throws IOException - IO error on the channel
+     */
+    private boolean flushNetOut() throws IOException {
+        while(this.netOut.hasRemaining()) {
+            if(this.channel.write(this.netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether any of a range of buffers has bytes left
+     * @param buffers - The buffers
+     * @param offset - The first buffer checked
+     * @param length - The number of buffers checked
+     * @return true if any bytes are left
+     */
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for(int i = offset; i < offset + length; i++) {
+            if(buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that files are kept under their hash, read back in ranges and evicted oldest first
+ */
+public class AttachmentStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void fileIsKeptUnderItsHash() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 20, 1 << 20, 1 << 16);
+        byte[] bytes = bytes(1000, 1);
+
+        byte[] hash = store(store, bytes, null);
+
+        assertArrayEquals(AttachmentStore.digest().digest(bytes), hash);
+        assertTrue(store.contains(hash, bytes.length));
+        assertFalse(store.contains(hash, bytes.length + 1));
+        assertEquals(bytes.length, store.storedBytes());
+        assertArrayEquals(Arrays.copyOfRange(bytes, 100, 300), read(store, hash, 100, 200));
+        // a range past the end is cut short
+        assertArrayEquals(Arrays.copyOfRange(bytes, 900, 1000), read(store, hash, 900, 500));
+        assertNull(store.read(new byte[AttachmentStore.HASH_LENGTH], 0, 10));
+    }
+
+    @Test
+    public void uploadThatDoesntMatchItsOfferIsThrownAway() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 20, 1 << 20, 1 << 16);
+        byte[] bytes = bytes(1000, 2);
+        byte[] offered = AttachmentStore.digest().digest(bytes(1000, 3));
+
+        assertNull(store(store, bytes, offered));
+        assertEquals(0, store.storedBytes());
+        assertFalse(store.contains(offered, bytes.length));
+    }
+
+    @Test
+    public void sameBytesAreOnlyKeptOnce() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 20, 1 << 20, 1 << 16);
+        byte[] bytes = bytes(1000, 4);
+
+        byte[] first = store(store, bytes, null);
+        byte[] second = store(store, bytes, first);
+
+        assertArrayEquals(first, second);
+        assertEquals(bytes.length, store.storedBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesGoFirst() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 2500, 1 << 20, 1 << 16);
+        byte[] a = store(store, bytes(1000, 5), null);
+        byte[] b = store(store, bytes(1000, 6), null);
+        // reading a makes b the oldest
+        read(store, a, 0, 10);
+
+        byte[] c = store(store, bytes(1000, 7), null);
+
+        assertTrue(store.contains(a, 1000));
+        assertFalse(store.contains(b, 1000));
+        assertTrue(store.contains(c, 1000));
+        assertEquals(2000, store.storedBytes());
+        // a file over the limit on its own is still kept, at the cost of every other one
+        byte[] big = store(store, bytes(3000, 8), null);
+        assertTrue(store.contains(big, 3000));
+        assertEquals(3000, store.storedBytes());
+    }
+
+    @Test
+    public void smallFilesAreServedFromMemory() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 20, 1500, 1000);
+        byte[] small = store(store, bytes(1000, 9), null);
+        byte[] other = store(store, bytes(800, 10), null);
+        byte[] large = store(store, bytes(5000, 11), null);
+
+        read(store, small, 0, 10);
+        assertEquals(1000, store.cachedBytes());
+        read(store, large, 0, 10);
+        // too big to cache
+        assertEquals(1000, store.cachedBytes());
+        read(store, other, 0, 10);
+        // no room for both, the older one goes
+        assertEquals(800, store.cachedBytes());
+        assertArrayEquals(Arrays.copyOfRange(bytes(800, 10), 10, 20), read(store, other, 10, 10));
+    }
+
+    @Test
+    public void filesSurviveARestartButPartialUploadsDont() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 20, 1 << 20, 1 << 16);
+        byte[] kept = store(store, bytes(1000, 12), null);
+        AttachmentStore.Upload partial = store.upload();
+        partial.write(ByteBuffer.wrap(bytes(500, 13)));
+
+        AttachmentStore reopened = new AttachmentStore(this.directory, 1 << 20, 1 << 20, 1 << 16);
+
+        assertTrue(reopened.contains(kept, 1000));
+        assertEquals(1000, reopened.storedBytes());
+        assertArrayEquals(bytes(1000, 12), read(reopened, kept, 0, 1000));
+    }
+
+    /**
+     * Uploads a file in a few chunks
+     * @param store - The store
+     * @param bytes - The file
+     * @param expected - The hash it is offered under, or null
+     * @return what commit returned
+     * @throws IOException - IO error in the store
+     */
+    private static byte[] store(AttachmentStore store, byte[] bytes, byte[] expected) throws IOException {
+        AttachmentStore.Upload upload = store.upload();
+        for(int at = 0; at < bytes.length; at += 300) {
+            upload.write(ByteBuffer.wrap(bytes, at, Math.min(300, bytes.length - at)));
+        }
+        return upload.commit(expected);
+    }
+
+    /**
+     * Reads part of a stored file
+     * @param store - The store
+     * @param hash - The file's hash
+     * @param offset - Where to start
+     * @param length - The most bytes to read
+     * @return the bytes read
+     * @throws IOException - IO error in the store
+     */
+    private static byte[] read(AttachmentStore store, byte[] hash, long offset, int length) throws IOException {
+        ByteBuffer data = store.read(hash, offset, length);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Makes the bytes of a test file
+     * @param length - The file size
+     * @param seed - Which file, each seed gives different bytes
+     * @return the bytes
+     */
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed * 7 + i / 256);
+        }
+        return bytes;
+    }
+}
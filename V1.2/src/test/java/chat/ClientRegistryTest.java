@@ -0,0 +1,120 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests joining, leaving and broadcasting over the registry of logged in sessions
+ */
+public class ClientRegistryTest {
+
+    @Test
+    public void broadcastReachesEverySessionButTheExcludedOne() {
+        ClientRegistry<TestSession> registry = new ClientRegistry<>();
+        TestSession ann = add(registry, "ann");
+        TestSession bob = add(registry, "bob");
+        TestSession eve = add(registry, "eve");
+
+        registry.broadcast(TestSession.textFrame(ann.getSessionId(), "hello"), ann);
+
+        assertEquals(List.of(), ann.take());
+        assertEquals(List.of("hello"), TestSession.texts(bob.take(), Client.TEXT));
+        assertEquals(List.of("hello"), TestSession.texts(eve.take(), Client.TEXT));
+    }
+
+    @Test
+    public void removedSessionGetsNothingMore() {
+        ClientRegistry<TestSession> registry = new ClientRegistry<>();
+        TestSession ann = add(registry, "ann");
+        TestSession bob = add(registry, "bob");
+        // a broadcast before the removal builds a snapshot the removal has to replace
+        registry.broadcast(TestSession.textFrame(0, "before"), null);
+
+        assertTrue(registry.remove(bob));
+        assertFalse(registry.remove(bob));
+        registry.broadcast(TestSession.textFrame(0, "after"), null);
+
+        assertEquals(1, registry.size());
+        assertNull(registry.get(bob.getSessionId()));
+        assertSame(ann, registry.get(ann.getSessionId()));
+        assertEquals(List.of("before", "after"), TestSession.texts(ann.take(), Client.TEXT));
+        assertEquals(List.of("before"), TestSession.texts(bob.take(), Client.TEXT));
+    }
+
+    @Test
+    public void sessionIdsAreOnlyReusedAfterEveryOtherOne() {
+        ClientRegistry<TestSession> registry = new ClientRegistry<>();
+        int first = registry.nextSessionId();
+        int second = registry.nextSessionId();
+        registry.releaseSessionId(first);
+
+        assertEquals(1, first);
+        assertEquals(2, second);
+        assertEquals(3, registry.nextSessionId());
+    }
+
+    @Test
+    public void sessionIdsRunOutRatherThanRepeat() {
+        ClientRegistry<TestSession> registry = new ClientRegistry<>();
+        for(int i = 1; i <= ClientRegistry.MAX_SESSION_ID; i++) {
+            assertEquals(i, registry.nextSessionId());
+        }
+        assertEquals(0, registry.nextSessionId());
+        registry.releaseSessionId(7);
+        assertEquals(7, registry.nextSessionId());
+    }
+
+    @Test
+    public void concurrentJoinsAndLeavesKeepAnExactCount() throws InterruptedException {
+        ClientRegistry<TestSession> registry = new ClientRegistry<>();
+        int threads = 8;
+        int perThread = 500;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            workers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perThread; i++) {
+                    TestSession session = add(registry, "user");
+                    registry.broadcast(TestSession.textFrame(0, "hi"), session);
+                    // every other session stays
+                    if(i % 2 == 0) {
+                        registry.remove(session);
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * perThread / 2, registry.size());
+        assertEquals(registry.size(), registry.snapshot().size());
+    }
+
+    /**
+     * Registers a new session under the next free session id
+     * @param registry - The registry
+     * @param username - The username
+     * @return the session
+     */
+    private static TestSession add(ClientRegistry<TestSession> registry, String username) {
+        TestSession session = new TestSession(registry.nextSessionId(), username);
+        registry.add(session);
+        return session;
+    }
+}
@@ -0,0 +1,82 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests which payloads get compressed and that they come back byte for byte
+ */
+public class CompressionTest {
+
+    // long enough to be over the threshold and full of words from the dictionary
+    private static final String CHAT = "thanks everyone, see you all tomorrow at the meeting! ".repeat(8);
+
+    @Test
+    public void compressedTextInflatesToTheSameBytes() throws ProtocolException {
+        byte[] text = CHAT.getBytes();
+        byte[] compressed = Compression.deflate(Client.TEXT, text, 0, text.length);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length < text.length / 4);
+        assertEquals(text.length, ByteBuffer.wrap(compressed).getInt());
+        byte[] inflated = new byte[text.length];
+        Compression.inflate(ByteBuffer.wrap(compressed), inflated, text.length);
+        assertArrayEquals(text, inflated);
+    }
+
+    @Test
+    public void someFramesAreAlwaysSentAsTheyAre() {
+        byte[] text = CHAT.getBytes();
+        byte[] shortText = "see you tomorrow".getBytes();
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+
+        // a type that is never compressed
+        assertNull(Compression.deflate(Client.LOGIN, text, 0, text.length));
+        // under the threshold
+        assertNull(Compression.deflate(Client.TEXT, shortText, 0, shortText.length));
+        // wouldn't get any smaller
+        assertNull(Compression.deflate(Client.FILE_CHUNK, random, 0, random.length));
+        assertFalse(Compression.isCompressible("photo.JPG"));
+        assertTrue(Compression.isCompressible("notes.txt"));
+    }
+
+    @Test
+    public void payloadThatLiesAboutItsLengthIsRejected() {
+        byte[] text = CHAT.getBytes();
+        byte[] compressed = Compression.deflate(Client.TEXT, text, 0, text.length);
+
+        assertThrows(ProtocolException.class, () -> Compression.inflate(ByteBuffer.wrap(compressed), new byte[text.length + 1], text.length + 1));
+        assertThrows(ProtocolException.class, () -> Compression.inflate(ByteBuffer.wrap(compressed), new byte[text.length - 1], text.length - 1));
+        byte[] corrupt = compressed.clone();
+        corrupt[corrupt.length / 2] ^= 0x55;
+        assertThrows(ProtocolException.class, () -> Compression.inflate(ByteBuffer.wrap(corrupt), new byte[text.length], text.length));
+    }
+
+    @Test
+    public void frameIsCompressedOnceForEveryRecipient() {
+        Frame frame = TestSession.textFrame(3, CHAT);
+        Frame compressed = frame.compressed();
+
+        assertSame(compressed, frame.compressed());
+        assertEquals(Client.TEXT, compressed.getType());
+        assertEquals(Compression.FLAG, compressed.buffer().getInt() & Compression.FLAG);
+        assertEquals(3, compressed.getSender());
+        assertTrue(compressed.length() < frame.length());
+        // nothing to gain, so the frame itself goes out
+        Frame shortFrame = TestSession.textFrame(3, "hi");
+        assertSame(shortFrame, shortFrame.compressed());
+    }
+}
@@ -0,0 +1,129 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that direct messages reach the one session with a username, and that the username index keeps up
+ */
+public class DirectTest {
+
+    @Test
+    public void directMessageOnlyReachesItsRecipient() throws ProtocolException {
+        ClientRegistry<TestSession> sessions = new ClientRegistry<>();
+        TestSession ann = add(sessions, "ann");
+        TestSession bob = add(sessions, "bob");
+        TestSession eve = add(sessions, "eve");
+
+        Direct.send(ann, payload("bob", "psst"), sessions, federation(sessions));
+
+        List<Frame> frames = bob.take();
+        assertEquals(1, frames.size());
+        assertEquals(Client.DIRECT, frames.get(0).getType());
+        assertEquals(ann.getSessionId(), frames.get(0).getSender());
+        ByteBuffer received = frames.get(0).buffer().position(Frame.HEADER_LENGTH);
+        // the recipient is told who it is from
+        assertEquals("ann", Direct.readUsername(received));
+        assertEquals("psst", text(received));
+        assertEquals(List.of(), ann.take());
+        assertEquals(List.of(), eve.take());
+    }
+
+    @Test
+    public void senderIsToldWhenNobodyHasTheUsername() throws ProtocolException {
+        ClientRegistry<TestSession> sessions = new ClientRegistry<>();
+        TestSession ann = add(sessions, "ann");
+        TestSession bob = add(sessions, "bob");
+        sessions.remove(bob);
+
+        Direct.send(ann, payload("bob", "still there?"), sessions, federation(sessions));
+
+        List<Frame> frames = ann.take();
+        assertEquals(1, frames.size());
+        assertEquals(Client.OFFLINE, frames.get(0).getType());
+        assertEquals("bob", TestSession.text(frames.get(0)));
+        assertEquals(List.of(), bob.take());
+    }
+
+    @Test
+    public void sharedUsernameStillFindsTheSessionsLeft() throws ProtocolException {
+        ClientRegistry<TestSession> sessions = new ClientRegistry<>();
+        TestSession ann = add(sessions, "ann");
+        TestSession phone = add(sessions, "bob");
+        TestSession laptop = add(sessions, "bob");
+        assertSame(laptop, sessions.find("bob"));
+
+        // the newest login leaves, the older one with the same name gets the next message
+        sessions.remove(laptop);
+        assertSame(phone, sessions.find("bob"));
+        Direct.send(ann, payload("bob", "on your phone?"), sessions, federation(sessions));
+        assertEquals(1, phone.take().size());
+        assertEquals(List.of(), laptop.take());
+
+        sessions.remove(phone);
+        assertNull(sessions.find("bob"));
+        assertSame(ann, sessions.find("ann"));
+    }
+
+    @Test
+    public void malformedUsernameIsRejected() {
+        ClientRegistry<TestSession> sessions = new ClientRegistry<>();
+        TestSession ann = add(sessions, "ann");
+
+        assertThrows(ProtocolException.class, () -> Direct.send(ann, payload("", "hi"), sessions, federation(sessions)));
+        assertThrows(ProtocolException.class, () -> Direct.send(ann, ByteBuffer.allocate(6).putInt(50).flip(), sessions, federation(sessions)));
+        assertEquals(List.of(), ann.take());
+    }
+
+    /**
+     * Registers a new session under the next free session id
+     * @param sessions - The registry
+     * @param username - The username
+     * @return the session
+     */
+    private static TestSession add(ClientRegistry<TestSession> sessions, String username) {
+        TestSession session = new TestSession(sessions.nextSessionId(), username);
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Creates a federation that was never started, so it knows of no other nodes
+     * @param sessions - The sessions on this node
+     * @return the federation
+     */
+    private static Federation<TestSession> federation(ClientRegistry<TestSession> sessions) {
+        return new Federation<>(sessions, new RoomIndex<>(), new HistoryRing(10, 1024, null));
+    }
+
+    /**
+     * Encodes a DIRECT payload the way a client sends it
+     * @param username - The recipient's username
+     * @param text - The message
+     * @return the payload, ready to read
+     */
+    private static ByteBuffer payload(String username, String text) {
+        byte[] usernameBytes = username.getBytes();
+        byte[] textBytes = text.getBytes();
+        return ByteBuffer.allocate(4 + usernameBytes.length + textBytes.length).putInt(usernameBytes.length).put(usernameBytes).put(textBytes).flip();
+    }
+
+    /**
+     * Reads the rest of a payload as text
+     * @param payload - The payload, positioned at the text
+     * @return the text
+     */
+    private static String text(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,170 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests two linked nodes on this machine relaying chat, presence and direct messages between their clients
+ */
+public class FederationTest {
+
+    // how long anything sent over the link may take to arrive
+    private static final long WAIT_MILLIS = 10_000;
+
+    @Test
+    public void linkedNodesRelayWhatTheirClientsSend() throws IOException, InterruptedException {
+        Node first = new Node();
+        Node second = new Node();
+        TestSession ann = first.add("ann");
+        TestSession bob = second.add("bob");
+        int port = freePort();
+        first.federation.start(port, List.of());
+        second.federation.start(0, List.of(new InetSocketAddress("localhost", port)));
+
+        // each side hears about the other's sessions as the link opens
+        assertTrue(eventually(() -> second.federation.remoteSessions().containsValue("ann") && first.federation.remoteSessions().containsValue("bob")));
+        assertEquals(1, first.federation.linkCount());
+        assertEquals(1, second.federation.linkCount());
+        ann.take();
+        bob.take();
+
+        Frame text = TestSession.textFrame(ann.getSessionId(), "hello from the first node");
+        first.history.publish(text, first.sessions, ann);
+        first.federation.forward(text);
+
+        Frame relayed = next(bob, Client.TEXT);
+        assertNotNull(relayed);
+        assertEquals("hello from the first node", TestSession.text(relayed));
+        // the sender carries the id the second node gave ann
+        assertEquals("ann", second.federation.remoteSessions().get(relayed.getSender()));
+        assertEquals(1, second.history.size());
+        // never relayed back
+        Thread.sleep(200);
+        assertEquals(List.of(), TestSession.texts(ann.take(), Client.TEXT));
+    }
+
+    @Test
+    public void directMessageGoesToTheRecipientsNode() throws IOException, InterruptedException, ProtocolException {
+        Node first = new Node();
+        Node second = new Node();
+        TestSession ann = first.add("ann");
+        TestSession bob = second.add("bob");
+        int port = freePort();
+        first.federation.start(port, List.of());
+        second.federation.start(0, List.of(new InetSocketAddress("localhost", port)));
+        assertTrue(eventually(() -> second.federation.remoteSessions().containsValue("ann") && first.federation.remoteSessions().containsValue("bob")));
+
+        byte[] username = "ann".getBytes();
+        Direct.send(bob, ByteBuffer.allocate(4 + username.length + 2).putInt(username.length).put(username).put("hi".getBytes()).flip(), second.sessions, second.federation);
+
+        Frame direct = next(ann, Client.DIRECT);
+        assertNotNull(direct);
+        ByteBuffer payload = direct.buffer().position(Frame.HEADER_LENGTH);
+        assertEquals("bob", Direct.readUsername(payload));
+        assertEquals("bob", first.federation.remoteSessions().get(direct.getSender()));
+        // nobody anywhere by that name
+        assertFalse(second.federation.forwardDirect("eve", Frame.encode(Client.DIRECT, new byte[0])));
+    }
+
+    @Test
+    public void logoutIsForgottenOnTheOtherNode() throws IOException, InterruptedException {
+        Node first = new Node();
+        Node second = new Node();
+        TestSession ann = first.add("ann");
+        TestSession bob = second.add("bob");
+        int port = freePort();
+        first.federation.start(port, List.of());
+        second.federation.start(0, List.of(new InetSocketAddress("localhost", port)));
+        assertTrue(eventually(() -> second.federation.remoteSessions().containsValue("ann")));
+        bob.take();
+
+        first.sessions.remove(ann);
+        first.federation.forward(Presence.logout(ann.getSessionId(), "ann"));
+
+        Frame logout = next(bob, Client.LOGOUT);
+        assertNotNull(logout);
+        assertTrue(eventually(() -> !second.federation.remoteSessions().containsValue("ann")));
+        assertNull(second.sessions.find("ann"));
+    }
+
+    /**
+     * Waits for the next frame of one type, passing over any others
+     * @param session - The session receiving it
+     * @param type - The frame type
+     * @return the frame, or null if none came in time
+     * @throws InterruptedException - Interrupted while waiting
+     */
+    private static Frame next(TestSession session, int type) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        Frame frame;
+        while((frame = session.next(Math.max(1, deadline - System.currentTimeMillis()))) != null) {
+            if(frame.getType() == type) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for something that happens once the link has carried it
+     * @param condition - What should become true
+     * @return true if it did in time
+     * @throws InterruptedException - Interrupted while waiting
+     */
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while(!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Finds a port nothing is listening on
+     * @return the port
+     * @throws IOException - No port could be bound
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * The sessions, rooms, history and federation of one node
+     */
+    private static class Node {
+
+        private final ClientRegistry<TestSession> sessions = new ClientRegistry<>();
+        private final RoomIndex<TestSession> rooms = new RoomIndex<>();
+        private final HistoryRing history = new HistoryRing(10, 1024, null);
+        private final Federation<TestSession> federation = new Federation<>(this.sessions, this.rooms, this.history);
+
+        /**
+         * Logs a session in on this node
+         * @param username - The username
+         * @return the session
+         */
+        private TestSession add(String username) {
+            TestSession session = new TestSession(this.sessions.nextSessionId(), username);
+            this.history.join(session, this.sessions);
+            return session;
+        }
+    }
+}
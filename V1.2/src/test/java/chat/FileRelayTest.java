@@ -0,0 +1,124 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that a fetched range comes back in chunks at the right offsets, ended by an empty FILE_DATA frame
+ */
+public class FileRelayTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void rangeIsServedInChunksThenEnded() throws IOException {
+        byte[] file = bytes(FileRelay.CHUNK_SIZE * 2 + 1000);
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 24, 0, 0);
+        byte[] hash = store(store, file);
+        TestSession session = new TestSession(1, "ann");
+
+        FileRelay.serve(store, request(7, hash, 1000, FileRelay.CHUNK_SIZE + 500), session);
+
+        List<Frame> frames = session.take();
+        assertEquals(3, frames.size());
+        ByteArrayOutputStream served = new ByteArrayOutputStream();
+        long offset = 1000;
+        for(Frame frame : frames) {
+            assertEquals(Client.FILE_DATA, frame.getType());
+            ByteBuffer payload = frame.buffer().position(Frame.HEADER_LENGTH);
+            assertEquals(7, payload.getInt());
+            assertEquals(offset, payload.getLong());
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            served.write(data);
+            offset += data.length;
+        }
+        assertArrayEquals(Arrays.copyOfRange(file, 1000, 1000 + FileRelay.CHUNK_SIZE + 500), served.toByteArray());
+        // the last frame is empty and says where the range stopped
+        assertEquals(Frame.HEADER_LENGTH + 12, frames.get(2).length());
+    }
+
+    @Test
+    public void rangeStopsAtTheEndOfTheFile() throws IOException {
+        byte[] file = bytes(5000);
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 24, 1 << 20, 1 << 16);
+        byte[] hash = store(store, file);
+        TestSession session = new TestSession(1, "ann");
+
+        FileRelay.serve(store, request(1, hash, 4000, FileRelay.MAX_RANGE), session);
+        FileRelay.serve(store, request(2, hash, 5000, 100), session);
+
+        List<Frame> frames = session.take();
+        assertEquals(3, frames.size());
+        assertEquals(Frame.HEADER_LENGTH + 12 + 1000, frames.get(0).length());
+        assertEquals(5000, frames.get(1).buffer().getLong(Frame.HEADER_LENGTH + 4));
+        // nothing left from there, so just the end
+        assertEquals(2, frames.get(2).buffer().getInt(Frame.HEADER_LENGTH));
+        assertEquals(5000, frames.get(2).buffer().getLong(Frame.HEADER_LENGTH + 4));
+    }
+
+    @Test
+    public void unknownFileOnlyGetsTheEnd() throws IOException {
+        AttachmentStore store = new AttachmentStore(this.directory, 1 << 24, 1 << 20, 1 << 16);
+        TestSession session = new TestSession(1, "ann");
+
+        FileRelay.serve(store, request(3, new byte[AttachmentStore.HASH_LENGTH], 0, 100), session);
+        FileRelay.serve(null, request(4, new byte[AttachmentStore.HASH_LENGTH], 0, 100), session);
+
+        List<Frame> frames = session.take();
+        assertEquals(2, frames.size());
+        for(Frame frame : frames) {
+            assertEquals(Frame.HEADER_LENGTH + 12, frame.length());
+            assertEquals(0, frame.buffer().getLong(Frame.HEADER_LENGTH + 4));
+        }
+    }
+
+    /**
+     * Encodes a FILE_REQUEST payload
+     * @param requestId - The client's id for the request
+     * @param hash - The file's hash
+     * @param offset - Where the range starts
+     * @param length - The length of the range
+     * @return the payload, ready to read
+     */
+    private static ByteBuffer request(int requestId, byte[] hash, long offset, int length) {
+        return ByteBuffer.allocate(16 + hash.length).putInt(requestId).put(hash).putLong(offset).putInt(length).flip();
+    }
+
+    /**
+     * Uploads a file to the store
+     * @param store - The store
+     * @param file - The file
+     * @return its hash
+     * @throws IOException - IO error in the store
+     */
+    private static byte[] store(AttachmentStore store, byte[] file) throws IOException {
+        AttachmentStore.Upload upload = store.upload();
+        upload.write(ByteBuffer.wrap(file));
+        return upload.commit(null);
+    }
+
+    /**
+     * Makes the bytes of a test file
+     * @param length - The file size
+     * @return the bytes
+     */
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i ^ (i >>> 8));
+        }
+        return bytes;
+    }
+}
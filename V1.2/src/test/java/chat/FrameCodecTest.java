@@ -0,0 +1,136 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the codec checks every length against its type's limits before reading anything
+ */
+public class FrameCodecTest {
+
+    @Test
+    public void readsAFrameWithinItsLimits() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        assertEquals(Client.TEXT, codec.readFrame(stream(Client.TEXT, "hello".getBytes())));
+        assertEquals("hello", new String(codec.payload().array(), 0, codec.payload().limit()));
+        assertEquals(Frame.HEADER_LENGTH + 5, codec.frameLength());
+    }
+
+    @Test
+    public void acceptsTheLongestText() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        assertEquals(Client.TEXT, codec.readFrame(stream(Client.TEXT, new byte[FrameCodec.MAX_TEXT_LENGTH])));
+        assertEquals(FrameCodec.MAX_TEXT_LENGTH, codec.payload().remaining());
+    }
+
+    @Test
+    public void rejectsATextOverTheLimitFromItsHeader() {
+        // only the header is there, the codec must not wait for the payload it announces
+        assertThrows(ProtocolException.class, () -> new FrameCodec().readFrame(header(Client.TEXT, FrameCodec.MAX_TEXT_LENGTH + 1)));
+    }
+
+    @Test
+    public void rejectsFramesShorterThanTheirFields() {
+        // [transfer id][status] is five bytes
+        assertThrows(ProtocolException.class, () -> new FrameCodec().readFrame(stream(Client.FILE_END, new byte[4])));
+        assertThrows(ProtocolException.class, () -> new FrameCodec().readFrame(header(Client.FILE_CHUNK, 4 + FileRelay.CHUNK_SIZE + 1)));
+    }
+
+    @Test
+    public void rejectsUnknownTypes() {
+        assertThrows(ProtocolException.class, () -> new FrameCodec().readFrame(header(31, 0)));
+        assertThrows(ProtocolException.class, () -> new FrameCodec().readFrame(header(-1, 0)));
+    }
+
+    @Test
+    public void onlyAcceptsSendersWhenToldTo() throws IOException {
+        int type = 7 << Frame.SENDER_SHIFT | Client.TEXT;
+        assertThrows(ProtocolException.class, () -> new FrameCodec().readFrame(stream(type, "hi".getBytes())));
+
+        FrameCodec codec = new FrameCodec();
+        codec.setSenders(true);
+        assertEquals(Client.TEXT, codec.readFrame(stream(type, "hi".getBytes())));
+        assertEquals(7, codec.sender());
+    }
+
+    @Test
+    public void newTypesNeedLimits() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        codec.setLimits(40, 2, 2);
+        assertEquals(40, codec.readFrame(stream(40, new byte[2])));
+        assertThrows(ProtocolException.class, () -> codec.readFrame(stream(40, new byte[3])));
+    }
+
+    @Test
+    public void rejectsALongUsername() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        assertEquals("ann", codec.readLogin(login(0, "ann".getBytes())));
+        assertThrows(ProtocolException.class, () -> codec.readLogin(login(0, new byte[FrameCodec.MAX_USERNAME_LENGTH + 1])));
+    }
+
+    @Test
+    public void readsTheCapabilitiesSentWithTheUsername() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        assertEquals("ann", codec.readLogin(login(Compression.COMPRESSION, "ann".getBytes())));
+        assertEquals(Compression.COMPRESSION, codec.capabilities());
+    }
+
+    @Test
+    public void requiredBytesWaitsForTheHeaderThenTheFrame() throws ProtocolException {
+        FrameCodec codec = new FrameCodec();
+        assertEquals(4, codec.requiredBytes(ByteBuffer.allocate(2), false));
+        assertEquals(Frame.HEADER_LENGTH, codec.requiredBytes(ByteBuffer.allocate(4).putInt(0, Client.TEXT), false));
+        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH).putInt(Client.TEXT).putInt(10).flip();
+        assertEquals(Frame.HEADER_LENGTH + 10, codec.requiredBytes(header, false));
+        ByteBuffer tooLong = ByteBuffer.allocate(Frame.HEADER_LENGTH).putInt(Client.TEXT).putInt(FrameCodec.MAX_TEXT_LENGTH + 1).flip();
+        assertThrows(ProtocolException.class, () -> codec.requiredBytes(tooLong, false));
+        ByteBuffer login = ByteBuffer.allocate(4).putInt(0, FrameCodec.MAX_USERNAME_LENGTH + 1);
+        assertThrows(ProtocolException.class, () -> codec.requiredBytes(login, true));
+    }
+
+    /**
+     * Builds a stream holding one frame
+     * @param type - The type, as sent
+     * @param payload - The payload
+     * @return the stream
+     */
+    private static DataInputStream stream(int type, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Builds a stream holding just a frame header
+     * @param type - The type, as sent
+     * @param length - The payload length the header claims
+     * @return the stream
+     */
+    private static DataInputStream header(int type, int length) {
+        return new DataInputStream(new ByteArrayInputStream(ByteBuffer.allocate(Frame.HEADER_LENGTH).putInt(type).putInt(length).array()));
+    }
+
+    /**
+     * Builds a stream holding a login handshake
+     * @param capabilities - The capability bits
+     * @param username - The username bytes
+     * @return the stream
+     */
+    private static DataInputStream login(int capabilities, byte[] username) {
+        ByteBuffer handshake = ByteBuffer.allocate(4 + username.length).putInt(capabilities << 16 | username.length).put(username);
+        return new DataInputStream(new ByteArrayInputStream(handshake.array()));
+    }
+}
@@ -0,0 +1,51 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a connection is only dropped once it has received nothing for the idle timeout
+ */
+public class HeartbeatTest {
+
+    @Test
+    public void quietConnectionGoesIdleOnce() throws InterruptedException {
+        AtomicInteger idle = new AtomicInteger();
+        CountDownLatch fired = new CountDownLatch(1);
+        Heartbeat heartbeat = new Heartbeat(200, () -> {
+            idle.incrementAndGet();
+            fired.countDown();
+        });
+        long start = System.nanoTime();
+        heartbeat.start();
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        // starting again after going idle does nothing
+        heartbeat.start();
+        Thread.sleep(500);
+        assertEquals(1, idle.get());
+    }
+
+    @Test
+    public void touchedConnectionStaysAlive() throws InterruptedException {
+        AtomicInteger idle = new AtomicInteger();
+        Heartbeat heartbeat = new Heartbeat(300, idle::incrementAndGet);
+        heartbeat.start();
+        for(int i = 0; i < 12; i++) {
+            Thread.sleep(50);
+            heartbeat.touch();
+        }
+        assertEquals(0, idle.get());
+
+        heartbeat.stop();
+        Thread.sleep(600);
+        assertEquals(0, idle.get());
+    }
+}
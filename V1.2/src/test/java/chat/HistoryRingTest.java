@@ -0,0 +1,129 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests what the history ring keeps and that members joining during a publish see each message exactly once
+ */
+public class HistoryRingTest {
+
+    @Test
+    public void joinerGetsTheRecordedMessagesAsOneBatch() {
+        HistoryRing history = new HistoryRing(10, 1024, null);
+        ClientRegistry<TestSession> members = new ClientRegistry<>();
+        TestSession ann = join(history, members, "ann");
+        history.publish(TestSession.textFrame(ann.getSessionId(), "one"), members, ann);
+        history.publish(TestSession.textFrame(ann.getSessionId(), "two"), members, ann);
+
+        TestSession bob = join(history, members, "bob");
+
+        assertEquals(2, history.size());
+        assertEquals(1, bob.batches());
+        assertEquals(List.of("one", "two"), TestSession.texts(bob.take(), Client.TEXT));
+        // the sender was left out of its own messages
+        assertEquals(List.of(), ann.take());
+    }
+
+    @Test
+    public void emptyHistorySendsNoBatch() {
+        HistoryRing history = new HistoryRing(10, 1024, null);
+        ClientRegistry<TestSession> members = new ClientRegistry<>();
+        TestSession ann = join(history, members, "ann");
+
+        assertEquals(0, ann.batches());
+        assertEquals(List.of(), ann.take());
+    }
+
+    @Test
+    public void oldestMessagesMakeRoomForNewOnes() {
+        HistoryRing byCount = new HistoryRing(2, 1024, null);
+        ClientRegistry<TestSession> members = new ClientRegistry<>();
+        for(String text : List.of("one", "two", "three")) {
+            byCount.publish(TestSession.textFrame(0, text), members, null);
+        }
+        assertEquals(2, byCount.size());
+        assertEquals(List.of("two", "three"), TestSession.texts(join(byCount, members, "ann").take(), Client.TEXT));
+
+        // room for two frames of 8 header bytes and 10 text bytes
+        HistoryRing byBytes = new HistoryRing(10, 40, null);
+        ClientRegistry<TestSession> others = new ClientRegistry<>();
+        for(String text : List.of("0123456789", "abcdefghij", "ABCDEFGHIJ")) {
+            byBytes.publish(TestSession.textFrame(0, text), others, null);
+        }
+        assertEquals(2, byBytes.size());
+        assertEquals(List.of("abcdefghij", "ABCDEFGHIJ"), TestSession.texts(join(byBytes, others, "bob").take(), Client.TEXT));
+    }
+
+    @Test
+    public void membersJoiningDuringPublishesSeeEveryMessageOnceInOrder() throws InterruptedException {
+        int publishers = 4;
+        int perPublisher = 500;
+        int joiners = 20;
+        HistoryRing history = new HistoryRing(publishers * perPublisher, 1024 * 1024, null);
+        ClientRegistry<TestSession> members = new ClientRegistry<>();
+        // present from the start, so it gets every message live in the order the ring numbered them
+        TestSession first = join(history, members, "first");
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<TestSession> joined = new ArrayList<>();
+        for(int p = 0; p < publishers; p++) {
+            int publisher = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                await(start);
+                for(int i = 0; i < perPublisher; i++) {
+                    history.publish(TestSession.textFrame(0, publisher + ":" + i), members, null);
+                }
+            }));
+        }
+        threads.add(Thread.ofPlatform().start(() -> {
+            await(start);
+            for(int j = 0; j < joiners; j++) {
+                joined.add(join(history, members, "joiner" + j));
+                Thread.yield();
+            }
+        }));
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        List<String> expected = TestSession.texts(first.take(), Client.TEXT);
+        assertEquals(publishers * perPublisher, expected.size());
+        for(TestSession session : joined) {
+            // the ring holds every message, so backfill and live messages together make up all of them
+            assertEquals(expected, TestSession.texts(session.take(), Client.TEXT), session.getUsername());
+        }
+    }
+
+    /**
+     * Adds a new session through the history
+     * @param history - The history
+     * @param members - The members of the chat
+     * @param username - The username
+     * @return the session, with whatever the join sent it
+     */
+    private static TestSession join(HistoryRing history, ClientRegistry<TestSession> members, String username) {
+        TestSession session = new TestSession(members.nextSessionId(), username);
+        history.join(session, members);
+        return session;
+    }
+
+    /**
+     * Waits for the latch that starts every thread of a test at once
+     * @param start - The latch
+     */
+    private static void await(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests writing the log, reading it back and picking it up again after a restart or a crash
+ */
+public class MessageLogTest {
+
+    // the smallest segment the log allows
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+    // sequence, timestamp, session id and frame length in front of every frame
+    private static final int RECORD_HEADER_LENGTH = 24;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        MessageLog log = new MessageLog(this.directory, SEGMENT_BYTES);
+        try {
+            for(int i = 1; i <= 10; i++) {
+                log.append(message(i), i % 3);
+            }
+            assertTrue(log.sync(5_000));
+            assertEquals(10, log.lastSequence());
+
+            List<MessageLog.Record> records = log.read(4, 3);
+            assertEquals(3, records.size());
+            for(int i = 0; i < 3; i++) {
+                MessageLog.Record record = records.get(i);
+                assertEquals(4 + i, record.getSequence());
+                assertEquals((4 + i) % 3, record.getSessionId());
+                assertEquals("message " + (4 + i), text(record.getFrame()));
+            }
+            assertTrue(log.read(11, 10).isEmpty());
+            assertEquals(1, log.readFrom(0, 10).get(0).getSequence());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void carriesOnAfterARestart() throws Exception {
+        MessageLog log = new MessageLog(this.directory, SEGMENT_BYTES);
+        for(int i = 1; i <= 5; i++) {
+            log.append(message(i), 0);
+        }
+        log.close();
+
+        MessageLog reopened = new MessageLog(this.directory, SEGMENT_BYTES);
+        try {
+            assertEquals(5, reopened.lastSequence());
+            reopened.append(message(6), 0);
+            assertTrue(reopened.sync(5_000));
+            List<MessageLog.Record> records = reopened.read(1, 10);
+            assertEquals(6, records.size());
+            assertEquals(6, records.get(5).getSequence());
+            assertEquals("message 6", text(records.get(5).getFrame()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void sealedSegmentsKeepTheirIndexAcrossARestart() throws Exception {
+        int messages = 3 * SEGMENT_BYTES / (RECORD_HEADER_LENGTH + message(99999).length());
+        MessageLog log = new MessageLog(this.directory, SEGMENT_BYTES);
+        for(int i = 1; i <= messages; i++) {
+            log.append(message(i), 0);
+        }
+        assertTrue(log.sync(30_000));
+        List<MessageLog.Record> sealedLast;
+        try (var listing = Files.list(this.directory)) {
+            Path index = listing.filter(path -> path.toString().endsWith(".index")).sorted().findFirst().orElseThrow();
+            // the trailer after the index entries is [last sequence][last timestamp][end of records]
+            try (InputStream in = Files.newInputStream(index)) {
+                byte[] bytes = in.readAllBytes();
+                DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - 20, 20));
+                long lastSequence = trailer.readLong();
+                long lastTimestamp = trailer.readLong();
+                sealedLast = log.read(lastSequence, 2);
+                assertEquals(lastSequence, sealedLast.get(0).getSequence());
+                assertEquals(lastTimestamp, sealedLast.get(0).getTimestamp());
+            }
+        }
+        log.close();
+
+        MessageLog reopened = new MessageLog(this.directory, SEGMENT_BYTES);
+        try {
+            assertEquals(messages, reopened.lastSequence());
+            // a read that starts in one sealed segment and runs into the next
+            List<MessageLog.Record> records = reopened.read(sealedLast.get(0).getSequence(), 2);
+            assertEquals(2, records.size());
+            assertEquals(sealedLast.get(1).getSequence(), records.get(1).getSequence());
+            assertEquals(text(sealedLast.get(1).getFrame()), text(records.get(1).getFrame()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void dropsARecordCutShortByACrash() throws Exception {
+        MessageLog log = new MessageLog(this.directory, SEGMENT_BYTES);
+        for(int i = 1; i <= 5; i++) {
+            log.append(message(i), 0);
+        }
+        log.close();
+
+        // every record is the same size, so the last one starts after the first four, make its length run off the end
+        int recordLength = RECORD_HEADER_LENGTH + message(1).length();
+        Path segment = this.directory.resolve(String.format("%020d.log", 1));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, SEGMENT_BYTES), 4L * recordLength + 20);
+        }
+
+        MessageLog reopened = new MessageLog(this.directory, SEGMENT_BYTES);
+        try {
+            assertEquals(4, reopened.lastSequence());
+            reopened.append(message(6), 0);
+            assertTrue(reopened.sync(5_000));
+            List<MessageLog.Record> records = reopened.read(1, 10);
+            assertEquals(5, records.size());
+            assertEquals(5, records.get(4).getSequence());
+            assertEquals("message 6", text(records.get(4).getFrame()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Encodes a TEXT frame
+     * @param number - The number in the text
+     * @return the frame
+     */
+    private static Frame message(int number) {
+        return Frame.encode(Client.TEXT, ("message " + number).getBytes());
+    }
+
+    /**
+     * Decodes the text of a TEXT frame
+     * @param frame - The frame
+     * @return the payload as text
+     */
+    private static String text(Frame frame) {
+        byte[] bytes = new byte[frame.length() - Frame.HEADER_LENGTH];
+        frame.buffer().get(Frame.HEADER_LENGTH, bytes);
+        return new String(bytes);
+    }
+}
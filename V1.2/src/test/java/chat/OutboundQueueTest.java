@@ -0,0 +1,232 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests what each slow consumer policy gives up when a client's queue is full
+ */
+public class OutboundQueueTest {
+
+    // long enough that nothing in these tests counts as stalled
+    private static final long NEVER = 60_000;
+
+    @Test
+    public void dropOldestMakesRoomForTheNewFrame() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Policy.DROP_OLDEST, NEVER);
+        assertTrue(queue.offer(text(1, "first")));
+        assertTrue(queue.offer(text(1, "second")));
+        assertTrue(queue.offer(text(1, "third")));
+
+        assertEquals(List.of("second", "third"), texts(drain(queue)));
+        assertEquals(1, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void dropOldestNeverDropsFileChunks() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Policy.DROP_OLDEST, NEVER);
+        queue.offer(chunk(1));
+        queue.offer(text(1, "hello"));
+        // the text goes to make room, not the chunk in front of it
+        queue.offer(chunk(2));
+        // nothing left that may go, so chunks go past the capacity and a new text is dropped instead
+        queue.offer(chunk(3));
+        queue.offer(chunk(4));
+        assertTrue(queue.offer(text(1, "dropped")));
+
+        List<Frame> frames = drain(queue);
+        assertEquals(4, frames.size());
+        for(Frame frame : frames) {
+            assertEquals(Client.FILE_CHUNK, frame.getType());
+        }
+        assertEquals(2, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void coalesceSummarizesAlertsForOlderClients() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.Policy.COALESCE, NEVER);
+        queue.offer(Frame.encode(Client.LOGIN, "ann has entered the chat".getBytes()));
+        queue.offer(text(0, "hello"));
+        queue.offer(Frame.encode(Client.LOGOUT, "ann has left the chat".getBytes()));
+        queue.offer(text(0, "bye"));
+
+        List<Frame> frames = drain(queue);
+        assertEquals(3, frames.size());
+        assertEquals("hello", text(frames.get(0)));
+        assertEquals("2 people have entered or left the chat", text(frames.get(1)));
+        assertEquals("bye", text(frames.get(2)));
+        assertEquals(1, queue.getCoalescedFrames());
+        assertEquals(0, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void coalesceKeepsOnlyTheLastAlertAboutEachSession() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.Policy.COALESCE, NEVER);
+        queue.offer(Presence.login(5, "eve"));
+        queue.offer(Presence.login(7, "bob"));
+        queue.offer(Presence.logout(5, "eve"));
+        // eve's login is pointless once she has left
+        queue.offer(Presence.logout(7, "bob"));
+        // and so is bob's
+        queue.offer(text(0, "server notice"));
+
+        List<Frame> frames = drain(queue);
+        assertEquals(3, frames.size());
+        assertEquals(Client.LOGOUT, frames.get(0).getType());
+        assertEquals(5, frames.get(0).getSender());
+        assertEquals(Client.LOGOUT, frames.get(1).getType());
+        assertEquals(7, frames.get(1).getSender());
+        assertEquals("server notice", text(frames.get(2)));
+        assertEquals(2, queue.getCoalescedFrames());
+        assertEquals(0, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void coalesceKeepsAnAlertWhileItsSessionSentSomethingAfterIt() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.Policy.COALESCE, NEVER);
+        queue.offer(Presence.login(5, "eve"));
+        queue.offer(text(5, "hi"));
+        queue.offer(Presence.logout(5, "eve"));
+        // nothing to merge, the text goes and the alerts stay
+        queue.offer(Presence.login(9, "al"));
+
+        List<Frame> frames = drain(queue);
+        assertEquals(3, frames.size());
+        assertEquals(Client.LOGIN, frames.get(0).getType());
+        assertEquals(Client.LOGOUT, frames.get(1).getType());
+        assertEquals(9, frames.get(2).getSender());
+        assertEquals(1, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void disconnectDropsTheNewFrameUntilTheClientStalls() {
+        OutboundQueue patient = new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT, NEVER);
+        patient.offer(text(1, "first"));
+        assertTrue(patient.offer(text(1, "second")));
+        assertEquals(List.of("first"), texts(drain(patient)));
+        assertEquals(1, patient.getDroppedFrames());
+
+        OutboundQueue stalled = new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT, 0);
+        stalled.offer(text(1, "first"));
+        assertTrue(stalled.isStalled());
+        assertFalse(stalled.offer(text(1, "second")));
+    }
+
+    @Test
+    public void disconnectQueuesFileChunksPastTheCapacity() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT, NEVER);
+        queue.offer(chunk(1));
+        assertTrue(queue.offer(chunk(2)));
+        assertEquals(2, queue.depth());
+        assertEquals(0, queue.getDroppedFrames());
+
+        OutboundQueue stalled = new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT, 0);
+        stalled.offer(chunk(1));
+        assertFalse(stalled.offer(chunk(2)));
+    }
+
+    @Test
+    public void tellsItsBacklogWhenItFallsBehindAndCatchesUp() {
+        Backlog backlog = new Backlog(2);
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.Policy.DROP_OLDEST, NEVER);
+        queue.offer(chunk(1));
+        queue.track(backlog);
+        assertTrue(backlog.isClear(null));
+
+        queue.offer(chunk(2));
+        assertEquals(1, backlog.size());
+        assertFalse(backlog.isClear(null));
+        // the sender's own queue doesn't hold up its files
+        assertTrue(backlog.isClear(queue));
+
+        queue.poll();
+        assertTrue(backlog.isClear(null));
+        queue.offer(chunk(3));
+        queue.track(null);
+        assertEquals(0, backlog.size());
+    }
+
+    @Test
+    public void aStalledQueueDoesntHoldUpTheBacklog() {
+        Backlog backlog = new Backlog(1);
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.Policy.DROP_OLDEST, 0);
+        queue.track(backlog);
+        queue.offer(chunk(1));
+        assertEquals(1, backlog.size());
+        assertTrue(backlog.isClear(null));
+        queue.close();
+        assertEquals(0, backlog.size());
+    }
+
+    @Test
+    public void closedQueueTakesNothing() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Policy.DROP_OLDEST, NEVER);
+        queue.offer(text(1, "lost"));
+        queue.close();
+        assertTrue(queue.offer(text(1, "ignored")));
+        assertNull(queue.take());
+        assertNull(queue.poll());
+        assertEquals(0, queue.depth());
+    }
+
+    /**
+     * Encodes a TEXT frame
+     * @param sender - The sender's session id, 0 for none
+     * @param text - The text
+     * @return the frame
+     */
+    private static Frame text(int sender, String text) {
+        return Frame.encode(Client.TEXT, sender, text.getBytes());
+    }
+
+    /**
+     * Encodes a FILE_CHUNK frame of a few bytes
+     * @param transferId - The transfer id
+     * @return the frame
+     */
+    private static Frame chunk(int transferId) {
+        return Frame.encode(Client.FILE_CHUNK, 1, new byte[] {0, 0, 0, (byte) transferId, 1, 2, 3});
+    }
+
+    /**
+     * Decodes the text of a TEXT or alert frame
+     * @param frame - The frame
+     * @return the payload as text
+     */
+    private static String text(Frame frame) {
+        byte[] bytes = new byte[frame.length() - Frame.HEADER_LENGTH];
+        frame.buffer().get(Frame.HEADER_LENGTH, bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Decodes the text of every frame
+     * @param frames - The frames
+     * @return their texts in order
+     */
+    private static List<String> texts(List<Frame> frames) {
+        List<String> texts = new ArrayList<>();
+        for(Frame frame : frames) {
+            texts.add(text(frame));
+        }
+        return texts;
+    }
+
+    /**
+     * Takes everything queued
+     * @param queue - The queue
+     * @return the frames in queue order
+     */
+    private static List<Frame> drain(OutboundQueue queue) {
+        List<Frame> frames = new ArrayList<>();
+        queue.drainTo(frames);
+        return frames;
+    }
+}
@@ -0,0 +1,149 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a session outlives its connection and is caught up with just what it missed when it comes back
+ */
+public class ResumeTest {
+
+    @Test
+    public void parkedSessionIsCaughtUpWithWhatItMissed() {
+        Chat server = new Chat();
+        TestSession ann = server.join("ann");
+        TestSession bob = server.join("bob");
+        byte[] token = token(ann.take());
+        bob.take();
+        server.publish(bob, "seen");
+
+        // ann got "seen" but loses her connection before the next two
+        assertTrue(server.resume.park(ann));
+        assertEquals(1, server.resume.parkedCount());
+        assertNull(server.sessions.get(ann.getSessionId()));
+        server.publish(bob, "missed one");
+        server.publish(bob, "missed two");
+
+        Resume.Parked<TestSession> claimed = server.resume.claim(login(token, 1));
+        assertNotNull(claimed);
+        assertEquals(0, server.resume.parkedCount());
+        TestSession again = new TestSession(claimed.getSessionId(), claimed.getUsername());
+        server.resume.rejoin(again, claimed, null);
+
+        List<Frame> frames = again.take();
+        assertEquals(List.of("missed one", "missed two"), TestSession.texts(frames, Client.TEXT));
+        // a new token comes after them
+        assertEquals(Client.RESUME, frames.get(frames.size() - 1).getType());
+        assertSame(again, server.sessions.get(ann.getSessionId()));
+        // nobody saw her go or come back
+        assertEquals(List.of(), bob.take());
+    }
+
+    @Test
+    public void tokenTakesOverAConnectedSession() {
+        Chat server = new Chat();
+        TestSession ann = server.join("ann");
+        byte[] token = token(ann.take());
+
+        // the client noticed first, its old connection still looks fine to the server
+        Resume.Parked<TestSession> claimed = server.resume.claim(login(token, 0));
+
+        assertNotNull(claimed);
+        assertTrue(ann.isDisconnected());
+        assertEquals(0, server.sessions.size());
+        // the old connection ending now doesn't park or end the session
+        assertFalse(server.resume.park(ann));
+    }
+
+    @Test
+    public void tokenOnlyWorksOnce() {
+        Chat server = new Chat();
+        TestSession ann = server.join("ann");
+        byte[] token = token(ann.take());
+        assertTrue(server.resume.park(ann));
+
+        Resume.Parked<TestSession> claimed = server.resume.claim(login(token, 0));
+        assertNotNull(claimed);
+        assertNull(server.resume.claim(login(token, 0)));
+        assertNull(server.resume.claim(login(new byte[Resume.TOKEN_LENGTH], 0)));
+    }
+
+    @Test
+    public void forgottenSessionCantBeParked() {
+        Chat server = new Chat();
+        TestSession ann = server.join("ann");
+        byte[] token = token(ann.take());
+
+        server.resume.forget(ann);
+
+        assertFalse(server.resume.park(ann));
+        assertNull(server.resume.claim(login(token, 0)));
+    }
+
+    /**
+     * Finds the token in the frames a session was sent
+     * @param frames - The frames
+     * @return the token from the last RESUME frame
+     */
+    private static byte[] token(List<Frame> frames) {
+        byte[] token = null;
+        for(Frame frame : frames) {
+            if(frame.getType() == Client.RESUME) {
+                token = new byte[frame.length() - Frame.HEADER_LENGTH];
+                frame.buffer().get(Frame.HEADER_LENGTH, token);
+            }
+        }
+        assertNotNull(token);
+        return token;
+    }
+
+    /**
+     * Encodes what a resuming login carries after the username
+     * @param token - The token
+     * @param received - The TEXT frames received since the token
+     * @return [token][received], ready to read
+     */
+    private static ByteBuffer login(byte[] token, long received) {
+        return ByteBuffer.allocate(Resume.LOGIN_LENGTH).put(token).putLong(received).flip();
+    }
+
+    /**
+     * The parts of one server that resumable sessions are kept across
+     */
+    private static class Chat {
+
+        private final ClientRegistry<TestSession> sessions = new ClientRegistry<>();
+        private final RoomIndex<TestSession> rooms = new RoomIndex<>();
+        private final HistoryRing history = new HistoryRing(10, 1024, null);
+        private final Resume<TestSession> resume = new Resume<>(this.sessions, this.rooms, this.history, new Federation<>(this.sessions, this.rooms, this.history));
+
+        /**
+         * Logs in a session that can be resumed
+         * @param username - The username
+         * @return the session
+         */
+        private TestSession join(String username) {
+            TestSession session = new TestSession(this.sessions.nextSessionId(), username);
+            this.resume.join(session, null);
+            return session;
+        }
+
+        /**
+         * Sends a chat message from a session
+         * @param sender - The session sending
+         * @param text - The text
+         */
+        private void publish(TestSession sender, String text) {
+            this.history.publish(TestSession.textFrame(sender.getSessionId(), text), this.sessions, sender);
+        }
+    }
+}
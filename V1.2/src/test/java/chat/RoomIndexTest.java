@@ -0,0 +1,142 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that room frames only reach the members of their room
+ */
+public class RoomIndexTest {
+
+    @Test
+    public void joinerIsCaughtUpAndTheRoomIsTold() throws ProtocolException {
+        RoomIndex<TestSession> rooms = new RoomIndex<>();
+        TestSession ann = new TestSession(1, "ann");
+        TestSession bob = new TestSession(2, "bob");
+        rooms.join(ann, payload("lobby", ""));
+        rooms.send(ann, payload("lobby", "anyone here?"));
+
+        rooms.join(bob, payload("lobby", ""));
+
+        assertEquals(List.of("ann", "bob"), bodies(ann.take(), Client.JOIN));
+        List<Frame> frames = bob.take();
+        // the room's history comes before the joiner hears about itself
+        assertEquals(Client.ROOM_TEXT, frames.get(0).getType());
+        assertEquals(ann.getSessionId(), frames.get(0).getSender());
+        assertEquals(List.of("anyone here?"), bodies(frames, Client.ROOM_TEXT));
+        assertEquals(List.of("bob"), bodies(frames, Client.JOIN));
+        assertEquals(List.of(ann, bob), sorted(rooms.members("lobby")));
+    }
+
+    @Test
+    public void roomTextOnlyReachesTheOtherMembers() throws ProtocolException {
+        RoomIndex<TestSession> rooms = new RoomIndex<>();
+        TestSession ann = new TestSession(1, "ann");
+        TestSession bob = new TestSession(2, "bob");
+        TestSession eve = new TestSession(3, "eve");
+        rooms.join(ann, payload("lobby", ""));
+        rooms.join(bob, payload("lobby", ""));
+        rooms.join(eve, payload("games", ""));
+        ann.take();
+        bob.take();
+        eve.take();
+
+        rooms.send(ann, payload("lobby", "hi"));
+        // not a member, so dropped
+        rooms.send(eve, payload("lobby", "let me in"));
+
+        assertEquals(List.of(), ann.take());
+        assertEquals(List.of("hi"), bodies(bob.take(), Client.ROOM_TEXT));
+        assertEquals(List.of(), eve.take());
+        assertEquals(2, rooms.roomCount());
+    }
+
+    @Test
+    public void roomGoesWithItsLastMember() throws ProtocolException {
+        RoomIndex<TestSession> rooms = new RoomIndex<>();
+        TestSession ann = new TestSession(1, "ann");
+        TestSession bob = new TestSession(2, "bob");
+        rooms.join(ann, payload("lobby", ""));
+        rooms.join(ann, payload("games", ""));
+        rooms.join(bob, payload("lobby", ""));
+        rooms.send(bob, payload("lobby", "gone soon"));
+        ann.take();
+
+        rooms.leave(bob, payload("lobby", ""));
+        assertEquals(List.of("bob"), bodies(ann.take(), Client.LEAVE));
+        assertEquals(List.of("bob"), bodies(bob.take(), Client.LEAVE));
+
+        rooms.leaveAll(ann);
+        assertEquals(0, rooms.roomCount());
+        assertEquals(List.of(), rooms.members("lobby"));
+
+        // a new room of the same name starts without the old one's history
+        rooms.join(bob, payload("lobby", ""));
+        assertEquals(List.of(), bodies(bob.take(), Client.ROOM_TEXT));
+    }
+
+    @Test
+    public void malformedRoomNameIsRejected() {
+        RoomIndex<TestSession> rooms = new RoomIndex<>();
+        TestSession ann = new TestSession(1, "ann");
+
+        assertThrows(ProtocolException.class, () -> rooms.join(ann, payload("", "")));
+        assertThrows(ProtocolException.class, () -> rooms.join(ann, payload("x".repeat(RoomIndex.MAX_ROOM_LENGTH + 1), "")));
+        assertThrows(ProtocolException.class, () -> rooms.join(ann, ByteBuffer.allocate(8).putInt(100).flip()));
+        assertEquals(0, rooms.roomCount());
+    }
+
+    /**
+     * Encodes the payload of a room frame
+     * @param room - The room name
+     * @param body - What follows the room name
+     * @return the payload, ready to read
+     */
+    private static ByteBuffer payload(String room, String body) {
+        byte[] roomBytes = room.getBytes();
+        byte[] bodyBytes = body.getBytes();
+        return ByteBuffer.allocate(4 + roomBytes.length + bodyBytes.length).putInt(roomBytes.length).put(roomBytes).put(bodyBytes).flip();
+    }
+
+    /**
+     * Decodes what follows the room name in every frame of one type
+     * @param frames - The frames
+     * @param type - The frame type kept
+     * @return the bodies of the frames of that type, in order
+     */
+    private static List<String> bodies(List<Frame> frames, int type) {
+        List<String> bodies = new ArrayList<>();
+        for(Frame frame : frames) {
+            if(frame.getType() == type) {
+                ByteBuffer payload = frame.buffer().position(Frame.HEADER_LENGTH);
+                try {
+                    RoomIndex.readRoom(payload);
+                } catch (ProtocolException e) {
+                    throw new AssertionError(e);
+                }
+                byte[] body = new byte[payload.remaining()];
+                payload.get(body);
+                bodies.add(new String(body));
+            }
+        }
+        return bodies;
+    }
+
+    /**
+     * Orders sessions by session id
+     * @param sessions - The sessions
+     * @return a sorted copy
+     */
+    private static List<TestSession> sorted(List<TestSession> sessions) {
+        List<TestSession> copy = new ArrayList<>(sessions);
+        copy.sort((a, b) -> Integer.compare(a.getSessionId(), b.getSessionId()));
+        return copy;
+    }
+}
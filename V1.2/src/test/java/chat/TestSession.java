@@ -0,0 +1,135 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A session without a connection that keeps every frame it is sent, so tests can check who got what
+ * Batch frames are split back into the frames they hold, in order
+ */
+class TestSession implements ChatSession {
+
+    // class variables
+    private final int sessionId;
+    private final String username;
+    private final OutboundQueue outboundQueue = new OutboundQueue(1024, OutboundQueue.Policy.DROP_OLDEST, 60_000);
+    private final LinkedBlockingQueue<Frame> received = new LinkedBlockingQueue<>();
+    private volatile int batches = 0;
+    private volatile boolean disconnected = false;
+
+    /**
+     * Creates a session
+     * @param sessionId - The session id
+     * @param username - The username
+     */
+    TestSession(int sessionId, String username) {
+        this.sessionId = sessionId;
+        this.username = username;
+    }
+
+    public int getSessionId() {
+        return this.sessionId;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public void send(Frame frame) {
+        if(frame.getType() != Frame.BATCH) {
+            this.received.add(frame);
+            return;
+        }
+        this.batches++;
+        ByteBuffer frames = frame.buffer();
+        while(frames.hasRemaining()) {
+            byte[] encoded = new byte[Frame.HEADER_LENGTH + frames.getInt(frames.position() + 4)];
+            frames.get(encoded);
+            this.received.add(Frame.wrap(encoded));
+        }
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+
+    public void disconnect() {
+        this.disconnected = true;
+    }
+
+    /**
+     * Gets every frame received so far and forgets them
+     * @return the frames in the order they were sent
+     */
+    List<Frame> take() {
+        List<Frame> frames = new ArrayList<>();
+        this.received.drainTo(frames);
+        return frames;
+    }
+
+    /**
+     * Waits for the next frame
+     * @param millis - How long to wait
+     * @return the frame, or null if none came in time
+     * @throws InterruptedException - Interrupted while waiting
+     */
+    Frame next(long millis) throws InterruptedException {
+        return this.received.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the number of batch frames received
+     * @return the number of batches
+     */
+    int batches() {
+        return this.batches;
+    }
+
+    /**
+     * Checks whether the session was told to drop its connection
+     * @return true once disconnect has been called
+     */
+    boolean isDisconnected() {
+        return this.disconnected;
+    }
+
+    /**
+     * Decodes the payload of a frame as text
+     * @param frame - The frame
+     * @return the payload as text
+     */
+    static String text(Frame frame) {
+        byte[] bytes = new byte[frame.length() - Frame.HEADER_LENGTH];
+        frame.buffer().get(Frame.HEADER_LENGTH, bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Decodes the text of every frame of one type
+     * @param frames - The frames
+     * @param type - The frame type kept
+     * @return the texts of the frames of that type, in order
+     */
+    static List<String> texts(List<Frame> frames, int type) {
+        List<String> texts = new ArrayList<>();
+        for(Frame frame : frames) {
+            if(frame.getType() == type) {
+                texts.add(text(frame));
+            }
+        }
+        return texts;
+    }
+
+    /**
+     * Encodes a TEXT frame
+     * @param sender - The sender's session id, 0 for none
+     * @param text - The text
+     * @return the frame
+     */
+    static Frame textFrame(int sender, String text) {
+        return Frame.encode(Client.TEXT, sender, text.getBytes());
+    }
+}
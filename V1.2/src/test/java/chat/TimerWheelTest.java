@@ -0,0 +1,76 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that timeouts fire once, never early, and not at all once cancelled
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void timeoutFiresAfterItsDelay() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(10, 1_000);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void timeoutsFireInTheOrderTheyAreDue() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(10, 1_000);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch fired = new CountDownLatch(3);
+        for(int delay : new int[] {150, 50, 100}) {
+            wheel.schedule(() -> {
+                order.add(delay);
+                fired.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(50, 100, 150), order);
+    }
+
+    @Test
+    public void cancelledTimeoutNeverFires() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(10, 1_000);
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(() -> cancelledRan.set(true), 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(later::countDown, 150, TimeUnit.MILLISECONDS);
+        assertEquals(2, wheel.size());
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.size());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.get());
+    }
+
+    @Test
+    public void delayPastTheSpanStillFires() throws InterruptedException {
+        // the wheel turns more than once before this one is due
+        TimerWheel wheel = new TimerWheel(10, 50);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 300, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+}
@@ -0,0 +1,207 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the server side of TLS over a non-blocking channel against an ordinary TLS socket
+ * The key store in the test resources holds a self-signed certificate for localhost, trusted by the client
+ */
+public class TlsChannelTest {
+
+    // how long the other end may take
+    private static final long WAIT_MILLIS = 10_000;
+
+    @Test
+    public void bytesGoBothWaysOnceTheHandshakeIsDone() throws Exception {
+        SSLContext context = context();
+        long handshakes = Metrics.get().tlsFullHandshakes.sum();
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            CompletableFuture<String> client = connect(context, server, "ping".getBytes(), 4);
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            AtomicInteger tasksDone = new AtomicInteger();
+            TlsChannel tls = new TlsChannel(channel, engine(context), tasksDone::incrementAndGet);
+            // nothing goes out before the handshake has finished
+            assertEquals(0, tls.write(new ByteBuffer[] {ByteBuffer.wrap("early".getBytes())}, 0, 1));
+
+            ByteBuffer in = ByteBuffer.allocate(4);
+            read(tls, in);
+            assertEquals("ping", new String(in.array()));
+            ByteBuffer out = ByteBuffer.wrap("pong".getBytes());
+            write(tls, out);
+
+            assertEquals("pong", client.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(handshakes + 1, Metrics.get().tlsFullHandshakes.sum());
+            // the key agreement and signing ran on the task threads, which handed the channel back
+            assertTrue(tasksDone.get() > 0);
+            tls.close();
+            channel.close();
+        }
+    }
+
+    @Test
+    public void largeWritesGoOutInManyRecords() throws Exception {
+        SSLContext context = context();
+        byte[] large = new byte[1024 * 1024];
+        for(int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 251);
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            CompletableFuture<String> client = connect(context, server, "go".getBytes(), large.length);
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            TlsChannel tls = new TlsChannel(channel, engine(context), () -> { });
+
+            read(tls, ByteBuffer.allocate(2));
+            // split over two buffers the way the nio server gathers frames
+            write(tls, ByteBuffer.wrap(large, 0, 1000), ByteBuffer.wrap(large, 1000, large.length - 1000));
+
+            assertEquals(new String(large), client.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+            tls.close();
+            channel.close();
+        }
+    }
+
+    @Test
+    public void peerClosingEndsTheReads() throws Exception {
+        SSLContext context = context();
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            CompletableFuture<String> client = connect(context, server, "bye".getBytes(), 0);
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            TlsChannel tls = new TlsChannel(channel, engine(context), () -> { });
+
+            read(tls, ByteBuffer.allocate(3));
+            client.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+            int read = 0;
+            while(read == 0 && System.currentTimeMillis() < deadline) {
+                read = tls.read(ByteBuffer.allocate(16));
+                Thread.sleep(1);
+            }
+            assertEquals(-1, read);
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads until a buffer is full, doing the handshake on the way the way an event loop would
+     * @param tls - The channel
+     * @param in - The buffer
+     * @throws IOException - IO error on the channel
+     * @throws InterruptedException - Interrupted while waiting
+     */
+    private static void read(TlsChannel tls, ByteBuffer in) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while(in.hasRemaining()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out reading");
+            assertTrue(tls.read(in) >= 0, "closed while reading");
+            // carry on with whatever the handshake has to send
+            tls.flush();
+            if(!tls.hasBuffered()) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Writes every byte of some buffers, waiting whenever the socket takes no more
+     * @param tls - The channel
+     * @param out - The buffers
+     * @throws IOException - IO error on the channel
+     * @throws InterruptedException - Interrupted while waiting
+     */
+    private static void write(TlsChannel tls, ByteBuffer... out) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while(out[out.length - 1].hasRemaining() || tls.isWritePending()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out writing");
+            if(tls.write(out, 0, out.length) == 0 && !tls.flush()) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Connects an ordinary TLS client on another thread that sends some bytes and then reads some
+     * @param context - The context the client trusts the server's certificate through
+     * @param server - The server channel it connects to
+     * @param send - What it sends
+     * @param receive - How many bytes it reads back before closing
+     * @return what it read back
+     */
+    private static CompletableFuture<String> connect(SSLContext context, ServerSocketChannel server, byte[] send, int receive) {
+        CompletableFuture<String> received = new CompletableFuture<>();
+        Thread.ofPlatform().daemon().start(() -> {
+            try {
+                InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+                try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(address.getAddress(), address.getPort())) {
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(send);
+                    outputStream.flush();
+                    byte[] bytes = new byte[receive];
+                    InputStream inputStream = socket.getInputStream();
+                    new DataInputStream(inputStream).readFully(bytes);
+                    received.complete(new String(bytes));
+                }
+            } catch (IOException e) {
+                received.completeExceptionally(e);
+            }
+        });
+        return received;
+    }
+
+    /**
+     * Creates a server mode engine
+     * @param context - The context
+     * @return the engine
+     */
+    private static SSLEngine engine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Creates a context that both holds and trusts the test certificate
+     * @return the context
+     * @throws IOException - The key store could not be read
+     * @throws GeneralSecurityException - The key store could not be used
+     */
+    private static SSLContext context() throws IOException, GeneralSecurityException {
+        char[] password = "changeit".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream inputStream = TlsChannelTest.class.getResourceAsStream("tls.p12")) {
+            keyStore.load(inputStream, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,107 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of fanning one TEXT frame out to every session in the registry, and one ROOM_TEXT frame out to a room
+ * The room always has ROOM_SIZE members, so its cost should stay flat as the number of sessions grows
+ * Sessions are stand-ins that queue the frame like a real connection and hand it straight to a writer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    // members of each room
+    private static final int ROOM_SIZE = 10;
+
+    // class variables
+    private ClientRegistry<StubSession> registry;
+    private StubSession sender;
+    private byte[] text;
+    private RoomIndex<StubSession> rooms;
+    private ByteBuffer roomText;
+
+    /**
+     * Fills the registry with the recipients and splits them into rooms of ROOM_SIZE
+     * @throws ProtocolException - never, the room names are valid
+     */
+    @Setup
+    public void setup() throws ProtocolException {
+        this.registry = new ClientRegistry<>();
+        this.rooms = new RoomIndex<>();
+        for(int i = 0; i < this.recipients; i++) {
+            StubSession session = new StubSession(this.registry.nextSessionId());
+            this.registry.add(session);
+            this.rooms.join(session, roomPayload("room-" + i / ROOM_SIZE, ""));
+        }
+        this.sender = this.registry.snapshot().get(0);
+        this.text = "a typical chat message of a few dozen bytes".getBytes();
+        this.roomText = roomPayload("room-0", "a typical chat message of a few dozen bytes");
+    }
+
+    @Benchmark
+    public void broadcastText() {
+        this.registry.broadcast(Frame.encode(Client.TEXT, this.text), this.sender);
+    }
+
+    @Benchmark
+    public void broadcastToRoom() throws ProtocolException {
+        this.rooms.send(this.sender, this.roomText.duplicate());
+    }
+
+    /**
+     * Builds a room frame payload the way a client sends it
+     * @param room - The room name
+     * @param body - The text after the room name
+     * @return the payload, ready to be read
+     */
+    private static ByteBuffer roomPayload(String room, String body) {
+        byte[] roomBytes = room.getBytes();
+        byte[] bodyBytes = body.getBytes();
+        return ByteBuffer.allocate(4 + roomBytes.length + bodyBytes.length).putInt(roomBytes.length).put(roomBytes).put(bodyBytes).flip();
+    }
+
+    /**
+     * A session that queues frames and immediately writes them to nowhere
+     */
+    static class StubSession implements ChatSession {
+
+        private final int sessionId;
+        private final OutboundQueue outboundQueue = new OutboundQueue();
+
+        StubSession(int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        public int getSessionId() {
+            return this.sessionId;
+        }
+
+        public String getUsername() {
+            return "user" + this.sessionId;
+        }
+
+        public OutboundQueue getOutboundQueue() {
+            return this.outboundQueue;
+        }
+
+        public void send(Frame frame) {
+            this.outboundQueue.offer(frame);
+            this.outboundQueue.poll();
+        }
+
+        public void disconnect() {
+            this.outboundQueue.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package chat;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load benchmark comparing the server modes ("thread", "virtual" and "nio") at a number of open connections
+ * Usage: java chat.ConnectionBenchmark [mode] [connection counts, comma separated]
+ * Run each mode in its own JVM so one mode's leftovers don't skew the next, for example
+ *   java -Xss256k chat.ConnectionBenchmark thread 1000,10000,50000
+ *   java chat.ConnectionBenchmark virtual 1000,10000,50000
+ * Opening 50k connections needs a file descriptor limit above 100k (ulimit -n)
+ */
+public class ConnectionBenchmark {
+
+    // number of connections that log in and exchange messages, the rest stay idle
+    private static final int ACTIVE_CLIENTS = Integer.getInteger("chat.bench.active", 100);
+    // number of timed broadcasts per connection count
+    private static final int ROUNDS = Integer.getInteger("chat.bench.rounds", 50);
+
+    // class variables
+    private String mode;
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocketChannel;
+    private int port;
+    // TEXT frames received by the active clients since the last reset
+    private AtomicInteger textFramesReceived = new AtomicInteger();
+
+    /**
+     * Creates a new benchmark for one server mode
+     * @param mode - The server mode being measured
+     */
+    public ConnectionBenchmark(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Starts a server in the benchmark's mode on a free port
+     * @throws IOException - IO error when opening the server socket
+     */
+    private void startServer() throws IOException {
+        if(this.mode.equals("nio")) {
+            this.serverSocketChannel = ServerSocketChannel.open();
+            this.serverSocketChannel.bind(new InetSocketAddress(0), Server.BACKLOG);
+            this.port = this.serverSocketChannel.socket().getLocalPort();
+            NioServer server = new NioServer(this.serverSocketChannel, Runtime.getRuntime().availableProcessors());
+            new Thread(server::runServer, "bench-acceptor").start();
+        } else {
+            this.serverSocket = new ServerSocket(0, Server.BACKLOG);
+            this.port = this.serverSocket.getLocalPort();
+            Server server = new Server(this.serverSocket, this.mode.equals("virtual"));
+            new Thread(server::runServer, "bench-acceptor").start();
+        }
+    }
+
+    /**
+     * Stops the server started by startServer
+     * @throws IOException - IO error when closing the server socket
+     */
+    private void stopServer() throws IOException {
+        if(this.serverSocketChannel != null) {
+            this.serverSocketChannel.close();
+        }
+        if(this.serverSocket != null) {
+            this.serverSocket.close();
+        }
+    }
+
+    /**
+     * Measures one connection count and prints a result line
+     * @param connections - The total number of connections to hold open
+     * @param out - Where the result is printed
+     * @throws Exception - Any error while running the measurement
+     */
+    private void measure(int connections, PrintStream out) throws Exception {
+        startServer();
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // open the idle connections, they never send a username so the server holds them in the blocked handshake read
+        int activeCount = Math.min(ACTIVE_CLIENTS, connections);
+        List<SocketChannel> idle = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for(int i = 0; i < connections - activeCount; i++) {
+            idle.add(SocketChannel.open(new InetSocketAddress("localhost", this.port)));
+        }
+
+        // log in the active clients and read everything they receive on one selector thread
+        Selector selector = Selector.open();
+        SocketChannel[] active = new SocketChannel[activeCount];
+        for(int i = 0; i < activeCount; i++) {
+            active[i] = SocketChannel.open(new InetSocketAddress("localhost", this.port));
+            byte[] username = ("bench" + i).getBytes();
+            ByteBuffer login = ByteBuffer.allocate(4 + username.length).putInt(username.length).put(username).flip();
+            while(login.hasRemaining()) {
+                active[i].write(login);
+            }
+        }
+        long connectNanos = System.nanoTime() - connectStart;
+        Thread reader = startReader(selector, active);
+
+        // let the server finish accepting and the login alerts drain before sampling
+        Thread.sleep(2000);
+        long heapAfter = usedHeap();
+        long rssAfter = residentSetSize();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // time how long one text message takes to reach every other active client
+        long[] latencies = new long[ROUNDS];
+        byte[] text = "benchmark message".getBytes();
+        ByteBuffer frame = ByteBuffer.allocate(8 + text.length).putInt(Client.TEXT).putInt(text.length).put(text).flip();
+        for(int round = 0; round < ROUNDS; round++) {
+            this.textFramesReceived.set(0);
+            long start = System.nanoTime();
+            ByteBuffer toSend = frame.duplicate();
+            while(toSend.hasRemaining()) {
+                active[0].write(toSend);
+            }
+            while(this.textFramesReceived.get() < activeCount - 1) {
+                Thread.onSpinWait();
+            }
+            latencies[round] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        out.printf("%-8s connections=%-6d connect=%6d ms  threads=+%-6d heap=+%6d KB  rss=+%7d KB  broadcast to %d p50=%6d us p99=%6d us%n",
+                this.mode, connections, connectNanos / 1_000_000, threadsAfter - threadsBefore,
+                (heapAfter - heapBefore) / 1024, (rssAfter - rssBefore) / 1024, activeCount - 1,
+                latencies[ROUNDS / 2] / 1000, latencies[ROUNDS * 99 / 100] / 1000);
+
+        // close everything and give the server a moment to clean up before the next count
+        reader.interrupt();
+        selector.close();
+        for(SocketChannel channel : active) {
+            channel.close();
+        }
+        for(SocketChannel channel : idle) {
+            channel.close();
+        }
+        stopServer();
+        Thread.sleep(2000);
+    }
+
+    /**
+     * Starts a thread that reads every frame sent to the active clients and counts TEXT frames
+     * @param selector - The selector the active clients are registered with
+     * @param active - The logged in client channels
+     * @return the started reader thread
+     * @throws IOException - IO error when registering the channels
+     */
+    private Thread startReader(Selector selector, SocketChannel[] active) throws IOException {
+        for(SocketChannel channel : active) {
+            channel.configureBlocking(false);
+            // frames may arrive split across reads, so each channel keeps its own buffer
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(64 * 1024));
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                while(!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ByteBuffer buffer = (ByteBuffer) key.attachment();
+                        if(((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        buffer.flip();
+                        // count every complete [type][length][bytes] frame
+                        while(buffer.remaining() >= 8 && buffer.remaining() >= 8 + buffer.getInt(buffer.position() + 4)) {
+                            int type = buffer.getInt();
+                            buffer.position(buffer.position() + 4 + buffer.getInt(buffer.position()));
+                            if(type == Client.TEXT) {
+                                this.textFramesReceived.incrementAndGet();
+                            }
+                        }
+                        buffer.compact();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // selector closed at the end of the measurement
+            }
+        }, "bench-reader");
+        reader.start();
+        return reader;
+    }
+
+    /**
+     * Gets the heap in use after a garbage collection
+     * @return the used heap in bytes
+     */
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Gets the resident set size of this process, which includes the native thread stacks the heap doesn't show
+     * @return the resident set size in bytes, or 0 where /proc isn't available
+     */
+    private static long residentSetSize() {
+        try {
+            for(String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if(line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return 0;
+    }
+
+    /**
+     * Method executed when program is ran
+     * @param args - The command line arguments, the server mode and the connection counts
+     * @throws Exception - Any error while running the benchmark
+     */
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        String counts = args.length > 1 ? args[1] : "1000,10000,50000";
+
+        // the server prints a line per connection, keep the results readable
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ConnectionBenchmark benchmark = new ConnectionBenchmark(mode);
+        for(String count : counts.split(",")) {
+            benchmark.measure(Integer.parseInt(count.trim()), out);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,171 @@
+package chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encode and decode cost of the LOGIN, TEXT and FILE frame formats
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    // payload bytes of a TEXT frame
+    @Param({"16", "256", "4096"})
+    public int textLength;
+
+    // class variables
+    private byte[] loginPayload;
+    private byte[] textPayload;
+    private ByteBuffer filePayload;
+    private ByteBuffer chunkData;
+    private FileRelay fileRelay;
+    private byte[] encodedText;
+    private ReusableInputStream textStream;
+    private DataInputStream textInput;
+    private FrameCodec frameCodec;
+    private byte[] logPayload;
+    private ReusableInputStream compressedStream;
+    private DataInputStream compressedInput;
+
+    /**
+     * Builds the payloads and starts a transfer for the chunk benchmarks
+     */
+    @Setup
+    public void setup() {
+        this.loginPayload = "benchmark-user has entered the chat!".getBytes();
+        this.textPayload = new byte[this.textLength];
+        Arrays.fill(this.textPayload, (byte) 'x');
+        this.encodedText = ByteBuffer.allocate(Frame.HEADER_LENGTH + this.textLength)
+                .putInt(Client.TEXT).putInt(this.textLength).put(this.textPayload).array();
+
+        this.textStream = new ReusableInputStream(this.encodedText);
+        this.textInput = new DataInputStream(this.textStream);
+        this.frameCodec = new FrameCodec();
+
+        // pasted log lines, the kind of text compression is for, cut to the same length
+        StringBuilder log = new StringBuilder();
+        for(int i = 0; log.length() < this.textLength; i++) {
+            log.append("2026-10-18 12:00:").append(i % 60).append(" INFO chat.ClientHandler user").append(i % 97).append(" sent message id=").append(i).append('\n');
+        }
+        this.logPayload = Arrays.copyOf(log.toString().getBytes(), this.textLength);
+        Frame compressed = Frame.encode(Client.TEXT, this.logPayload).compressed();
+        byte[] compressedBytes = new byte[compressed.length()];
+        compressed.buffer().get(compressedBytes);
+        this.compressedStream = new ReusableInputStream(compressedBytes);
+        this.compressedInput = new DataInputStream(this.compressedStream);
+
+        // [transfer id][file size][filename]
+        byte[] filename = "build-artifact.zip".getBytes();
+        this.filePayload = ByteBuffer.allocate(12 + filename.length).putInt(1).putLong(Long.MAX_VALUE).put(filename).flip();
+        this.chunkData = ByteBuffer.allocate(FileRelay.CHUNK_SIZE);
+        this.fileRelay = new FileRelay();
+        this.fileRelay.start(this.filePayload.duplicate());
+    }
+
+    @Benchmark
+    public Frame encodeLogin() {
+        return Frame.encode(Client.LOGIN, this.loginPayload);
+    }
+
+    @Benchmark
+    public Frame encodeText() {
+        return Frame.encode(Client.TEXT, this.textPayload);
+    }
+
+    @Benchmark
+    public Frame encodeFileAnnouncement() {
+        // a fresh relay per call so the transfer id is always new
+        return new FileRelay().start(this.filePayload.duplicate());
+    }
+
+    @Benchmark
+    public Frame encodeFileChunk() {
+        return this.fileRelay.chunk(1, this.chunkData.duplicate());
+    }
+
+    /**
+     * Decodes a TEXT frame the way the blocking ClientHandler does, through a DataInputStream
+     * @return the decoded payload
+     * @throws IOException - never, the stream is in memory
+     */
+    @Benchmark
+    public byte[] decodeTextStream() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(this.encodedText));
+        int type = in.readInt();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return type == Client.TEXT ? payload : null;
+    }
+
+    /**
+     * Decodes a TEXT frame the way the NIO server does, from a buffer holding the whole frame
+     * @return the decoded payload
+     */
+    @Benchmark
+    public byte[] decodeTextBuffer() {
+        ByteBuffer in = ByteBuffer.wrap(this.encodedText);
+        int type = in.getInt();
+        byte[] payload = new byte[in.getInt()];
+        in.get(payload);
+        return type == Client.TEXT ? payload : null;
+    }
+
+    /**
+     * Decodes a TEXT frame through the shared codec, which reuses its payload buffer
+     * Run with -prof gc to check nothing is allocated per frame
+     * @return the payload view
+     * @throws IOException - never, the stream is in memory
+     */
+    @Benchmark
+    public ByteBuffer decodeTextCodec() throws IOException {
+        this.textStream.rewind();
+        this.frameCodec.readFrame(this.textInput);
+        return this.frameCodec.payload();
+    }
+
+    /**
+     * Compresses a TEXT frame of log lines the way a broadcast does for its first compressing recipient
+     * Frames under the compression threshold come back as they are
+     * @return the compressed frame
+     */
+    @Benchmark
+    public Frame compressText() {
+        return Frame.encode(Client.TEXT, this.logPayload).compressed();
+    }
+
+    /**
+     * Decodes and decompresses a compressed TEXT frame of log lines through the shared codec
+     * @return the payload view
+     * @throws IOException - never, the stream is in memory
+     */
+    @Benchmark
+    public ByteBuffer decodeCompressedText() throws IOException {
+        this.compressedStream.rewind();
+        this.frameCodec.readFrame(this.compressedInput);
+        return this.frameCodec.payload();
+    }
+
+    /**
+     * In memory stream that can be read again from the start without creating a new one
+     */
+    static class ReusableInputStream extends ByteArrayInputStream {
+
+        ReusableInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        void rewind() {
+            this.pos = 0;
+        }
+    }
+}
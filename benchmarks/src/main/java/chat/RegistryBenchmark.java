@@ -0,0 +1,81 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Registry add/remove and snapshot iteration, alone and with joins and leaves racing broadcasts
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RegistryBenchmark {
+
+    // sessions registered before the benchmark starts
+    @Param({"1000", "10000"})
+    public int size;
+
+    // class variables
+    private ClientRegistry<BroadcastBenchmark.StubSession> registry;
+
+    /**
+     * Fills the registry
+     */
+    @Setup
+    public void setup() {
+        this.registry = new ClientRegistry<>();
+        for(int i = 0; i < this.size; i++) {
+            this.registry.add(new BroadcastBenchmark.StubSession(this.registry.nextSessionId()));
+        }
+    }
+
+    /**
+     * A session that joins and leaves, one per churning thread
+     */
+    @State(Scope.Thread)
+    public static class Churner {
+
+        private BroadcastBenchmark.StubSession session;
+
+        @Setup
+        public void setup(RegistryBenchmark benchmark) {
+            this.session = new BroadcastBenchmark.StubSession(benchmark.registry.nextSessionId());
+        }
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    public void addRemove(Churner churner) {
+        this.registry.add(churner.session);
+        this.registry.remove(churner.session);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void churn(Churner churner) {
+        this.registry.add(churner.session);
+        this.registry.remove(churner.session);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void iterate(Blackhole blackhole) {
+        for(BroadcastBenchmark.StubSession session : this.registry) {
+            blackhole.consume(session);
+        }
+    }
+
+    @Benchmark
+    @Group("iterateOnly")
+    public void iterateStable(Blackhole blackhole) {
+        for(BroadcastBenchmark.StubSession session : this.registry) {
+            blackhole.consume(session);
+        }
+    }
+}